@@ -16,17 +16,16 @@
 
 package com.android.devicelockcontroller;
 
-import static com.android.devicelockcontroller.IDeviceLockControllerService.KEY_HARDWARE_ID_RESULT;
 import static com.android.devicelockcontroller.policy.DeviceStateController.DeviceEvent.CLEAR;
 import static com.android.devicelockcontroller.policy.DeviceStateController.DeviceEvent.LOCK_DEVICE;
 import static com.android.devicelockcontroller.policy.DeviceStateController.DeviceEvent.UNLOCK_DEVICE;
 import static com.android.devicelockcontroller.policy.DeviceStateController.DeviceState.PSEUDO_LOCKED;
+import static com.android.devicelockcontroller.policy.DeviceStateController.DeviceState.UNLOCKED;
 
 import android.app.Service;
 import android.content.Intent;
-import android.os.Bundle;
 import android.os.IBinder;
-import android.os.RemoteCallback;
+import android.os.RemoteException;
 
 import androidx.annotation.NonNull;
 import androidx.work.WorkManager;
@@ -42,6 +41,10 @@ import com.google.common.util.concurrent.FutureCallback;
 import com.google.common.util.concurrent.Futures;
 import com.google.common.util.concurrent.MoreExecutors;
 
+import java.io.FileDescriptor;
+import java.io.PrintWriter;
+import java.util.concurrent.atomic.AtomicInteger;
+
 /**
  * Device Lock Controller Service. This is hosted in an APK and is bound
  * by the Device Lock System Service.
@@ -51,10 +54,14 @@ public final class DeviceLockControllerService extends Service {
     private DevicePolicyController mPolicyController;
     private DeviceStateController mStateController;
 
+    // Unlock commands received while already unlocked.
+    private final AtomicInteger mRedundantCommands = new AtomicInteger();
+
     private final IDeviceLockControllerService.Stub mBinder =
             new IDeviceLockControllerService.Stub() {
                 @Override
-                public void lockDevice(RemoteCallback remoteCallback) {
+                public void lockDevice(int requestId, IDeviceLockControllerCallback callback) {
+                    // Never redundant: when already locked, lock task mode is enforced again.
                     Futures.addCallback(
                             Futures.transformAsync(
                                     mStateController.setNextStateForEvent(LOCK_DEVICE),
@@ -62,38 +69,65 @@ public final class DeviceLockControllerService extends Service {
                                             ? Futures.immediateFuture(true)
                                             : mPolicyController.launchActivityInLockedMode(),
                                     DeviceLockControllerService.this.getMainExecutor()),
-                            remoteCallbackWrapper(remoteCallback, KEY_LOCK_DEVICE_RESULT),
+                            booleanResultCallback(requestId, callback),
                             MoreExecutors.directExecutor());
                 }
 
                 @Override
-                public void unlockDevice(RemoteCallback remoteCallback) {
+                public void unlockDevice(int requestId, IDeviceLockControllerCallback callback) {
+                    // Only redundant in the real unlocked state, the system service applies the
+                    // same rule before calling.
+                    if (mStateController.getState() == UNLOCKED) {
+                        sendRedundantCommandResult(requestId, callback);
+                        return;
+                    }
+
                     Futures.addCallback(
                             Futures.transform(
                                     mStateController.setNextStateForEvent(UNLOCK_DEVICE),
                                     (Void unused) -> true, MoreExecutors.directExecutor()),
-                            remoteCallbackWrapper(remoteCallback, KEY_UNLOCK_DEVICE_RESULT),
+                            booleanResultCallback(requestId, callback),
                             MoreExecutors.directExecutor());
 
                 }
 
                 @Override
-                public void isDeviceLocked(RemoteCallback remoteCallback) {
+                public void isDeviceLocked(int requestId, IDeviceLockControllerCallback callback) {
                     final boolean isLocked = mStateController.isLocked();
-                    sendResult(IDeviceLockControllerService.KEY_IS_DEVICE_LOCKED_RESULT,
-                            remoteCallback, isLocked);
+                    try {
+                        callback.onBooleanResult(requestId, isLocked);
+                    } catch (RemoteException e) {
+                        LogUtil.e(TAG, "Failed to send the result", e);
+                    }
                 }
 
                 @Override
-                public void getDeviceIdentifier(RemoteCallback remoteCallback) {
+                public void getDeviceIdentifier(int requestId,
+                        IDeviceLockControllerCallback callback) {
                     Futures.addCallback(
                             GlobalParametersClient.getInstance().getRegisteredDeviceId(),
-                            remoteCallbackWrapper(remoteCallback, KEY_HARDWARE_ID_RESULT),
+                            new FutureCallback<>() {
+                                @Override
+                                public void onSuccess(String deviceId) {
+                                    try {
+                                        callback.onStringResult(requestId, deviceId);
+                                    } catch (RemoteException e) {
+                                        LogUtil.e(TAG, "Failed to send the result", e);
+                                    }
+                                }
+
+                                @Override
+                                public void onFailure(Throwable t) {
+                                    LogUtil.e(TAG, "Failed to perform the request", t);
+                                    sendError(requestId, callback);
+                                }
+                            },
                             MoreExecutors.directExecutor());
                 }
 
                 @Override
-                public void clearDeviceRestrictions(RemoteCallback remoteCallback) {
+                public void clearDeviceRestrictions(int requestId,
+                        IDeviceLockControllerCallback callback) {
                     Futures.addCallback(
                             Futures.transform(mStateController.setNextStateForEvent(CLEAR),
                                     (Void unused) -> {
@@ -103,37 +137,93 @@ public final class DeviceLockControllerService extends Service {
                                                 .reportDeviceLockProgramComplete(workManager);
                                         return true;
                                     }, MoreExecutors.directExecutor()),
-                            remoteCallbackWrapper(remoteCallback, KEY_CLEAR_DEVICE_RESULT),
+                            booleanResultCallback(requestId, callback),
+                            MoreExecutors.directExecutor());
+
+                }
+
+                @Override
+                public void getDeviceStatus(int requestId, IDeviceLockControllerCallback callback) {
+                    Futures.addCallback(
+                            GlobalParametersClient.getInstance().getRegisteredDeviceId(),
+                            new FutureCallback<>() {
+                                @Override
+                                public void onSuccess(String deviceId) {
+                                    sendDeviceStatus(requestId, callback, deviceId);
+                                }
+
+                                @Override
+                                public void onFailure(Throwable t) {
+                                    LogUtil.e(TAG, "Failed to get the registered device id", t);
+                                    sendDeviceStatus(requestId, callback, null);
+                                }
+                            },
                             MoreExecutors.directExecutor());
+                }
 
+                @Override
+                public void ping(int requestId, IDeviceLockControllerCallback callback) {
+                    // Reply from the main thread, so that a wedged main thread is detected.
+                    getMainExecutor().execute(() -> {
+                        try {
+                            callback.onBooleanResult(requestId, true);
+                        } catch (RemoteException e) {
+                            LogUtil.e(TAG, "Failed to send the result", e);
+                        }
+                    });
                 }
             };
 
     @NonNull
-    private static FutureCallback<Object> remoteCallbackWrapper(RemoteCallback remoteCallback,
-            final String key) {
+    private static FutureCallback<Boolean> booleanResultCallback(int requestId,
+            IDeviceLockControllerCallback callback) {
         return new FutureCallback<>() {
             @Override
-            public void onSuccess(Object result) {
-                sendResult(key, remoteCallback, result);
+            public void onSuccess(Boolean result) {
+                try {
+                    callback.onBooleanResult(requestId, Boolean.TRUE.equals(result));
+                } catch (RemoteException e) {
+                    LogUtil.e(TAG, "Failed to send the result", e);
+                }
             }
 
             @Override
             public void onFailure(Throwable t) {
                 LogUtil.e(TAG, "Failed to perform the request", t);
-                sendResult(key, remoteCallback, null);
+                sendError(requestId, callback);
             }
         };
     }
 
-    private static void sendResult(String key, RemoteCallback remoteCallback, Object result) {
-        final Bundle bundle = new Bundle();
-        if (result instanceof Boolean) {
-            bundle.putBoolean(key, (Boolean) result);
-        } else if (result instanceof String) {
-            bundle.putString(key, (String) result);
+    /**
+     * Report success for an unlock command received while already unlocked, without enforcing the
+     * policies again.
+     */
+    private void sendRedundantCommandResult(int requestId,
+            IDeviceLockControllerCallback callback) {
+        mRedundantCommands.incrementAndGet();
+        try {
+            callback.onBooleanResult(requestId, true);
+        } catch (RemoteException e) {
+            LogUtil.e(TAG, "Failed to send the result", e);
+        }
+    }
+
+    private static void sendError(int requestId, IDeviceLockControllerCallback callback) {
+        try {
+            callback.onError(requestId);
+        } catch (RemoteException e) {
+            LogUtil.e(TAG, "Failed to send the error", e);
+        }
+    }
+
+    private void sendDeviceStatus(int requestId, IDeviceLockControllerCallback callback,
+            String deviceId) {
+        try {
+            callback.onDeviceStatusResult(requestId, mStateController.isLocked(), deviceId);
+        } catch (RemoteException e) {
+            LogUtil.e(TAG, "Failed to send the result", e);
         }
-        remoteCallback.sendResult(bundle);
     }
 
     @Override
@@ -143,10 +233,18 @@ public final class DeviceLockControllerService extends Service {
         final PolicyObjectsInterface policyObjects = (PolicyObjectsInterface) getApplication();
         mStateController = policyObjects.getStateController();
         mPolicyController = policyObjects.getPolicyController();
+
+        // The system service is binding, make sure it knows the current state.
+        mStateController.notifyStateToSystemService();
     }
 
     @Override
     public IBinder onBind(Intent intent) {
         return mBinder;
     }
+
+    @Override
+    protected void dump(FileDescriptor fd, PrintWriter writer, String[] args) {
+        writer.println("Redundant unlock commands: " + mRedundantCommands.get());
+    }
 }
@@ -21,6 +21,8 @@ import android.os.OutcomeReceiver;
 
 import androidx.annotation.NonNull;
 
+import com.android.devicelockcontroller.policy.DeviceStateController.DeviceState;
+
 import java.util.concurrent.Executor;
 
 /**
@@ -73,4 +75,16 @@ public interface SystemDeviceLockManager {
     void setExemptFromHibernation(String packageName, boolean exempt,
             @CallbackExecutor Executor executor,
             @NonNull OutcomeReceiver<Void, Exception> callback);
+
+    /**
+     * Notify the system service that the device state changed, so that it can answer queries
+     * without calling into the Device Lock Controller.
+     *
+     * @param deviceState the new device state.
+     * @param isLocked true if the device is locked in the new state.
+     * @param sequence sequence number of the state, increasing in the order states are
+     *                 committed, so that the system service can discard notifications delivered
+     *                 out of order.
+     */
+    void notifyDeviceStateChanged(@DeviceState int deviceState, boolean isLocked, long sequence);
 }
@@ -29,6 +29,9 @@ import android.os.RemoteException;
 
 import androidx.annotation.NonNull;
 
+import com.android.devicelockcontroller.policy.DeviceStateController.DeviceState;
+import com.android.devicelockcontroller.util.LogUtil;
+
 import java.util.Objects;
 import java.util.concurrent.Executor;
 
@@ -174,4 +177,19 @@ public final class SystemDeviceLockManagerImpl implements SystemDeviceLockManage
             executor.execute(() -> callback.onError(new RuntimeException(e)));
         }
     }
+
+    @Override
+    @RequiresPermission(MANAGE_DEVICE_LOCK_SERVICE_FROM_CONTROLLER)
+    public void notifyDeviceStateChanged(@DeviceState int deviceState, boolean isLocked,
+            long sequence) {
+        if (mIDeviceLockService == null) {
+            return;
+        }
+
+        try {
+            mIDeviceLockService.onDeviceStateChanged(deviceState, isLocked, sequence);
+        } catch (RemoteException e) {
+            LogUtil.e(TAG, "Failed to notify device state change", e);
+        }
+    }
 }
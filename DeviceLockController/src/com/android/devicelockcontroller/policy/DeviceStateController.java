@@ -64,6 +64,11 @@ public interface DeviceStateController {
      */
     boolean isInSetupState();
 
+    /**
+     * Push the current state to the system service.
+     */
+    void notifyStateToSystemService();
+
     /**
      * Register a callback to get notified on state change.
      */
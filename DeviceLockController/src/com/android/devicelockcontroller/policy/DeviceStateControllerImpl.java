@@ -17,9 +17,14 @@
 package com.android.devicelockcontroller.policy;
 
 import android.content.Context;
+import android.os.SystemClock;
 
+import androidx.annotation.GuardedBy;
+import androidx.annotation.Nullable;
 import androidx.annotation.VisibleForTesting;
 
+import com.android.devicelockcontroller.SystemDeviceLockManager;
+import com.android.devicelockcontroller.SystemDeviceLockManagerImpl;
 import com.android.devicelockcontroller.storage.UserParameters;
 import com.android.devicelockcontroller.util.LogUtil;
 
@@ -40,15 +45,33 @@ public final class DeviceStateControllerImpl implements DeviceStateController {
     private final ArrayList<StateListener> mListeners = new ArrayList<>();
     private int mState;
 
+    // Null to use the system service of the process.
+    @Nullable
+    private final SystemDeviceLockManager mSystemDeviceLockManager;
+
+    // Held while committing a state and numbering its notification to the system service, so
+    // that notifications are numbered in commit order whatever the order they are sent in.
+    private final Object mStateLock = new Object();
+
+    @GuardedBy("mStateLock")
+    private long mLastStateSequence;
+
     /**
      * Create a new state machine.
      *
      * @param context The context used for the state machine.
      */
     public DeviceStateControllerImpl(Context context) {
+        this(context, null /* systemDeviceLockManager */);
+    }
+
+    @VisibleForTesting
+    DeviceStateControllerImpl(Context context,
+            @Nullable SystemDeviceLockManager systemDeviceLockManager) {
         mState = UserParameters.getDeviceState(context);
         LogUtil.i(TAG, String.format(Locale.US, "Starting state is %d", mState));
         mContext = context;
+        mSystemDeviceLockManager = systemDeviceLockManager;
     }
 
     /**
@@ -180,7 +203,40 @@ public final class DeviceStateControllerImpl implements DeviceStateController {
     }
 
     private void updateState(@DeviceState int newState) {
-        UserParameters.setDeviceState(mContext, newState);
-        mState = newState;
+        final boolean isLocked;
+        final long sequence;
+        synchronized (mStateLock) {
+            UserParameters.setDeviceState(mContext, newState);
+            mState = newState;
+            isLocked = isLocked();
+            sequence = nextStateSequenceLocked();
+        }
+        getSystemDeviceLockManager().notifyDeviceStateChanged(newState, isLocked, sequence);
+    }
+
+    @Override
+    public void notifyStateToSystemService() {
+        final int state;
+        final boolean isLocked;
+        final long sequence;
+        synchronized (mStateLock) {
+            state = mState;
+            isLocked = isLocked();
+            sequence = nextStateSequenceLocked();
+        }
+        getSystemDeviceLockManager().notifyDeviceStateChanged(state, isLocked, sequence);
+    }
+
+    // Elapsed realtime is monotonic across restarts of the controller process, so the system
+    // service can also discard notifications from a controller instance that has since crashed.
+    @GuardedBy("mStateLock")
+    private long nextStateSequenceLocked() {
+        mLastStateSequence = Math.max(SystemClock.elapsedRealtimeNanos(), mLastStateSequence + 1);
+        return mLastStateSequence;
+    }
+
+    private SystemDeviceLockManager getSystemDeviceLockManager() {
+        return mSystemDeviceLockManager != null
+                ? mSystemDeviceLockManager : SystemDeviceLockManagerImpl.getInstance();
     }
 }
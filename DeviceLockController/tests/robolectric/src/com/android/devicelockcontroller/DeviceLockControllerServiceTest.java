@@ -0,0 +1,114 @@
+/*
+ * Copyright (C) 2023 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.devicelockcontroller;
+
+import static com.android.devicelockcontroller.policy.DeviceStateController.DeviceEvent.LOCK_DEVICE;
+import static com.android.devicelockcontroller.policy.DeviceStateController.DeviceEvent.UNLOCK_DEVICE;
+
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+import static org.robolectric.Shadows.shadowOf;
+
+import android.os.Looper;
+
+import androidx.test.core.app.ApplicationProvider;
+
+import com.android.devicelockcontroller.policy.DevicePolicyController;
+import com.android.devicelockcontroller.policy.DeviceStateController;
+import com.android.devicelockcontroller.policy.DeviceStateController.DeviceState;
+
+import com.google.common.util.concurrent.Futures;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.Robolectric;
+import org.robolectric.RobolectricTestRunner;
+
+@RunWith(RobolectricTestRunner.class)
+public final class DeviceLockControllerServiceTest {
+    private static final int REQUEST_ID = 1;
+
+    private DeviceStateController mStateController;
+    private DevicePolicyController mPolicyController;
+    private IDeviceLockControllerCallback mCallback;
+    private IDeviceLockControllerService mService;
+
+    @Before
+    public void setUp() {
+        final TestDeviceLockControllerApplication testApplication =
+                ApplicationProvider.getApplicationContext();
+        mStateController = testApplication.getStateController();
+        mPolicyController = testApplication.getPolicyController();
+        when(mStateController.setNextStateForEvent(anyInt()))
+                .thenReturn(Futures.immediateVoidFuture());
+        when(mPolicyController.launchActivityInLockedMode())
+                .thenReturn(Futures.immediateFuture(true));
+
+        mCallback = mock(IDeviceLockControllerCallback.class);
+        mService = IDeviceLockControllerService.Stub.asInterface(
+                Robolectric.setupService(DeviceLockControllerService.class)
+                        .onBind(/* intent= */ null));
+    }
+
+    @Test
+    public void lockDevice_whenLocked_enforcesLockTaskModeAgain() throws Exception {
+        when(mStateController.getState()).thenReturn(DeviceState.LOCKED);
+
+        mService.lockDevice(REQUEST_ID, mCallback);
+        shadowOf(Looper.getMainLooper()).idle();
+
+        verify(mStateController).setNextStateForEvent(LOCK_DEVICE);
+        verify(mPolicyController).launchActivityInLockedMode();
+        verify(mCallback).onBooleanResult(REQUEST_ID, true);
+    }
+
+    @Test
+    public void lockDevice_whenPseudoLocked_doesNotEnforceLockTaskMode() throws Exception {
+        when(mStateController.getState()).thenReturn(DeviceState.PSEUDO_LOCKED);
+
+        mService.lockDevice(REQUEST_ID, mCallback);
+        shadowOf(Looper.getMainLooper()).idle();
+
+        verify(mStateController).setNextStateForEvent(LOCK_DEVICE);
+        verify(mPolicyController, never()).launchActivityInLockedMode();
+        verify(mCallback).onBooleanResult(REQUEST_ID, true);
+    }
+
+    @Test
+    public void unlockDevice_whenUnlocked_doesNotChangeTheState() throws Exception {
+        when(mStateController.getState()).thenReturn(DeviceState.UNLOCKED);
+
+        mService.unlockDevice(REQUEST_ID, mCallback);
+
+        verify(mStateController, never()).setNextStateForEvent(anyInt());
+        verify(mCallback).onBooleanResult(REQUEST_ID, true);
+    }
+
+    @Test
+    public void unlockDevice_whenPseudoUnlocked_goesThroughTheStateMachine() throws Exception {
+        when(mStateController.getState()).thenReturn(DeviceState.PSEUDO_UNLOCKED);
+
+        mService.unlockDevice(REQUEST_ID, mCallback);
+
+        verify(mStateController).setNextStateForEvent(UNLOCK_DEVICE);
+        verify(mCallback).onBooleanResult(REQUEST_ID, true);
+    }
+}
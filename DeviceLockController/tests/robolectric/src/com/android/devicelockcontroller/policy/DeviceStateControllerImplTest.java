@@ -0,0 +1,159 @@
+/*
+ * Copyright (C) 2023 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.devicelockcontroller.policy;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import static org.mockito.ArgumentMatchers.anyBoolean;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.Mockito.doAnswer;
+
+import androidx.test.core.app.ApplicationProvider;
+
+import com.android.devicelockcontroller.SystemDeviceLockManager;
+import com.android.devicelockcontroller.TestDeviceLockControllerApplication;
+import com.android.devicelockcontroller.policy.DeviceStateController.DeviceEvent;
+import com.android.devicelockcontroller.policy.DeviceStateController.DeviceState;
+import com.android.devicelockcontroller.storage.UserParameters;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Mock;
+import org.mockito.junit.MockitoJUnit;
+import org.mockito.junit.MockitoRule;
+import org.robolectric.RobolectricTestRunner;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+@RunWith(RobolectricTestRunner.class)
+public final class DeviceStateControllerImplTest {
+    private static final long TIMEOUT_SECONDS = 5;
+
+    @Rule
+    public final MockitoRule mMocks = MockitoJUnit.rule();
+
+    @Mock
+    private SystemDeviceLockManager mSystemDeviceLockManager;
+
+    private TestDeviceLockControllerApplication mTestApplication;
+
+    // Notifications sent to the system service, in the order they are sent.
+    private final List<StateNotification> mNotifications = new ArrayList<>();
+
+    private static final class StateNotification {
+        final int mState;
+        final boolean mIsLocked;
+        final long mSequence;
+
+        StateNotification(int state, boolean isLocked, long sequence) {
+            mState = state;
+            mIsLocked = isLocked;
+            mSequence = sequence;
+        }
+    }
+
+    @Before
+    public void setUp() {
+        mTestApplication = ApplicationProvider.getApplicationContext();
+    }
+
+    private void recordNotification(int state, boolean isLocked, long sequence) {
+        synchronized (mNotifications) {
+            mNotifications.add(new StateNotification(state, isLocked, sequence));
+        }
+    }
+
+    private void recordNotifications() {
+        doAnswer(invocation -> {
+            recordNotification(invocation.getArgument(0), invocation.getArgument(1),
+                    invocation.getArgument(2));
+            return null;
+        }).when(mSystemDeviceLockManager).notifyDeviceStateChanged(anyInt(), anyBoolean(),
+                anyLong());
+    }
+
+    @Test
+    public void stateNotificationsAreNumberedInCommitOrder() {
+        UserParameters.setDeviceState(mTestApplication, DeviceState.UNLOCKED);
+        final DeviceStateControllerImpl controller =
+                new DeviceStateControllerImpl(mTestApplication, mSystemDeviceLockManager);
+        recordNotifications();
+
+        controller.notifyStateToSystemService();
+        controller.setNextStateForEvent(DeviceEvent.LOCK_DEVICE);
+        controller.setNextStateForEvent(DeviceEvent.UNLOCK_DEVICE);
+
+        assertThat(mNotifications).hasSize(3);
+        assertThat(mNotifications.get(0).mState).isEqualTo(DeviceState.UNLOCKED);
+        assertThat(mNotifications.get(0).mIsLocked).isFalse();
+        assertThat(mNotifications.get(1).mState).isEqualTo(DeviceState.LOCKED);
+        assertThat(mNotifications.get(1).mIsLocked).isTrue();
+        assertThat(mNotifications.get(2).mState).isEqualTo(DeviceState.UNLOCKED);
+        assertThat(mNotifications.get(2).mIsLocked).isFalse();
+        assertThat(mNotifications.get(1).mSequence).isGreaterThan(mNotifications.get(0).mSequence);
+        assertThat(mNotifications.get(2).mSequence).isGreaterThan(mNotifications.get(1).mSequence);
+    }
+
+    @Test
+    public void lastCommittedStateHasTheHighestSequenceWhenSentOutOfOrder() throws Exception {
+        UserParameters.setDeviceState(mTestApplication, DeviceState.UNLOCKED);
+        final DeviceStateControllerImpl controller =
+                new DeviceStateControllerImpl(mTestApplication, mSystemDeviceLockManager);
+
+        // The first notification is held until the second one is sent.
+        final CountDownLatch firstCommitted = new CountDownLatch(1);
+        final CountDownLatch secondSent = new CountDownLatch(1);
+        doAnswer(invocation -> {
+            final int state = invocation.getArgument(0);
+            if (state == DeviceState.LOCKED) {
+                firstCommitted.countDown();
+                assertThat(secondSent.await(TIMEOUT_SECONDS, TimeUnit.SECONDS)).isTrue();
+            }
+            recordNotification(state, invocation.getArgument(1), invocation.getArgument(2));
+            if (state == DeviceState.UNLOCKED) {
+                secondSent.countDown();
+            }
+            return null;
+        }).when(mSystemDeviceLockManager).notifyDeviceStateChanged(anyInt(), anyBoolean(),
+                anyLong());
+
+        final Thread lockThread =
+                new Thread(() -> controller.setNextStateForEvent(DeviceEvent.LOCK_DEVICE));
+        lockThread.start();
+        assertThat(firstCommitted.await(TIMEOUT_SECONDS, TimeUnit.SECONDS)).isTrue();
+        controller.setNextStateForEvent(DeviceEvent.UNLOCK_DEVICE);
+        lockThread.join(TimeUnit.SECONDS.toMillis(TIMEOUT_SECONDS));
+
+        assertThat(UserParameters.getDeviceState(mTestApplication))
+                .isEqualTo(DeviceState.UNLOCKED);
+        assertThat(mNotifications).hasSize(2);
+        final StateNotification sentFirst = mNotifications.get(0);
+        final StateNotification sentLast = mNotifications.get(1);
+        assertThat(sentFirst.mState).isEqualTo(DeviceState.UNLOCKED);
+        assertThat(sentLast.mState).isEqualTo(DeviceState.LOCKED);
+
+        // The system service keeps the notification with the highest sequence, i.e. the last
+        // committed state although it was sent first.
+        assertThat(sentFirst.mSequence).isGreaterThan(sentLast.mSequence);
+    }
+}
@@ -36,6 +36,7 @@ import java.lang.annotation.RetentionPolicy;
 import java.util.Map;
 import java.util.Objects;
 import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
 
 /**
  * Manager used to interact with the system device lock service.
@@ -77,14 +78,20 @@ public final class DeviceLockManager {
         return new Exception("Unknown error");
     }
 
+    private static Exception getBusyException() {
+        return new RejectedExecutionException("Too many requests, try again later");
+    }
+
     private static final Map<Class, Map<Integer, Exception>> ERROR_MAP = Map.of(
             ILockUnlockDeviceCallback.class, Map.of(
                     ILockUnlockDeviceCallback.ERROR_UNKNOWN, getUnknwnException(),
-                    ILockUnlockDeviceCallback.ERROR_SECURITY, getSecurityException()
+                    ILockUnlockDeviceCallback.ERROR_SECURITY, getSecurityException(),
+                    ILockUnlockDeviceCallback.ERROR_BUSY, getBusyException()
             ),
             IIsDeviceLockedCallback.class, Map.of(
                     IIsDeviceLockedCallback.ERROR_UNKNOWN, getUnknwnException(),
-                    IIsDeviceLockedCallback.ERROR_SECURITY, getSecurityException()
+                    IIsDeviceLockedCallback.ERROR_SECURITY, getSecurityException(),
+                    IIsDeviceLockedCallback.ERROR_BUSY, getBusyException()
             ),
             IGetDeviceIdCallback.class, Map.of(
                     IGetDeviceIdCallback.ERROR_UNKNOWN, getUnknwnException(),
@@ -92,10 +99,21 @@ public final class DeviceLockManager {
                     IGetDeviceIdCallback.ERROR_INVALID_DEVICE_ID_TYPE_BITMAP,
                         new Exception("Invalid device type"),
                     IGetDeviceIdCallback.ERROR_CANNOT_GET_DEVICE_ID,
-                        new Exception("Unable to get device id")
+                        new Exception("Unable to get device id"),
+                    IGetDeviceIdCallback.ERROR_BUSY, getBusyException()
             ),
             IGetKioskAppsCallback.class, Map.of(
                     IGetKioskAppsCallback.ERROR_UNKNOWN, getUnknwnException()
+            ),
+            IGetDeviceLockStatusCallback.class, Map.of(
+                    IGetDeviceLockStatusCallback.ERROR_UNKNOWN, getUnknwnException(),
+                    IGetDeviceLockStatusCallback.ERROR_SECURITY, getSecurityException(),
+                    IGetDeviceLockStatusCallback.ERROR_BUSY, getBusyException()
+            ),
+            IClearDeviceRestrictionsCallback.class, Map.of(
+                    IClearDeviceRestrictionsCallback.ERROR_UNKNOWN, getUnknwnException(),
+                    IClearDeviceRestrictionsCallback.ERROR_SECURITY, getSecurityException(),
+                    IClearDeviceRestrictionsCallback.ERROR_BUSY, getBusyException()
             )
     );
 
@@ -139,6 +157,8 @@ public final class DeviceLockManager {
      *
      * @param executor the {@link Executor} on which to invoke the callback.
      * @param callback this returns either success or an exception.
+     *                 Fails with a {@link RejectedExecutionException} if the caller issued
+     *                 too many requests, they can be retried later.
      */
     @RequiresPermission(permission.MANAGE_DEVICE_LOCK_STATE)
     public void lockDevice(@NonNull @CallbackExecutor Executor executor,
@@ -170,6 +190,8 @@ public final class DeviceLockManager {
      *
      * @param executor the {@link Executor} on which to invoke the callback.
      * @param callback this returns either success or an exception.
+     *                 Fails with a {@link RejectedExecutionException} if the caller issued
+     *                 too many requests, they can be retried later.
      */
     @RequiresPermission(permission.MANAGE_DEVICE_LOCK_STATE)
     public void unlockDevice(@NonNull @CallbackExecutor Executor executor,
@@ -196,11 +218,48 @@ public final class DeviceLockManager {
         }
     }
 
+    /**
+     * Clear the device restrictions, i.e. remove the device from the device lock program.
+     * Once cleared, the device cannot be locked anymore.
+     *
+     * @param executor the {@link Executor} on which to invoke the callback.
+     * @param callback this returns either success or an exception.
+     *                 Fails with a {@link RejectedExecutionException} if the caller issued
+     *                 too many requests, they can be retried later.
+     */
+    @RequiresPermission(permission.MANAGE_DEVICE_LOCK_STATE)
+    public void clearDeviceRestrictions(@NonNull @CallbackExecutor Executor executor,
+            @NonNull OutcomeReceiver<Void, Exception> callback) {
+        Objects.requireNonNull(executor);
+        Objects.requireNonNull(callback);
+
+        try {
+            mService.clearDeviceRestrictions(
+                    new IClearDeviceRestrictionsCallback.Stub() {
+                        @Override
+                        public void onDeviceRestrictionsCleared() {
+                            executor.execute(() -> callback.onResult(null));
+                        }
+
+                        @Override
+                        public void onError(int error) {
+                            executor.execute(() ->
+                                    callback.onError(getException(
+                                            IClearDeviceRestrictionsCallback.class, error)));
+                        }
+                    });
+        } catch (RemoteException e) {
+            executor.execute(() -> callback.onError(new RuntimeException(e)));
+        }
+    }
+
     /**
      * Check if the device is locked or not.
      *
      * @param executor the {@link Executor} on which to invoke the callback.
      * @param callback this returns either the lock status or an exception.
+     *                 Fails with a {@link RejectedExecutionException} if the caller issued
+     *                 too many requests, they can be retried later.
      */
     @RequiresPermission(permission.MANAGE_DEVICE_LOCK_STATE)
     public void isDeviceLocked(@NonNull @CallbackExecutor Executor executor,
@@ -233,6 +292,8 @@ public final class DeviceLockManager {
      *
      * @param executor the {@link Executor} on which to invoke the callback.
      * @param callback this returns either the {@link DeviceId} or an exception.
+     *                 Fails with a {@link RejectedExecutionException} if the caller issued
+     *                 too many requests, they can be retried later.
      */
     @RequiresPermission(permission.MANAGE_DEVICE_LOCK_STATE)
     public void getDeviceId(@NonNull @CallbackExecutor Executor executor,
@@ -303,4 +364,42 @@ public final class DeviceLockManager {
             executor.execute(() -> callback.onError(new RuntimeException(e)));
         }
     }
+
+    /**
+     * Get the lock status, device id and kiosk apps with a single call.
+     * This is equivalent to calling {@link #isDeviceLocked}, {@link #getDeviceId} and
+     * {@link #getKioskApps}, but only needs one round trip to the system service.
+     *
+     * @param executor the {@link Executor} on which to invoke the callback.
+     * @param callback this returns either the {@link DeviceLockStatus} or an exception.
+     *                 The device id in the status is null if it cannot be determined.
+     *                 Fails with a {@link RejectedExecutionException} if the caller issued
+     *                 too many requests, they can be retried later.
+     */
+    @RequiresPermission(permission.MANAGE_DEVICE_LOCK_STATE)
+    public void getDeviceLockStatus(@NonNull @CallbackExecutor Executor executor,
+            @NonNull OutcomeReceiver<DeviceLockStatus, Exception> callback) {
+        Objects.requireNonNull(executor);
+        Objects.requireNonNull(callback);
+
+        try {
+            mService.getDeviceLockStatus(
+                    new IGetDeviceLockStatusCallback.Stub() {
+                        @Override
+                        public void onDeviceLockStatusReceived(DeviceLockStatus status) {
+                            executor.execute(() -> callback.onResult(status));
+                        }
+
+                        @Override
+                        public void onError(int error) {
+                            executor.execute(() ->
+                                    callback.onError(getException(
+                                            IGetDeviceLockStatusCallback.class, error)));
+                        }
+                    }
+            );
+        } catch (RemoteException e) {
+            executor.execute(() -> callback.onError(new RuntimeException(e)));
+        }
+    }
 }
@@ -0,0 +1,124 @@
+/*
+ * Copyright (C) 2023 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.devicelock;
+
+import android.annotation.NonNull;
+import android.annotation.Nullable;
+import android.os.Parcel;
+import android.os.Parcelable;
+import android.util.ArrayMap;
+
+import java.util.Collections;
+import java.util.Map;
+
+/**
+ * The response returned from {@link DeviceLockManager#getDeviceLockStatus} on success.
+ * It combines the results of {@link DeviceLockManager#isDeviceLocked},
+ * {@link DeviceLockManager#getDeviceId} and {@link DeviceLockManager#getKioskApps}.
+ */
+public final class DeviceLockStatus implements Parcelable {
+    private static final int NO_DEVICE_ID_TYPE = -1;
+
+    private final boolean mIsDeviceLocked;
+    private final DeviceId mDeviceId;
+    private final Map<Integer, String> mKioskApps;
+
+    /**
+     * @param isDeviceLocked true if the device is locked.
+     * @param deviceIdType type of the device id, ignored if deviceId is null.
+     * @param deviceId the device id, or null if not available.
+     * @param kioskApps the kiosk app roles and packages.
+     *
+     * @hide
+     */
+    public DeviceLockStatus(boolean isDeviceLocked, @DeviceId.DeviceIdType int deviceIdType,
+            @Nullable String deviceId, @NonNull Map<Integer, String> kioskApps) {
+        mIsDeviceLocked = isDeviceLocked;
+        mDeviceId = deviceId == null ? null : new DeviceId(deviceIdType, deviceId);
+        mKioskApps = Collections.unmodifiableMap(new ArrayMap<>(kioskApps));
+    }
+
+    private DeviceLockStatus(@NonNull Parcel in) {
+        mIsDeviceLocked = in.readBoolean();
+        final int deviceIdType = in.readInt();
+        mDeviceId = deviceIdType == NO_DEVICE_ID_TYPE
+                ? null : new DeviceId(deviceIdType, in.readString());
+
+        final int kioskAppCount = in.readInt();
+        final ArrayMap<Integer, String> kioskApps = new ArrayMap<>(kioskAppCount);
+        for (int i = 0; i < kioskAppCount; i++) {
+            kioskApps.put(in.readInt(), in.readString());
+        }
+        mKioskApps = Collections.unmodifiableMap(kioskApps);
+    }
+
+    /**
+     * Whether the device is locked.
+     */
+    public boolean isDeviceLocked() {
+        return mIsDeviceLocked;
+    }
+
+    /**
+     * The device id, or null if the device id cannot be determined (see
+     * {@link DeviceLockManager#getDeviceId}).
+     */
+    public @Nullable DeviceId getDeviceId() {
+        return mDeviceId;
+    }
+
+    /**
+     * The kiosk app roles and packages, as returned by {@link DeviceLockManager#getKioskApps}.
+     */
+    public @NonNull Map<Integer, String> getKioskApps() {
+        return mKioskApps;
+    }
+
+    @Override
+    public int describeContents() {
+        return 0;
+    }
+
+    @Override
+    public void writeToParcel(@NonNull Parcel dest, int flags) {
+        dest.writeBoolean(mIsDeviceLocked);
+        if (mDeviceId == null) {
+            dest.writeInt(NO_DEVICE_ID_TYPE);
+        } else {
+            dest.writeInt(mDeviceId.getType());
+            dest.writeString(mDeviceId.getId());
+        }
+
+        dest.writeInt(mKioskApps.size());
+        for (Map.Entry<Integer, String> kioskApp : mKioskApps.entrySet()) {
+            dest.writeInt(kioskApp.getKey());
+            dest.writeString(kioskApp.getValue());
+        }
+    }
+
+    public static final @NonNull Creator<DeviceLockStatus> CREATOR = new Creator<>() {
+        @Override
+        public DeviceLockStatus createFromParcel(@NonNull Parcel in) {
+            return new DeviceLockStatus(in);
+        }
+
+        @Override
+        public DeviceLockStatus[] newArray(int size) {
+            return new DeviceLockStatus[size];
+        }
+    };
+}
@@ -0,0 +1,101 @@
+/*
+ * Copyright (C) 2023 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.devicelock;
+
+import android.annotation.NonNull;
+
+import com.android.internal.annotations.GuardedBy;
+
+import java.io.PrintWriter;
+
+/**
+ * Keep-alive policy learning the inter-arrival time of API calls.
+ *
+ * The inter-arrival time is tracked as an exponentially weighted moving average. If the next
+ * call is expected within the maximum idle window, the controller is kept bound a bit longer
+ * than the expected inter-arrival time, so that periodic callers do not pay for a rebind and a
+ * process start on every call. Otherwise, keeping the controller around is not worth it and the
+ * minimum idle window is used.
+ */
+final class AdaptiveKeepAlivePolicy implements KeepAlivePolicy {
+    // Weight of the last inter-arrival time in the moving average.
+    private static final float ALPHA = 0.25f;
+
+    // Margin over the expected inter-arrival time.
+    private static final float IDLE_FACTOR = 1.5f;
+
+    private final long mMinIdleMillis;
+    private final long mDefaultIdleMillis;
+    private final long mMaxIdleMillis;
+
+    @GuardedBy("this")
+    private long mLastCallMillis = -1;
+
+    // Moving average of the inter-arrival time, or -1 if unknown.
+    @GuardedBy("this")
+    private float mAverageInterArrivalMillis = -1;
+
+    /**
+     * Create a new policy.
+     *
+     * @param minIdleMillis idle window used for infrequent callers.
+     * @param defaultIdleMillis idle window used until the inter-arrival time is known.
+     * @param maxIdleMillis upper bound of the idle window.
+     */
+    AdaptiveKeepAlivePolicy(long minIdleMillis, long defaultIdleMillis, long maxIdleMillis) {
+        mMinIdleMillis = minIdleMillis;
+        mDefaultIdleMillis = defaultIdleMillis;
+        mMaxIdleMillis = maxIdleMillis;
+    }
+
+    @Override
+    public synchronized void onCall(long uptimeMillis) {
+        if (mLastCallMillis >= 0) {
+            final long interArrivalMillis = uptimeMillis - mLastCallMillis;
+            if (mAverageInterArrivalMillis < 0) {
+                mAverageInterArrivalMillis = interArrivalMillis;
+            } else {
+                mAverageInterArrivalMillis = ALPHA * interArrivalMillis
+                        + (1 - ALPHA) * mAverageInterArrivalMillis;
+            }
+        }
+        mLastCallMillis = uptimeMillis;
+    }
+
+    @Override
+    public synchronized long getIdleTimeoutMillis(long uptimeMillis) {
+        if (mAverageInterArrivalMillis < 0) {
+            return mDefaultIdleMillis;
+        }
+
+        final long idleMillis = (long) (mAverageInterArrivalMillis * IDLE_FACTOR);
+        if (idleMillis > mMaxIdleMillis) {
+            // The next call is not expected soon enough to keep the controller bound.
+            return mMinIdleMillis;
+        }
+
+        return Math.max(mMinIdleMillis, idleMillis);
+    }
+
+    @Override
+    public synchronized void dump(@NonNull PrintWriter pw, @NonNull String prefix) {
+        pw.println(prefix + "Average inter-arrival time: " + (long) mAverageInterArrivalMillis
+                + " ms");
+        pw.println(prefix + "Idle bounds: [" + mMinIdleMillis + ", " + mMaxIdleMillis
+                + "] ms, default " + mDefaultIdleMillis + " ms");
+    }
+}
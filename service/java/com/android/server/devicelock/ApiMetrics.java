@@ -0,0 +1,175 @@
+/*
+ * Copyright (C) 2023 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.devicelock;
+
+import android.annotation.NonNull;
+
+import java.io.PrintWriter;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Per-API latency and outcome metrics, printed by {@code dumpsys device_lock}.
+ *
+ * Everything is lock-free, so that recording never contends with the API calls themselves.
+ */
+final class ApiMetrics {
+    static final int API_LOCK_DEVICE = 0;
+    static final int API_UNLOCK_DEVICE = 1;
+    static final int API_IS_DEVICE_LOCKED = 2;
+    static final int API_GET_DEVICE_ID = 3;
+    static final int API_GET_KIOSK_APPS = 4;
+    static final int API_CLEAR_DEVICE_RESTRICTIONS = 5;
+    static final int API_GET_DEVICE_LOCK_STATUS = 6;
+    // Controller health check, not a client API.
+    static final int API_PING = 7;
+    private static final int API_COUNT = 8;
+
+    // Time from the call until it is dispatched to the controller, including the binding.
+    static final int PHASE_BIND_WAIT = 0;
+    // Time from the dispatch until the controller result is received.
+    static final int PHASE_CONTROLLER = 1;
+    // Time from the controller result until the caller callback returns.
+    static final int PHASE_CALLBACK_DELIVERY = 2;
+    // Time from the call until the caller callback returns.
+    static final int PHASE_TOTAL = 3;
+    private static final int PHASE_COUNT = 4;
+
+    static final int OUTCOME_SUCCESS = 0;
+    static final int OUTCOME_ERROR = 1;
+    static final int OUTCOME_TIMEOUT = 2;
+    // Answered without calling into the controller (cached or shared with an in-flight call).
+    static final int OUTCOME_LOCAL = 3;
+    // Lock or unlock while already in the requested state, answered without calling into the
+    // controller.
+    static final int OUTCOME_REDUNDANT = 4;
+    // Rejected by the admission control, before any work.
+    static final int OUTCOME_REJECTED = 5;
+    private static final int OUTCOME_COUNT = 6;
+
+    private final LatencyHistogram[] mLatencies = new LatencyHistogram[API_COUNT * PHASE_COUNT];
+
+    private final AtomicLongArray mOutcomes = new AtomicLongArray(API_COUNT * OUTCOME_COUNT);
+
+    private final AtomicLong mBinds = new AtomicLong();
+    private final AtomicLong mBindFailures = new AtomicLong();
+    private final AtomicLong mUnbinds = new AtomicLong();
+    private final AtomicLong mDisconnects = new AtomicLong();
+
+    ApiMetrics() {
+        for (int i = 0; i < mLatencies.length; i++) {
+            mLatencies[i] = new LatencyHistogram();
+        }
+    }
+
+    /**
+     * Record the duration of a phase of an API call.
+     */
+    void recordLatency(int api, int phase, long nanos) {
+        mLatencies[api * PHASE_COUNT + phase].record(nanos);
+    }
+
+    /**
+     * Record the outcome of an API call.
+     */
+    void recordOutcome(int api, int outcome) {
+        mOutcomes.incrementAndGet(api * OUTCOME_COUNT + outcome);
+    }
+
+    /**
+     * Record an attempt to bind to the controller.
+     */
+    void recordBind(boolean success) {
+        (success ? mBinds : mBindFailures).incrementAndGet();
+    }
+
+    /**
+     * Record an unbind from the controller.
+     */
+    void recordUnbind() {
+        mUnbinds.incrementAndGet();
+    }
+
+    /**
+     * Record the controller going away while bound (crash, kill or binding died).
+     */
+    void recordDisconnect() {
+        mDisconnects.incrementAndGet();
+    }
+
+    private static String apiToString(int api) {
+        switch (api) {
+            case API_LOCK_DEVICE:
+                return "lockDevice";
+            case API_UNLOCK_DEVICE:
+                return "unlockDevice";
+            case API_IS_DEVICE_LOCKED:
+                return "isDeviceLocked";
+            case API_GET_DEVICE_ID:
+                return "getDeviceId";
+            case API_GET_KIOSK_APPS:
+                return "getKioskApps";
+            case API_CLEAR_DEVICE_RESTRICTIONS:
+                return "clearDeviceRestrictions";
+            case API_GET_DEVICE_LOCK_STATUS:
+                return "getDeviceLockStatus";
+            case API_PING:
+                return "ping";
+            default:
+                return "UNKNOWN_API";
+        }
+    }
+
+    private static String phaseToString(int phase) {
+        switch (phase) {
+            case PHASE_BIND_WAIT:
+                return "Bind wait";
+            case PHASE_CONTROLLER:
+                return "Controller";
+            case PHASE_CALLBACK_DELIVERY:
+                return "Callback delivery";
+            case PHASE_TOTAL:
+                return "Total";
+            default:
+                return "UNKNOWN_PHASE";
+        }
+    }
+
+    /**
+     * Dump the metrics.
+     */
+    void dump(@NonNull PrintWriter pw, @NonNull String prefix) {
+        pw.println(prefix + "Binds: " + mBinds.get() + " (failed " + mBindFailures.get()
+                + "), unbinds: " + mUnbinds.get() + ", disconnects: " + mDisconnects.get());
+
+        for (int api = 0; api < API_COUNT; api++) {
+            final int outcomes = api * OUTCOME_COUNT;
+            pw.println(prefix + apiToString(api) + ":"
+                    + " success=" + mOutcomes.get(outcomes + OUTCOME_SUCCESS)
+                    + " error=" + mOutcomes.get(outcomes + OUTCOME_ERROR)
+                    + " timeout=" + mOutcomes.get(outcomes + OUTCOME_TIMEOUT)
+                    + " local=" + mOutcomes.get(outcomes + OUTCOME_LOCAL)
+                    + " redundant=" + mOutcomes.get(outcomes + OUTCOME_REDUNDANT)
+                    + " rejected=" + mOutcomes.get(outcomes + OUTCOME_REJECTED));
+
+            for (int phase = 0; phase < PHASE_COUNT; phase++) {
+                mLatencies[api * PHASE_COUNT + phase].dump(pw, prefix + "  ",
+                        phaseToString(phase));
+            }
+        }
+    }
+}
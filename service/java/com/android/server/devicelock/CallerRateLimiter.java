@@ -0,0 +1,157 @@
+/*
+ * Copyright (C) 2023 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.devicelock;
+
+import android.annotation.NonNull;
+import android.util.SparseArray;
+import android.util.SparseIntArray;
+
+import com.android.internal.annotations.GuardedBy;
+
+import java.io.PrintWriter;
+
+/**
+ * Token bucket admission control of the API calls, per calling uid and for all the callers.
+ *
+ * Each uid can issue up to {@code burst} calls at once, then {@code ratePerSecond} calls per
+ * second. All the uids together are bounded by {@link #GLOBAL_FACTOR} times these limits.
+ */
+final class CallerRateLimiter {
+    // Limits of all the callers together, relative to the limits of a single uid.
+    static final int GLOBAL_FACTOR = 4;
+
+    // Above this number of tracked uids, the buckets of the uids that are not limited (i.e. full
+    // buckets) are dropped.
+    private static final int MAX_TRACKED_UIDS = 32;
+
+    private static final class Bucket {
+        double mTokens;
+        long mLastRefillMillis;
+
+        Bucket(double tokens, long nowMillis) {
+            mTokens = tokens;
+            mLastRefillMillis = nowMillis;
+        }
+
+        void refill(long nowMillis, double tokensPerMilli, int capacity) {
+            if (nowMillis > mLastRefillMillis) {
+                mTokens = Math.min(capacity,
+                        mTokens + (nowMillis - mLastRefillMillis) * tokensPerMilli);
+                mLastRefillMillis = nowMillis;
+            }
+        }
+    }
+
+    private final double mTokensPerMilli;
+    private final int mBurst;
+
+    @GuardedBy("this")
+    private final SparseArray<Bucket> mBuckets = new SparseArray<>();
+
+    @GuardedBy("this")
+    private final Bucket mGlobalBucket;
+
+    @GuardedBy("this")
+    private long mAccepted;
+
+    // Rejected calls, in total and per uid.
+    @GuardedBy("this")
+    private long mRejected;
+
+    @GuardedBy("this")
+    private final SparseIntArray mRejectedPerUid = new SparseIntArray();
+
+    /**
+     * Create a rate limiter.
+     *
+     * @param ratePerSecond sustained calls per second of a uid, 0 or less to disable limiting.
+     * @param burst calls a uid can issue at once.
+     * @param nowMillis current time, in milliseconds.
+     */
+    CallerRateLimiter(int ratePerSecond, int burst, long nowMillis) {
+        mTokensPerMilli = ratePerSecond / 1_000.0;
+        mBurst = Math.max(1, burst);
+        mGlobalBucket = new Bucket(mBurst * GLOBAL_FACTOR, nowMillis);
+    }
+
+    /**
+     * Admit a call.
+     *
+     * @param uid calling uid.
+     * @param nowMillis current time, in milliseconds.
+     * @return false if the call must be rejected.
+     */
+    synchronized boolean tryAcquire(int uid, long nowMillis) {
+        if (mTokensPerMilli <= 0) {
+            mAccepted++;
+            return true;
+        }
+
+        Bucket bucket = mBuckets.get(uid);
+        if (bucket == null) {
+            if (mBuckets.size() >= MAX_TRACKED_UIDS) {
+                pruneFullBucketsLocked(nowMillis);
+            }
+            bucket = new Bucket(mBurst, nowMillis);
+            mBuckets.put(uid, bucket);
+        }
+
+        bucket.refill(nowMillis, mTokensPerMilli, mBurst);
+        mGlobalBucket.refill(nowMillis, mTokensPerMilli * GLOBAL_FACTOR, mBurst * GLOBAL_FACTOR);
+
+        if (bucket.mTokens < 1 || mGlobalBucket.mTokens < 1) {
+            mRejected++;
+            mRejectedPerUid.put(uid, mRejectedPerUid.get(uid) + 1);
+            return false;
+        }
+
+        bucket.mTokens--;
+        mGlobalBucket.mTokens--;
+        mAccepted++;
+
+        return true;
+    }
+
+    @GuardedBy("this")
+    private void pruneFullBucketsLocked(long nowMillis) {
+        for (int i = mBuckets.size() - 1; i >= 0; i--) {
+            final Bucket bucket = mBuckets.valueAt(i);
+            bucket.refill(nowMillis, mTokensPerMilli, mBurst);
+            if (bucket.mTokens >= mBurst) {
+                mBuckets.removeAt(i);
+            }
+        }
+    }
+
+    /**
+     * Dump the rate limiter state.
+     */
+    synchronized void dump(@NonNull PrintWriter pw, @NonNull String prefix) {
+        if (mTokensPerMilli <= 0) {
+            pw.println(prefix + "Disabled, accepted: " + mAccepted);
+            return;
+        }
+
+        pw.println(prefix + "Rate: " + Math.round(mTokensPerMilli * 1_000) + "/s, burst: "
+                + mBurst + " (x" + GLOBAL_FACTOR + " for all callers)");
+        pw.println(prefix + "Accepted: " + mAccepted + ", rejected: " + mRejected);
+        for (int i = 0; i < mRejectedPerUid.size(); i++) {
+            pw.println(prefix + "  uid " + mRejectedPerUid.keyAt(i) + " rejected: "
+                    + mRejectedPerUid.valueAt(i));
+        }
+    }
+}
@@ -0,0 +1,352 @@
+/*
+ * Copyright (C) 2023 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.devicelock;
+
+import static android.content.pm.PackageManager.COMPONENT_ENABLED_STATE_DEFAULT;
+import static android.content.pm.PackageManager.DONT_KILL_APP;
+
+import android.annotation.NonNull;
+import android.annotation.Nullable;
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.content.pm.PackageManager;
+import android.content.pm.PackageManager.NameNotFoundException;
+import android.os.Binder;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.PatternMatcher;
+import android.os.Process;
+import android.os.SystemClock;
+import android.os.UserHandle;
+import android.util.Slog;
+import android.util.SparseArray;
+import android.util.SparseBooleanArray;
+
+import com.android.internal.annotations.GuardedBy;
+import com.android.internal.annotations.VisibleForTesting;
+
+import java.io.PrintWriter;
+
+/**
+ * Restores the default enabled state of the controller package for a user.
+ *
+ * Requests are made when switching to a user and handled on a dedicated background thread, so
+ * that neither user switches nor the controller connections wait for package manager. The first
+ * connection to the controller for a user handles the request of that user if it has not run
+ * yet (see {@link #awaitDefaultEnabledState}), later API calls never do.
+ * The package manager of each user is kept, the enabled state is only written when it differs
+ * from the default one, and users already in the default state are remembered until the
+ * controller package changes.
+ */
+final class ControllerPackageEnabler {
+    private static final String TAG = "ControllerPackageEnabler";
+
+    private final Context mContext;
+    private final String mPackageName;
+    private final Handler mHandler;
+
+    // Package manager for the controller package, keyed by user id.
+    @GuardedBy("this")
+    private final SparseArray<PackageManager> mPackageManagers = new SparseArray<>();
+
+    // Users for which a request is queued, keyed by user id.
+    @GuardedBy("this")
+    private final SparseBooleanArray mPendingUsers = new SparseBooleanArray();
+
+    // Users for which the package is known to be in its default state, keyed by user id.
+    @GuardedBy("this")
+    private final SparseBooleanArray mDefaultStateUsers = new SparseBooleanArray();
+
+    // Held while a queued request is handled, so that awaitDefaultEnabledState() returns once
+    // it is done.
+    private final Object mPendingRequestLock = new Object();
+
+    // Incremented on each package change, to avoid remembering a state read before a change.
+    @GuardedBy("this")
+    private int mGeneration;
+
+    @GuardedBy("this")
+    private boolean mReceiverRegistered;
+
+    // Registration is only attempted once, a partial one must not be repeated.
+    @GuardedBy("this")
+    private boolean mRegistrationFailed;
+
+    @GuardedBy("this")
+    private int mStateWrites;
+
+    @GuardedBy("this")
+    private int mSkipped;
+
+    @GuardedBy("this")
+    private int mFailures;
+
+    private final LatencyHistogram mLatency = new LatencyHistogram();
+
+    private final BroadcastReceiver mPackageReceiver = new BroadcastReceiver() {
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            // The enabled state may have been changed, check it again on the next request.
+            final int uid = intent.getIntExtra(Intent.EXTRA_UID, Process.INVALID_UID);
+            if (uid == Process.INVALID_UID) {
+                clearDefaultStateUsers();
+            } else {
+                clearDefaultStateUser(UserHandle.getUserHandleForUid(uid));
+            }
+        }
+    };
+
+    /**
+     * Create a new package enabler, handling its requests on its own background thread.
+     *
+     * @param context the context for this call.
+     * @param packageName the controller package name.
+     */
+    ControllerPackageEnabler(@NonNull Context context, @NonNull String packageName) {
+        this(context, packageName, newHandler());
+    }
+
+    @VisibleForTesting
+    ControllerPackageEnabler(@NonNull Context context, @NonNull String packageName,
+            @NonNull Handler handler) {
+        mContext = context;
+        mPackageName = packageName;
+        mHandler = handler;
+    }
+
+    private static Handler newHandler() {
+        final HandlerThread handlerThread = new HandlerThread("ControllerPackageEnablerThread",
+                Process.THREAD_PRIORITY_BACKGROUND);
+        handlerThread.start();
+
+        return new Handler(handlerThread.getLooper());
+    }
+
+    /**
+     * Restore the default enabled state of the controller package for the given user, in the
+     * background. Called when switching to the user, nothing is queued if the package is already
+     * known to be in its default state for the user.
+     */
+    void setDefaultEnabledStateAsync(@NonNull UserHandle userHandle) {
+        synchronized (this) {
+            if (mDefaultStateUsers.get(userHandle.getIdentifier())) {
+                mSkipped++;
+                return;
+            }
+            mPendingUsers.put(userHandle.getIdentifier(), true);
+        }
+        mHandler.post(() -> handlePendingRequest(userHandle));
+    }
+
+    /**
+     * Wait for the request queued for the given user, if any, handling it on the calling thread
+     * if not started yet. Called once before the controller is first bound for the user.
+     */
+    void awaitDefaultEnabledState(@NonNull UserHandle userHandle) {
+        synchronized (this) {
+            if (!mPendingUsers.get(userHandle.getIdentifier())) {
+                return;
+            }
+        }
+
+        // Runs with the identity of the API callers.
+        final long identity = Binder.clearCallingIdentity();
+        try {
+            handlePendingRequest(userHandle);
+        } finally {
+            Binder.restoreCallingIdentity(identity);
+        }
+    }
+
+    private void handlePendingRequest(@NonNull UserHandle userHandle) {
+        synchronized (mPendingRequestLock) {
+            synchronized (this) {
+                if (!mPendingUsers.get(userHandle.getIdentifier())) {
+                    // Already handled.
+                    return;
+                }
+                mPendingUsers.delete(userHandle.getIdentifier());
+            }
+
+            setDefaultEnabledState(userHandle);
+        }
+    }
+
+    /**
+     * Restore the default enabled state of the controller package for the given user, on the
+     * calling thread.
+     */
+    void setDefaultEnabledState(@NonNull UserHandle userHandle) {
+        final long startNanos = SystemClock.elapsedRealtimeNanos();
+        try {
+            setDefaultEnabledStateInternal(userHandle);
+        } finally {
+            mLatency.record(SystemClock.elapsedRealtimeNanos() - startNanos);
+        }
+    }
+
+    private void setDefaultEnabledStateInternal(@NonNull UserHandle userHandle) {
+        final int generation;
+        synchronized (this) {
+            if (mDefaultStateUsers.get(userHandle.getIdentifier())) {
+                mSkipped++;
+                return;
+            }
+            generation = mGeneration;
+        }
+
+        final PackageManager packageManager = getPackageManager(userHandle);
+        if (packageManager == null) {
+            return;
+        }
+
+        // Registered before the state is read, so that no change goes unnoticed.
+        registerPackageReceiver();
+
+        try {
+            if (packageManager.getApplicationEnabledSetting(mPackageName)
+                    == COMPONENT_ENABLED_STATE_DEFAULT) {
+                synchronized (this) {
+                    rememberDefaultStateUserLocked(userHandle, generation);
+                    mSkipped++;
+                }
+                return;
+            }
+
+            packageManager.setApplicationEnabledSetting(mPackageName,
+                    COMPONENT_ENABLED_STATE_DEFAULT, DONT_KILL_APP);
+        } catch (IllegalArgumentException e) {
+            // The package is not installed for this user.
+            Slog.e(TAG, "Cannot set the enabled state for: " + userHandle, e);
+            onUserRemoved(userHandle);
+            synchronized (this) {
+                mFailures++;
+            }
+            return;
+        }
+
+        synchronized (this) {
+            rememberDefaultStateUserLocked(userHandle, generation);
+            mStateWrites++;
+        }
+    }
+
+    // Only remembered if package changes are observed and none happened since the given
+    // generation, the state may be stale otherwise.
+    @GuardedBy("this")
+    private void rememberDefaultStateUserLocked(@NonNull UserHandle userHandle, int generation) {
+        if (mReceiverRegistered && mGeneration == generation) {
+            mDefaultStateUsers.put(userHandle.getIdentifier(), true);
+        }
+    }
+
+    private void registerPackageReceiver() {
+        synchronized (this) {
+            if (mReceiverRegistered || mRegistrationFailed) {
+                return;
+            }
+
+            final IntentFilter packageFilter = new IntentFilter();
+            packageFilter.addAction(Intent.ACTION_PACKAGE_ADDED);
+            packageFilter.addAction(Intent.ACTION_PACKAGE_CHANGED);
+            packageFilter.addDataScheme("package");
+            packageFilter.addDataSchemeSpecificPart(mPackageName, PatternMatcher.PATTERN_LITERAL);
+
+            final long identity = Binder.clearCallingIdentity();
+            try {
+                mContext.registerReceiverForAllUsers(mPackageReceiver, packageFilter,
+                        null /* broadcastPermission */, mHandler);
+                mReceiverRegistered = true;
+            } catch (RuntimeException e) {
+                Slog.e(TAG, "Cannot observe package changes, the state will not be remembered",
+                        e);
+                mRegistrationFailed = true;
+            } finally {
+                Binder.restoreCallingIdentity(identity);
+            }
+        }
+    }
+
+    private void clearDefaultStateUser(@NonNull UserHandle userHandle) {
+        synchronized (this) {
+            mDefaultStateUsers.delete(userHandle.getIdentifier());
+            mGeneration++;
+        }
+    }
+
+    private void clearDefaultStateUsers() {
+        synchronized (this) {
+            mDefaultStateUsers.clear();
+            mGeneration++;
+        }
+    }
+
+    /**
+     * Drop the state kept for a user that is stopping or removed.
+     */
+    void onUserRemoved(@NonNull UserHandle userHandle) {
+        synchronized (this) {
+            mPackageManagers.remove(userHandle.getIdentifier());
+            mDefaultStateUsers.delete(userHandle.getIdentifier());
+        }
+    }
+
+    @Nullable
+    private PackageManager getPackageManager(@NonNull UserHandle userHandle) {
+        final int userId = userHandle.getIdentifier();
+        synchronized (this) {
+            final PackageManager packageManager = mPackageManagers.get(userId);
+            if (packageManager != null) {
+                return packageManager;
+            }
+        }
+
+        final Context controllerContext;
+        try {
+            controllerContext = mContext.createPackageContextAsUser(mPackageName,
+                    0 /* flags */, userHandle);
+        } catch (NameNotFoundException e) {
+            Slog.e(TAG, "Cannot create package context for: " + userHandle, e);
+            synchronized (this) {
+                mFailures++;
+            }
+            return null;
+        }
+
+        final PackageManager packageManager = controllerContext.getPackageManager();
+        synchronized (this) {
+            mPackageManagers.put(userId, packageManager);
+        }
+
+        return packageManager;
+    }
+
+    /**
+     * Dump the enabler state.
+     */
+    void dump(@NonNull PrintWriter pw, @NonNull String prefix) {
+        synchronized (this) {
+            pw.println(prefix + "Users: " + mPackageManagers.size() + ", in default state: "
+                    + mDefaultStateUsers.size() + ", pending: " + mPendingUsers.size()
+                    + ", state writes: " + mStateWrites + ", skipped: " + mSkipped
+                    + ", failures: " + mFailures);
+        }
+        mLatency.dump(pw, prefix, "Latency");
+    }
+}
@@ -0,0 +1,118 @@
+/*
+ * Copyright (C) 2023 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.devicelock;
+
+import android.annotation.NonNull;
+import android.provider.DeviceConfig;
+
+import java.util.Set;
+import java.util.concurrent.Executor;
+
+/**
+ * Configuration of the device lock system service, backed by {@link DeviceConfig}.
+ */
+final class DeviceLockConfig {
+    private static final String NAMESPACE = "device_lock";
+
+    // Boot phase at which the controller is bound ahead of the first API call on enrolled
+    // devices. 0 (the default) only binds the controller on demand.
+    private static final String KEY_PREBIND_BOOT_PHASE = "prebind_boot_phase";
+
+    // Interval between pings of the bound controller, to detect and rebind a wedged or dead
+    // controller before API calls time out. 0 (the default) disables the pings.
+    private static final String KEY_HEALTH_CHECK_INTERVAL_MILLIS =
+            "health_check_interval_millis";
+
+    // Admission control of the API calls, per calling uid: sustained calls per second (0 or less,
+    // the default, disables the limit) and calls that can be issued at once. Mutations (lock,
+    // unlock, clear) and reads are limited separately.
+    private static final String KEY_MUTATION_RATE_PER_SECOND = "mutation_rate_per_second";
+    private static final String KEY_MUTATION_BURST = "mutation_burst";
+    private static final String KEY_READ_RATE_PER_SECOND = "read_rate_per_second";
+    private static final String KEY_READ_BURST = "read_burst";
+
+    private static final Set<String> RATE_LIMIT_KEYS = Set.of(KEY_MUTATION_RATE_PER_SECOND,
+            KEY_MUTATION_BURST, KEY_READ_RATE_PER_SECOND, KEY_READ_BURST);
+
+    private static final int DEFAULT_MUTATION_RATE_PER_SECOND = 0;
+    private static final int DEFAULT_MUTATION_BURST = 20;
+    private static final int DEFAULT_READ_RATE_PER_SECOND = 0;
+    private static final int DEFAULT_READ_BURST = 200;
+
+    private DeviceLockConfig() {
+    }
+
+    /**
+     * Boot phase at which the controller should be pre-bound, or 0 if disabled.
+     */
+    static int getPrebindBootPhase() {
+        return DeviceConfig.getInt(NAMESPACE, KEY_PREBIND_BOOT_PHASE, 0 /* defaultValue */);
+    }
+
+    /**
+     * Interval between pings of the bound controller, or 0 if disabled.
+     */
+    static long getHealthCheckIntervalMillis() {
+        return DeviceConfig.getLong(NAMESPACE, KEY_HEALTH_CHECK_INTERVAL_MILLIS,
+                0 /* defaultValue */);
+    }
+
+    /**
+     * Sustained lock, unlock and clear calls per second per uid, or 0 or less if not limited.
+     */
+    static int getMutationRatePerSecond() {
+        return DeviceConfig.getInt(NAMESPACE, KEY_MUTATION_RATE_PER_SECOND,
+                DEFAULT_MUTATION_RATE_PER_SECOND);
+    }
+
+    /**
+     * Lock, unlock and clear calls a uid can issue at once.
+     */
+    static int getMutationBurst() {
+        return DeviceConfig.getInt(NAMESPACE, KEY_MUTATION_BURST, DEFAULT_MUTATION_BURST);
+    }
+
+    /**
+     * Sustained read calls per second per uid, or 0 or less if not limited.
+     */
+    static int getReadRatePerSecond() {
+        return DeviceConfig.getInt(NAMESPACE, KEY_READ_RATE_PER_SECOND,
+                DEFAULT_READ_RATE_PER_SECOND);
+    }
+
+    /**
+     * Read calls a uid can issue at once.
+     */
+    static int getReadBurst() {
+        return DeviceConfig.getInt(NAMESPACE, KEY_READ_BURST, DEFAULT_READ_BURST);
+    }
+
+    /**
+     * Run the given listener whenever one of the rate limits changes.
+     */
+    static void addOnRateLimitsChangedListener(@NonNull Executor executor,
+            @NonNull Runnable listener) {
+        DeviceConfig.addOnPropertiesChangedListener(NAMESPACE, executor, properties -> {
+            for (String key : properties.getKeyset()) {
+                if (RATE_LIMIT_KEYS.contains(key)) {
+                    listener.run();
+                    return;
+                }
+            }
+        });
+    }
+}
@@ -22,24 +22,29 @@ import android.content.ComponentName;
 import android.content.Context;
 import android.content.Intent;
 import android.content.ServiceConnection;
-import android.os.Bundle;
+import android.os.DeadObjectException;
 import android.os.Handler;
-import android.os.HandlerThread;
 import android.os.IBinder;
 import android.os.OutcomeReceiver;
-import android.os.RemoteCallback;
+import android.os.RemoteException;
+import android.os.SystemClock;
 import android.os.UserHandle;
 import android.text.TextUtils;
-import android.util.ArraySet;
 import android.util.Slog;
+import android.util.SparseArray;
 
+import com.android.devicelockcontroller.IDeviceLockControllerCallback;
 import com.android.devicelockcontroller.IDeviceLockControllerService;
 import com.android.internal.annotations.GuardedBy;
+import com.android.internal.annotations.VisibleForTesting;
 
-import java.util.concurrent.Callable;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.io.PrintWriter;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
 import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * This class is used to establish a connection (bind) to the Device Lock Controller APK.
@@ -49,119 +54,823 @@ final class DeviceLockControllerConnector {
 
     private static final String TAG = "DeviceLockControllerConnector";
 
+    // Connection states. Transitions are:
+    //   UNBOUND -> BINDING (bindServiceAsUser() succeeded)
+    //   BINDING -> CONNECTED (onServiceConnected())
+    //   CONNECTED/BINDING -> DYING (controller died or binding died)
+    //   DYING -> UNBOUND -> BINDING (re-bind if there are calls waiting for the controller)
+    //   any state -> UNBOUND (unbind())
+    private static final int STATE_UNBOUND = 0;
+    private static final int STATE_BINDING = 1;
+    private static final int STATE_CONNECTED = 2;
+    private static final int STATE_DYING = 3;
+
+    @GuardedBy("mLock")
+    private int mConnectionState = STATE_UNBOUND;
+
     @GuardedBy("mLock")
     private IDeviceLockControllerService mDeviceLockControllerService;
 
     @GuardedBy("mLock")
     private ServiceConnection mServiceConnection;
 
+    // Set once the connector is dropped, it then never binds again so that a caller still holding
+    // it does not bind next to the connector replacing it.
+    @GuardedBy("mLock")
+    private boolean mClosed;
+
+    // Calls go through two lanes. Mutations (lock, unlock, clear) are dispatched one at a time,
+    // in order, and ahead of reads on the handler. Reads are dispatched as soon as the controller
+    // is connected, concurrent identical reads are shared (see joinInFlightRead()) and the lock
+    // state is usually served from the cache, so that flooding reads does not delay mutations.
+    // No thread ever waits for the connection to be established.
+
+    // Reads issued while the controller is not connected, dispatched once it is.
+    @GuardedBy("mLock")
+    private final ArrayDeque<PendingRequest<?>> mPendingReads = new ArrayDeque<>();
+
+    // Mutations waiting for the controller or for the previous mutation to complete.
+    @GuardedBy("mLock")
+    private final ArrayDeque<PendingRequest<?>> mPendingMutations = new ArrayDeque<>();
+
+    // Mutation dispatched to the controller and not completed yet, if any.
+    @GuardedBy("mLock")
+    private PendingRequest<?> mActiveMutation;
+
+    private static final long NO_STATE_SEQUENCE = -1;
+    private static final int UNKNOWN_DEVICE_STATE = -1;
+
+    // Mirrors DeviceStateController.DeviceState.UNLOCKED.
+    private static final int DEVICE_STATE_UNLOCKED = 5;
+
+    // Last lock state reported by the controller, or null if unknown. The controller pushes its
+    // state whenever it changes (see onDeviceStateChanged()), so that isDeviceLocked() does not
+    // need to bind to the controller while it is known.
+    @GuardedBy("mLock")
+    private Boolean mCachedIsDeviceLocked;
+
+    @GuardedBy("mLock")
+    private int mCachedDeviceState = UNKNOWN_DEVICE_STATE;
+
+    // True if the cached device state was pushed by the controller instance currently bound. A
+    // state pushed by a previous instance may be stale, e.g. if the controller data was cleared.
+    @GuardedBy("mLock")
+    private boolean mDeviceStateFromBoundController;
+
+    @GuardedBy("mLock")
+    private long mStateSequence = NO_STATE_SEQUENCE;
+
+    // True while the cached lock state was restored from disk and not confirmed by the controller.
+    @GuardedBy("mLock")
+    private boolean mCachedStateRestored;
+
+    @GuardedBy("mLock")
+    private boolean mRestoredStateRefreshing;
+
+    // A restored lock state is only confirmed with the controller once boot completes, binding it
+    // during early boot would delay boot.
+    @GuardedBy("mLock")
+    private boolean mBootCompleted;
+
+    // Number of mutations dispatched to the controller. Any of them may change the lock state,
+    // the cached one is dropped when they are dispatched, and results of calls dispatched before
+    // the last one are not cached.
+    @GuardedBy("mLock")
+    private int mMutationEpoch;
+
     private final Context mContext;
     private final ComponentName mComponentName;
     private final Handler mHandler;
+    private final ApiMetrics mMetrics;
 
-    private static final UserHandle USER_HANDLE_SYSTEM = UserHandle.of(0);
+    private final UserHandle mUserHandle;
 
-    private final ExecutorService mExecutorService = Executors.newCachedThreadPool();
-
-    private static final long INACTIVITY_TIMEOUT_MILLIS = 1_000 * 60 * 1; // One minute.
     private static final long API_CALL_TIMEOUT_MILLIS = 1_000 * 10;       // Ten seconds.
 
-    // The following hash set is used for API timeout detection. We do oneway calls into the
-    // device lock controller service, and the service is supposed to reply with another one way
-    // call. Once we call into the device lock controller service, we add the callback to this
-    // hash map and remove it once the remote invocation from the controller is received by
-    // the system service or a timeout occurred. In this way, we guarantee that the callback
-    // will be always invoked (and it's only invoked once).
-    @GuardedBy("mPendingCallbacks")
-    private final ArraySet<OutcomeReceiver> mPendingCallbacks = new ArraySet<>();
-
-    private final Runnable mUnbindDeviceLockControllerService = () -> {
-        Slog.i(TAG, "Unbinding DeviceLockControllerService");
-        unbind();
+    private final long mApiCallTimeoutMillis;
+
+    // A healthy controller answers a ping right away, from its main thread.
+    private static final long PING_TIMEOUT_MILLIS = 1_000 * 2;            // Two seconds.
+
+    // Number of consecutive failed calls (timeouts, failed pings and bind failures) after which
+    // calls fail fast for CIRCUIT_BREAKER_OPEN_MILLIS. Calls go through again once that period
+    // elapses, the next failure opens the breaker again and a success closes it.
+    private static final int CIRCUIT_BREAKER_THRESHOLD = 3;
+    private static final long CIRCUIT_BREAKER_OPEN_MILLIS = 1_000 * 30;   // Thirty seconds.
+
+    // Interval between pings of the bound controller, 0 if disabled.
+    private final long mHealthCheckIntervalMillis;
+
+    @GuardedBy("mLock")
+    private boolean mHealthCheckInFlight;
+
+    @GuardedBy("mLock")
+    private int mHealthCheckFailures;
+
+    // Set when the binding is torn down because the controller is not healthy, to bind again
+    // right away instead of on the next call.
+    @GuardedBy("mLock")
+    private boolean mRebindAfterDying;
+
+    @GuardedBy("mLock")
+    private int mConsecutiveFailures;
+
+    @GuardedBy("mLock")
+    private long mCircuitOpenUntilUptimeMillis;
+
+    @GuardedBy("mLock")
+    private int mCircuitBreakerTrips;
+
+    // Idempotent calls in flight when the controller dies are replayed once on the next binding
+    // (see replayOrFailInFlightCallsLocked()), at most REPLAY_BUDGET of them per
+    // REPLAY_BUDGET_WINDOW_MILLIS, so that a controller crashing on every call is not fed replays.
+    private static final int REPLAY_BUDGET = 20;
+    private static final long REPLAY_BUDGET_WINDOW_MILLIS = 1_000 * 60;   // One minute.
+
+    @GuardedBy("mLock")
+    private long mReplayWindowStartUptimeMillis;
+
+    @GuardedBy("mLock")
+    private int mReplaysInWindow;
+
+    @GuardedBy("mLock")
+    private int mReplays;
+
+    @GuardedBy("mLock")
+    private int mReplaysOverBudget;
+
+    // Resolution and size of the timer wheel used for API timeouts. A full rotation is longer
+    // than API_CALL_TIMEOUT_MILLIS, so timeouts never wrap around the wheel.
+    private static final long TIMEOUT_TICK_MILLIS = 100;
+    private static final int TIMEOUT_WHEEL_SIZE = 128;
+
+    // The following request table is used for API timeout detection. We do oneway calls into
+    // the device lock controller service, and the service is supposed to reply with another one
+    // way call. Once we call into the device lock controller service, we add the request to this
+    // table, keyed by a monotonically increasing id, and remove it once the remote invocation
+    // from the controller is received by the system service or a timeout occurred. In this way,
+    // we guarantee that the callback will be always invoked (and it's only invoked once).
+    @GuardedBy("mPendingRequests")
+    private final HashMap<Integer, PendingRequest<?>> mPendingRequests = new HashMap<>();
+
+    private final AtomicInteger mNextRequestId = new AtomicInteger();
+
+    private final HashedWheelTimer mTimeoutTimer;
+
+    // Read-only calls that can be shared between concurrent callers.
+    private static final int READ_IS_DEVICE_LOCKED = 0;
+    private static final int READ_GET_DEVICE_ID = 1;
+    private static final int READ_GET_DEVICE_STATUS = 2;
+
+    // In-flight read-only calls, keyed by READ_* type. The first caller issues the controller
+    // call, concurrent callers attach to it and get the same result.
+    @GuardedBy("mInFlightReads")
+    private final SparseArray<InFlightRead> mInFlightReads = new SparseArray<>();
+
+    // Number of mutations accepted, callers only attach to reads issued after the last one.
+    private final AtomicInteger mAcceptedMutations = new AtomicInteger();
+
+    private final KeepAlivePolicy mKeepAlivePolicy;
+
+    @GuardedBy("mLock")
+    private long mLastCallUptimeMillis;
+
+    @GuardedBy("mLock")
+    private boolean mIdleCheckScheduled;
+
+    // Set by prebind(), so that a binding made at boot is not dropped before the first call into
+    // the controller. Cleared by that call, after which the keep-alive policy applies.
+    @GuardedBy("mLock")
+    private boolean mHeldUntilFirstCall;
+
+    // Single idle check, rescheduled lazily instead of being reposted on every call.
+    private final Runnable mIdleCheck = () -> {
+        synchronized (mLock) {
+            mIdleCheckScheduled = false;
+
+            // The first call schedules the next check.
+            if (mServiceConnection == null || mHeldUntilFirstCall) {
+                return;
+            }
+
+            final long now = SystemClock.uptimeMillis();
+            final long idleTimeoutMillis = mKeepAlivePolicy.getIdleTimeoutMillis(now);
+            if (hasPendingCalls() || now < mLastCallUptimeMillis + idleTimeoutMillis) {
+                scheduleIdleCheckLocked(Math.max(now, mLastCallUptimeMillis) + idleTimeoutMillis);
+                return;
+            }
+
+            Slog.i(TAG, "Unbinding DeviceLockControllerService");
+            unbindLocked();
+            failPendingCallsLocked(new Exception("Device Lock Controller service unbound"));
+        }
+    };
+
+    private final Runnable mFinishDying = () -> {
+        synchronized (mLock) {
+            if (mConnectionState != STATE_DYING) {
+                return;
+            }
+
+            unbindLocked();
+
+            // Calls queued while the controller was going away need a new binding.
+            final boolean rebind = mRebindAfterDying;
+            mRebindAfterDying = false;
+            if ((rebind || !mPendingReads.isEmpty() || !mPendingMutations.isEmpty())
+                    && !bindLocked()) {
+                failPendingCallsLocked(new Exception("Failed to bind to service"));
+            }
+        }
+    };
+
+    // Ping the controller, only scheduled while connected.
+    private final Runnable mHealthCheck = () -> {
+        final IDeviceLockControllerService service;
+        synchronized (mLock) {
+            if (mConnectionState != STATE_CONNECTED || mHealthCheckInFlight) {
+                return;
+            }
+            service = mDeviceLockControllerService;
+            mHealthCheckInFlight = true;
+        }
+
+        // Pings bypass callControllerApi(), they must not keep the controller bound.
+        final PendingRequest<Boolean> request = newPendingRequest(ApiMetrics.API_PING,
+                new OutcomeReceiver<>() {
+                    @Override
+                    public void onResult(Boolean result) {
+                        onHealthCheckDone(service, true /* healthy */);
+                    }
+
+                    @Override
+                    public void onError(Exception ex) {
+                        onHealthCheckDone(service, false /* healthy */);
+                    }
+                }, PING_TIMEOUT_MILLIS);
+        request.mBody = IDeviceLockControllerService::ping;
+        request.mReply = new ControllerReply() {
+            @Override
+            public void onBooleanResult(boolean result) {
+                post(request, () -> request.onResult(result));
+            }
+        };
+        request.mTarget = service;
+        dispatch(service, request);
     };
 
-    private <Result> void callControllerApi(Callable<Void> body,
+    /**
+     * Lock state and device id, as returned by {@link #getDeviceStatus}.
+     */
+    static final class DeviceStatus {
+        final boolean mIsDeviceLocked;
+        @Nullable
+        final String mDeviceId;
+
+        DeviceStatus(boolean isDeviceLocked, @Nullable String deviceId) {
+            mIsDeviceLocked = isDeviceLocked;
+            mDeviceId = deviceId;
+        }
+    }
+
+    /**
+     * A remote invocation on the controller service. The controller replies on the callback,
+     * with the given request id.
+     */
+    private interface ControllerCall {
+        void call(@NonNull IDeviceLockControllerService service, int requestId,
+                @NonNull IDeviceLockControllerCallback callback) throws RemoteException;
+    }
+
+    /**
+     * Handler of the controller reply to a call. Only the method matching the reply type of the
+     * call is overridden, other reply types are protocol errors.
+     */
+    private interface ControllerReply {
+        default void onBooleanResult(boolean result) {
+            throw new IllegalStateException("Unexpected boolean result");
+        }
+
+        default void onStringResult(@Nullable String result) {
+            throw new IllegalStateException("Unexpected string result");
+        }
+
+        default void onDeviceStatusResult(boolean isLocked, @Nullable String deviceId) {
+            throw new IllegalStateException("Unexpected device status result");
+        }
+    }
+
+    /**
+     * An API call, from its issue until its callback is invoked. Results and errors must be
+     * delivered through the request, so that the metrics for the call are recorded.
+     */
+    private final class PendingRequest<Result> implements OutcomeReceiver<Result, Exception> {
+        final int mId;
+        final int mApi;
+        final boolean mIsMutation;
+        final OutcomeReceiver<Result, Exception> mCallback;
+        final long mStartNanos = SystemClock.elapsedRealtimeNanos();
+        ControllerCall mBody;
+        ControllerReply mReply;
+        HashedWheelTimer.Timeout mTimeout;
+
+        // Time at which the call was dispatched to the controller and at which its result was
+        // received, or 0 if not reached.
+        volatile long mDispatchNanos;
+        volatile long mResultNanos;
+
+        // Controller the call is dispatched to, null while waiting for the controller.
+        volatile IDeviceLockControllerService mTarget;
+
+        @GuardedBy("mLock")
+        boolean mReplayed;
+
+        // Mutation epoch at which the call was dispatched.
+        @GuardedBy("mLock")
+        int mMutationEpoch;
+
+        PendingRequest(int id, int api, OutcomeReceiver<Result, Exception> callback) {
+            mId = id;
+            mApi = api;
+            mIsMutation = isMutation(api);
+            mCallback = callback;
+        }
+
+        @Override
+        public void onResult(Result result) {
+            mCallback.onResult(result);
+            recordCompletion(ApiMetrics.OUTCOME_SUCCESS);
+        }
+
+        @Override
+        public void onError(@NonNull Exception error) {
+            mCallback.onError(error);
+            recordCompletion(error instanceof TimeoutException
+                    ? ApiMetrics.OUTCOME_TIMEOUT : ApiMetrics.OUTCOME_ERROR);
+        }
+
+        private void recordCompletion(int outcome) {
+            final long now = SystemClock.elapsedRealtimeNanos();
+            mMetrics.recordOutcome(mApi, outcome);
+            if (mResultNanos != 0) {
+                mMetrics.recordLatency(mApi, ApiMetrics.PHASE_CALLBACK_DELIVERY,
+                        now - mResultNanos);
+            }
+            mMetrics.recordLatency(mApi, ApiMetrics.PHASE_TOTAL, now - mStartNanos);
+        }
+    }
+
+    private static boolean isMutation(int api) {
+        return api == ApiMetrics.API_LOCK_DEVICE || api == ApiMetrics.API_UNLOCK_DEVICE
+                || api == ApiMetrics.API_CLEAR_DEVICE_RESTRICTIONS;
+    }
+
+    // Calls that can be issued again when the controller dies before replying. Reads have no side
+    // effect, and lock and unlock move to a target state, the controller completing them right
+    // away if already in that state. Clearing the restrictions is not repeatable.
+    private static boolean isReplayable(int api) {
+        return api == ApiMetrics.API_LOCK_DEVICE || api == ApiMetrics.API_UNLOCK_DEVICE
+                || api == ApiMetrics.API_IS_DEVICE_LOCKED || api == ApiMetrics.API_GET_DEVICE_ID
+                || api == ApiMetrics.API_GET_DEVICE_LOCK_STATUS;
+    }
+
+    /**
+     * A read-only call in flight, and the callers waiting for its result.
+     */
+    private static final class InFlightRead {
+        // Number of mutations accepted when the call was issued.
+        final int mAcceptedMutations;
+        final ArrayList<OutcomeReceiver> mWaiters = new ArrayList<>();
+
+        InFlightRead(int acceptedMutations) {
+            mAcceptedMutations = acceptedMutations;
+        }
+    }
+
+    private <Result> PendingRequest<Result> newPendingRequest(int api,
+            OutcomeReceiver<Result, Exception> callback) {
+        return newPendingRequest(api, callback, mApiCallTimeoutMillis);
+    }
+
+    private <Result> PendingRequest<Result> newPendingRequest(int api,
+            OutcomeReceiver<Result, Exception> callback, long timeoutMillis) {
+        final PendingRequest<Result> request =
+                new PendingRequest<>(mNextRequestId.incrementAndGet(), api, callback);
+
+        synchronized (mPendingRequests) {
+            // Start timeout for this call. This also covers the time spent waiting for the
+            // binding.
+            request.mTimeout = mTimeoutTimer.schedule(() -> {
+                if (removePendingRequest(request.mId) != null) {
+                    // We hit a timeout, execute the callback. Only calls that reached the
+                    // controller count as its failure, not calls stuck in a local queue.
+                    if (request.mDispatchNanos != 0) {
+                        recordControllerFailure();
+                    }
+                    request.onError(new TimeoutException());
+                }
+            }, timeoutMillis);
+            mPendingRequests.put(request.mId, request);
+        }
+
+        return request;
+    }
+
+    @Nullable
+    private PendingRequest<?> removePendingRequest(int requestId) {
+        final PendingRequest<?> request;
+        synchronized (mPendingRequests) {
+            request = mPendingRequests.remove(requestId);
+        }
+        if (request != null) {
+            request.mTimeout.cancel();
+            if (request.mIsMutation) {
+                onMutationCompleted(request);
+            }
+        }
+
+        return request;
+    }
+
+    // Whether calls other than health check pings are pending, pings must not keep the
+    // controller bound.
+    private boolean hasPendingCalls() {
+        synchronized (mPendingRequests) {
+            for (PendingRequest<?> request : mPendingRequests.values()) {
+                if (request.mApi != ApiMetrics.API_PING) {
+                    return true;
+                }
+            }
+
+            return false;
+        }
+    }
+
+    private boolean isRequestPending(int requestId) {
+        synchronized (mPendingRequests) {
+            return mPendingRequests.containsKey(requestId);
+        }
+    }
+
+    private void callControllerApi(PendingRequest<?> request, ControllerCall body,
+            ControllerReply reply) {
+        final long now = SystemClock.uptimeMillis();
+        if (isCircuitOpen(now)) {
+            failCall(request, new Exception("Device Lock Controller unavailable"));
+            return;
+        }
+
+        mKeepAlivePolicy.onCall(now);
+
+        request.mBody = body;
+        request.mReply = reply;
+
+        synchronized (mLock) {
+            mLastCallUptimeMillis = now;
+            mHeldUntilFirstCall = false;
+            if (!mIdleCheckScheduled) {
+                scheduleIdleCheckLocked(now + mKeepAlivePolicy.getIdleTimeoutMillis(now));
+            }
+
+            if (request.mIsMutation) {
+                mAcceptedMutations.incrementAndGet();
+                mPendingMutations.add(request);
+            }
+
+            switch (mConnectionState) {
+                case STATE_CONNECTED:
+                    if (request.mIsMutation) {
+                        dispatchNextMutationLocked();
+                    } else {
+                        final IDeviceLockControllerService service = mDeviceLockControllerService;
+                        request.mTarget = service;
+                        mHandler.post(() -> dispatch(service, request));
+                    }
+                    return;
+                case STATE_UNBOUND:
+                    if (!bindLocked()) {
+                        mPendingMutations.remove(request);
+                        if (!mClosed) {
+                            recordControllerFailure();
+                        }
+                        break;
+                    }
+                    // Fall through, the call is dispatched once connected.
+                case STATE_BINDING:
+                case STATE_DYING:
+                    if (!request.mIsMutation) {
+                        mPendingReads.add(request);
+                    }
+                    return;
+            }
+        }
+
+        failCall(request, new Exception("Failed to bind to service"));
+    }
+
+    @GuardedBy("mLock")
+    private void dispatchNextMutationLocked() {
+        if (mActiveMutation != null || mConnectionState != STATE_CONNECTED) {
+            return;
+        }
+
+        PendingRequest<?> request;
+        while ((request = mPendingMutations.poll()) != null) {
+            // Skip the mutations that timed out while waiting for their turn.
+            if (isRequestPending(request.mId)) {
+                final IDeviceLockControllerService service = mDeviceLockControllerService;
+                final PendingRequest<?> mutation = request;
+                mActiveMutation = mutation;
+                mutation.mTarget = service;
+                mHandler.postAtFrontOfQueue(() -> dispatch(service, mutation));
+                return;
+            }
+        }
+    }
+
+    private boolean isCircuitOpen(long now) {
+        synchronized (mLock) {
+            return now < mCircuitOpenUntilUptimeMillis;
+        }
+    }
+
+    private void recordControllerFailure() {
+        synchronized (mLock) {
+            mConsecutiveFailures++;
+            final long now = SystemClock.uptimeMillis();
+            if (mConsecutiveFailures >= CIRCUIT_BREAKER_THRESHOLD
+                    && now >= mCircuitOpenUntilUptimeMillis) {
+                Slog.w(TAG, mConsecutiveFailures + " consecutive failures, failing calls for "
+                        + CIRCUIT_BREAKER_OPEN_MILLIS + "ms");
+                mCircuitOpenUntilUptimeMillis = now + CIRCUIT_BREAKER_OPEN_MILLIS;
+                mCircuitBreakerTrips++;
+            }
+        }
+    }
+
+    private void recordControllerSuccess() {
+        synchronized (mLock) {
+            mConsecutiveFailures = 0;
+            mCircuitOpenUntilUptimeMillis = 0;
+        }
+    }
+
+    @GuardedBy("mLock")
+    private void scheduleHealthCheckLocked() {
+        if (mHealthCheckIntervalMillis > 0) {
+            mHandler.removeCallbacks(mHealthCheck);
+            mHandler.postDelayed(mHealthCheck, mHealthCheckIntervalMillis);
+        }
+    }
+
+    private void onHealthCheckDone(@NonNull IDeviceLockControllerService service,
+            boolean healthy) {
+        synchronized (mLock) {
+            mHealthCheckInFlight = false;
+            if (service != mDeviceLockControllerService) {
+                // The connection changed in the meantime.
+                return;
+            }
+
+            if (healthy) {
+                scheduleHealthCheckLocked();
+                return;
+            }
+
+            Slog.w(TAG, "Health check failed, rebinding " + mComponentName.flattenToShortString());
+            mHealthCheckFailures++;
+            mRebindAfterDying = true;
+            startDyingLocked(false /* controllerDied */);
+        }
+    }
+
+    private void onMutationCompleted(@NonNull PendingRequest<?> request) {
+        synchronized (mLock) {
+            if (mActiveMutation == request) {
+                mActiveMutation = null;
+                dispatchNextMutationLocked();
+            }
+        }
+    }
+
+    // Completions of mutations also jump ahead of the queued reads.
+    private void post(@NonNull PendingRequest<?> request, @NonNull Runnable runnable) {
+        if (request.mIsMutation) {
+            mHandler.postAtFrontOfQueue(runnable);
+        } else {
+            mHandler.post(runnable);
+        }
+    }
+
+    @GuardedBy("mLock")
+    private void scheduleIdleCheckLocked(long uptimeMillis) {
+        mIdleCheckScheduled = true;
+        mHandler.postAtTime(mIdleCheck, uptimeMillis);
+    }
+
+    private void dispatch(@NonNull IDeviceLockControllerService service,
+            @NonNull PendingRequest<?> request) {
+        if (!isRequestPending(request.mId)) {
+            // Already timed out while waiting for the controller.
+            return;
+        }
+        if (request.mTarget != service) {
+            // The controller died before the dispatch, the call is replayed or already failed.
+            return;
+        }
+
+        // Calls are dispatched from the handler thread only, the epochs follow the order in
+        // which the controller receives the calls.
+        synchronized (mLock) {
+            if (request.mIsMutation) {
+                mMutationEpoch++;
+                mCachedIsDeviceLocked = null;
+                mCachedStateRestored = false;
+                mCachedDeviceState = UNKNOWN_DEVICE_STATE;
+            }
+            request.mMutationEpoch = mMutationEpoch;
+        }
+
+        request.mDispatchNanos = SystemClock.elapsedRealtimeNanos();
+        mMetrics.recordLatency(request.mApi, ApiMetrics.PHASE_BIND_WAIT,
+                request.mDispatchNanos - request.mStartNanos);
+
+        try {
+            request.mBody.call(service, request.mId, mControllerCallback);
+        } catch (DeadObjectException e) {
+            // Do not wait for onServiceDisconnected(), the calls in flight are replayed or failed
+            // when the binding is torn down, this one included.
+            synchronized (mLock) {
+                if (service == mDeviceLockControllerService) {
+                    Slog.w(TAG, "Device Lock Controller died during call " + request.mId);
+                    startDyingLocked(true /* controllerDied */);
+                    return;
+                }
+            }
+            failCall(request, e);
+        } catch (Exception e) {
+            failCall(request, e);
+        }
+    }
+
+    private void failCall(@NonNull PendingRequest<?> request, @NonNull Exception exception) {
+        if (removePendingRequest(request.mId) != null) {
+            post(request, () -> request.onError(exception));
+        }
+    }
+
+    @GuardedBy("mLock")
+    private void failPendingCallsLocked(@NonNull Exception exception) {
+        PendingRequest<?> request;
+        while ((request = mPendingReads.poll()) != null) {
+            failCall(request, exception);
+        }
+        while ((request = mPendingMutations.poll()) != null) {
+            failCall(request, exception);
+        }
+    }
+
+    /**
+     * Attach a caller to the in-flight read of the given type, if any. Reads issued before the
+     * last mutation was accepted may return the state from before it, callers are not attached
+     * to them.
+     *
+     * @return null if the caller was attached to an in-flight call, otherwise a callback that
+     *         delivers the result to this caller and every caller attached until completion.
+     */
+    @Nullable
+    private <Result> OutcomeReceiver<Result, Exception> joinInFlightRead(int read,
             OutcomeReceiver<Result, Exception> callback) {
-        Runnable r = () -> {
-            Exception exception = null;
-
-            mHandler.removeCallbacks(mUnbindDeviceLockControllerService);
-            mHandler.postDelayed(mUnbindDeviceLockControllerService, INACTIVITY_TIMEOUT_MILLIS);
+        final int acceptedMutations = mAcceptedMutations.get();
+        final InFlightRead inFlightRead;
+        synchronized (mInFlightReads) {
+            final InFlightRead current = mInFlightReads.get(read);
+            if (current != null && current.mAcceptedMutations == acceptedMutations) {
+                current.mWaiters.add(callback);
+                return null;
+            }
 
-            synchronized (mLock) {
-                // First, bind if not already bound.
-                if (bindLocked()) {
-                    while (mDeviceLockControllerService == null) {
-                        try {
-                            mLock.wait();
-                        } catch (InterruptedException e) {
-                            // Nothing to do, wait again if mService is still null.
-                        }
-                    }
+            // Replaces the outdated read, if any, which keeps its own callers.
+            inFlightRead = new InFlightRead(acceptedMutations);
+            inFlightRead.mWaiters.add(callback);
+            mInFlightReads.put(read, inFlightRead);
+        }
 
-                    try {
-                        synchronized (mPendingCallbacks) {
-                            mPendingCallbacks.add(callback);
-                        }
-                        body.call();
-                        // Start timeout for this call.
-                        mHandler.postDelayed(() -> {
-                            boolean removed;
-                            synchronized (mPendingCallbacks) {
-                                removed = mPendingCallbacks.remove(callback);
-                            }
-                            if (removed) {
-                                // We hit a timeout, execute the callback.
-                                mHandler.post(() -> callback.onError(new TimeoutException()));
-                            }
-                        }, API_CALL_TIMEOUT_MILLIS);
-                    } catch (Exception e) {
-                        synchronized (mPendingCallbacks) {
-                            mPendingCallbacks.remove(callback);
-                        }
-                        exception = e;
-                    }
-                } else {
-                    exception = new Exception("Failed to bind to service");
+        return new OutcomeReceiver<>() {
+            @Override
+            public void onResult(Result result) {
+                for (OutcomeReceiver<Result, Exception> waiter
+                        : completeInFlightRead(read, inFlightRead)) {
+                    waiter.onResult(result);
                 }
             }
 
-            if (exception != null) {
-                final Exception finalException = exception;
-                mHandler.post(() -> callback.onError(finalException));
-                return;
+            @Override
+            public void onError(Exception error) {
+                for (OutcomeReceiver<Result, Exception> waiter
+                        : completeInFlightRead(read, inFlightRead)) {
+                    waiter.onError(error);
+                }
             }
         };
+    }
+
+    @SuppressWarnings("unchecked")
+    private <Result> ArrayList<OutcomeReceiver<Result, Exception>> completeInFlightRead(int read,
+            @NonNull InFlightRead inFlightRead) {
+        synchronized (mInFlightReads) {
+            if (mInFlightReads.get(read) == inFlightRead) {
+                mInFlightReads.remove(read);
+            }
 
-        mExecutorService.execute(r);
+            return (ArrayList) inFlightRead.mWaiters;
+        }
     }
 
-    private boolean hasApiCallTimedOut(OutcomeReceiver callback) {
-        boolean removed;
-        synchronized (mPendingCallbacks) {
-            removed = mPendingCallbacks.remove(callback);
+    /**
+     * Remove the request a controller reply is for.
+     *
+     * @return the request, or null if it already timed out (the caller already got a timeout
+     *         error, and the late reply is ignored).
+     */
+    @Nullable
+    private PendingRequest<?> takeRepliedRequest(int requestId) {
+        final PendingRequest<?> request = removePendingRequest(requestId);
+        if (request == null) {
+            return null;
         }
-        // if this callback was already been removed by the timeout and somehow this callback
-        // arrived late. We already replied with a timeout error, ignore the result.
 
-        return !removed;
+        request.mResultNanos = SystemClock.elapsedRealtimeNanos();
+        mMetrics.recordLatency(request.mApi, ApiMetrics.PHASE_CONTROLLER,
+                request.mResultNanos - request.mDispatchNanos);
+        recordControllerSuccess();
+
+        return request;
     }
 
-    private RemoteCallback.OnResultListener checkTimeout(OutcomeReceiver callback,
-            RemoteCallback.OnResultListener listener) {
-        return (@Nullable Bundle bundle) -> {
-            if (hasApiCallTimedOut(callback)) {
-                return;
-            }
-            listener.onResult(bundle);
-        };
+    private void failReply(@NonNull PendingRequest<?> request, @NonNull Exception exception) {
+        Slog.e(TAG, "Bad reply for request " + request.mId, exception);
+        post(request, () -> request.onError(exception));
     }
 
+    // Single callback for all the replies from the controller, requests are matched by id.
+    private final IDeviceLockControllerCallback.Stub mControllerCallback =
+            new IDeviceLockControllerCallback.Stub() {
+                @Override
+                public void onBooleanResult(int requestId, boolean result) {
+                    final PendingRequest<?> request = takeRepliedRequest(requestId);
+                    if (request == null) {
+                        return;
+                    }
+                    try {
+                        request.mReply.onBooleanResult(result);
+                    } catch (IllegalStateException e) {
+                        failReply(request, e);
+                    }
+                }
+
+                @Override
+                public void onStringResult(int requestId, String result) {
+                    final PendingRequest<?> request = takeRepliedRequest(requestId);
+                    if (request == null) {
+                        return;
+                    }
+                    try {
+                        request.mReply.onStringResult(result);
+                    } catch (IllegalStateException e) {
+                        failReply(request, e);
+                    }
+                }
+
+                @Override
+                public void onDeviceStatusResult(int requestId, boolean isLocked,
+                        String deviceId) {
+                    final PendingRequest<?> request = takeRepliedRequest(requestId);
+                    if (request == null) {
+                        return;
+                    }
+                    try {
+                        request.mReply.onDeviceStatusResult(isLocked, deviceId);
+                    } catch (IllegalStateException e) {
+                        failReply(request, e);
+                    }
+                }
+
+                @Override
+                public void onError(int requestId) {
+                    final PendingRequest<?> request = takeRepliedRequest(requestId);
+                    if (request != null) {
+                        post(request, () -> request.onError(
+                                new Exception("Device Lock Controller call failed")));
+                    }
+                }
+            };
+
     private class DeviceLockControllerServiceConnection implements ServiceConnection {
         @Override
         public void onServiceConnected(ComponentName name, IBinder service) {
             synchronized (mLock) {
-                if (mServiceConnection == null) {
+                if (mServiceConnection != this) {
                     Slog.w(TAG, "Connected: " + mComponentName.flattenToShortString()
                             + " but not bound, ignore.");
                     return;
@@ -169,10 +878,22 @@ final class DeviceLockControllerConnector {
 
                 Slog.i(TAG, "Connected to " + mComponentName.flattenToShortString());
 
-                mDeviceLockControllerService =
+                final IDeviceLockControllerService controllerService =
                         IDeviceLockControllerService.Stub.asInterface(service);
+                mDeviceLockControllerService = controllerService;
+                mConnectionState = STATE_CONNECTED;
+
+                // Drain the reads that were waiting for the binder, in order. The first mutation
+                // is dispatched ahead of them.
+                PendingRequest<?> request;
+                while ((request = mPendingReads.poll()) != null) {
+                    final PendingRequest<?> call = request;
+                    call.mTarget = controllerService;
+                    mHandler.post(() -> dispatch(controllerService, call));
+                }
+                dispatchNextMutationLocked();
 
-                mLock.notifyAll();
+                scheduleHealthCheckLocked();
             }
         }
 
@@ -183,14 +904,19 @@ final class DeviceLockControllerConnector {
             // we unbind here so we can bind again an restart the service when needed.
             // Otherwise, Activity Manager would restart it after some back-off, and trying
             // to use the service in this timeframe would result in a DeadObjectException.
-            unbind();
+            synchronized (mLock) {
+                if (mServiceConnection != this) {
+                    return;
+                }
+                startDyingLocked(true /* controllerDied */);
+            }
         }
 
         @Override
         public void onBindingDied(ComponentName name) {
             // Activity Manager gave up.
             synchronized (mLock) {
-                if (mServiceConnection == null) {
+                if (mServiceConnection != this) {
                     // Callback came in late
                     Slog.w(TAG, "Binding died: " + mComponentName.flattenToShortString()
                             + " but not bound, ignore.");
@@ -201,7 +927,7 @@ final class DeviceLockControllerConnector {
 
                 // We just unbind here; any API calls would cause the binding to be recreated
                 // when needed.
-                unbindLocked();
+                startDyingLocked(true /* controllerDied */);
             }
         }
     };
@@ -211,16 +937,36 @@ final class DeviceLockControllerConnector {
      *
      * @param context the context for this call.
      * @param componentName Device Lock Controller service component name.
+     * @param userHandle user the controller instance runs as.
+     * @param handler handler on which callbacks are delivered, may be shared between connectors.
+     * @param keepAlivePolicy policy deciding when to unbind an idle controller.
+     * @param metrics metrics recording the API calls and connection events.
+     * @param healthCheckIntervalMillis interval between pings of the bound controller, 0 to
+     *                                  disable them.
      */
     DeviceLockControllerConnector(@NonNull Context context,
-            @NonNull ComponentName componentName) {
+            @NonNull ComponentName componentName, @NonNull UserHandle userHandle,
+            @NonNull Handler handler, @NonNull KeepAlivePolicy keepAlivePolicy,
+            @NonNull ApiMetrics metrics, long healthCheckIntervalMillis) {
+        this(context, componentName, userHandle, handler, keepAlivePolicy, metrics,
+                healthCheckIntervalMillis, API_CALL_TIMEOUT_MILLIS);
+    }
+
+    @VisibleForTesting
+    DeviceLockControllerConnector(@NonNull Context context,
+            @NonNull ComponentName componentName, @NonNull UserHandle userHandle,
+            @NonNull Handler handler, @NonNull KeepAlivePolicy keepAlivePolicy,
+            @NonNull ApiMetrics metrics, long healthCheckIntervalMillis,
+            long apiCallTimeoutMillis) {
         mContext = context;
         mComponentName = componentName;
-
-        HandlerThread handlerThread =
-                new HandlerThread("DeviceLockControllerConnectorHandlerThread");
-        handlerThread.start();
-        mHandler = new Handler(handlerThread.getLooper());
+        mUserHandle = userHandle;
+        mHandler = handler;
+        mKeepAlivePolicy = keepAlivePolicy;
+        mMetrics = metrics;
+        mHealthCheckIntervalMillis = healthCheckIntervalMillis;
+        mApiCallTimeoutMillis = apiCallTimeoutMillis;
+        mTimeoutTimer = new HashedWheelTimer(mHandler, TIMEOUT_TICK_MILLIS, TIMEOUT_WHEEL_SIZE);
     }
 
     @GuardedBy("mLock")
@@ -229,15 +975,30 @@ final class DeviceLockControllerConnector {
             // Already bound, ignore and return success.
             return true;
         }
+        if (mClosed) {
+            Slog.w(TAG, "Not binding " + mComponentName.flattenToShortString()
+                    + ", connector closed");
+            return false;
+        }
 
         mServiceConnection = new DeviceLockControllerServiceConnection();
 
         final Intent service = new Intent().setComponent(mComponentName);
         final boolean bound = mContext.bindServiceAsUser(service, mServiceConnection,
-                Context.BIND_AUTO_CREATE, USER_HANDLE_SYSTEM);
+                Context.BIND_AUTO_CREATE, mUserHandle);
+
+        mMetrics.recordBind(bound);
 
         if (bound) {
             Slog.i(TAG, "Binding " + mComponentName.flattenToShortString());
+            mConnectionState = STATE_BINDING;
+
+            // Bindings made ahead of calls (e.g. rebinding an unhealthy controller) are dropped
+            // as well once idle, unless held by prebind().
+            if (!mIdleCheckScheduled && !mHeldUntilFirstCall) {
+                final long now = SystemClock.uptimeMillis();
+                scheduleIdleCheckLocked(now + mKeepAlivePolicy.getIdleTimeoutMillis(now));
+            }
         } else {
             // As per bindService() documentation, we still need to call unbindService()
             // if binding fails.
@@ -258,9 +1019,104 @@ final class DeviceLockControllerConnector {
         Slog.i(TAG, "Unbinding " + mComponentName.flattenToShortString());
 
         mContext.unbindService(mServiceConnection);
+        mMetrics.recordUnbind();
+        mHandler.removeCallbacks(mHealthCheck);
 
         mDeviceLockControllerService = null;
         mServiceConnection = null;
+        mConnectionState = STATE_UNBOUND;
+        mDeviceStateFromBoundController = false;
+    }
+
+    /**
+     * Tear down the binding on the handler thread, calls issued in the meantime are queued and
+     * will trigger a new binding.
+     *
+     * @param controllerDied true if the controller process is gone, false if it is dropped while
+     *                       possibly alive (e.g. hung). Calls dispatched to a live controller may
+     *                       still be executed and answered, they are neither replayed nor failed
+     *                       but left to complete or time out.
+     */
+    @GuardedBy("mLock")
+    private void startDyingLocked(boolean controllerDied) {
+        final IDeviceLockControllerService service = mDeviceLockControllerService;
+        mMetrics.recordDisconnect();
+        mDeviceLockControllerService = null;
+        mConnectionState = STATE_DYING;
+        mDeviceStateFromBoundController = false;
+        mHandler.removeCallbacks(mHealthCheck);
+        mHandler.post(mFinishDying);
+
+        if (controllerDied && service != null) {
+            replayOrFailInFlightCallsLocked(service);
+        }
+    }
+
+    /**
+     * Handle the calls dispatched to a controller that died, whose replies will never come.
+     * Idempotent calls are queued again, once and within the replay budget, and dispatched on the
+     * next binding. Other calls fail right away instead of waiting for their timeout.
+     *
+     * Replayed calls keep their original timeout, so a replay never extends the time a caller
+     * waits for a result.
+     */
+    @GuardedBy("mLock")
+    private void replayOrFailInFlightCallsLocked(@NonNull IDeviceLockControllerService service) {
+        final ArrayList<PendingRequest<?>> inFlight = new ArrayList<>();
+        synchronized (mPendingRequests) {
+            for (PendingRequest<?> request : mPendingRequests.values()) {
+                // Calls still dispatched to a previous, dropped controller are left alone.
+                if (request.mTarget == service) {
+                    inFlight.add(request);
+                }
+            }
+        }
+        if (inFlight.isEmpty()) {
+            return;
+        }
+
+        // The active mutation may be one of them.
+        if (mActiveMutation != null && mActiveMutation.mTarget == service) {
+            mActiveMutation = null;
+        }
+
+        inFlight.sort(Comparator.comparingInt(request -> request.mId));
+        final long now = SystemClock.uptimeMillis();
+        final ArrayList<PendingRequest<?>> replayedReads = new ArrayList<>();
+        final ArrayList<PendingRequest<?>> replayedMutations = new ArrayList<>();
+        for (PendingRequest<?> request : inFlight) {
+            request.mTarget = null;
+            if (!request.mReplayed && isReplayable(request.mApi) && acquireReplayLocked(now)) {
+                request.mReplayed = true;
+                (request.mIsMutation ? replayedMutations : replayedReads).add(request);
+            } else {
+                failCall(request, new Exception("Device Lock Controller died"));
+            }
+        }
+
+        // Replay in issue order, ahead of the calls queued in the meantime.
+        for (int i = replayedReads.size() - 1; i >= 0; i--) {
+            mPendingReads.addFirst(replayedReads.get(i));
+        }
+        for (int i = replayedMutations.size() - 1; i >= 0; i--) {
+            mPendingMutations.addFirst(replayedMutations.get(i));
+        }
+    }
+
+    @GuardedBy("mLock")
+    private boolean acquireReplayLocked(long now) {
+        if (now >= mReplayWindowStartUptimeMillis + REPLAY_BUDGET_WINDOW_MILLIS) {
+            mReplayWindowStartUptimeMillis = now;
+            mReplaysInWindow = 0;
+        }
+        if (mReplaysInWindow >= REPLAY_BUDGET) {
+            mReplaysOverBudget++;
+            return false;
+        }
+
+        mReplaysInWindow++;
+        mReplays++;
+        return true;
     }
 
     /**
@@ -272,115 +1128,434 @@ final class DeviceLockControllerConnector {
         }
     }
 
+    /**
+     * Bind to the Device Lock Controller service ahead of the first call. Unlike {@link #bind()},
+     * the binding is kept until the first call into the controller instead of being dropped after
+     * the idle timeout, so that the controller is still bound when it is first needed after boot.
+     */
+    boolean prebind() {
+        synchronized (mLock) {
+            if (mLastCallUptimeMillis != 0) {
+                // Already in use, the keep-alive policy applies.
+                return bindLocked();
+            }
+
+            mHeldUntilFirstCall = true;
+            if (!bindLocked()) {
+                mHeldUntilFirstCall = false;
+                return false;
+            }
+
+            return true;
+        }
+    }
+
     /**
      * Unbind the Device Lock Controller service.
      */
     public void unbind() {
         synchronized (mLock) {
+            mHeldUntilFirstCall = false;
             unbindLocked();
+            failPendingCallsLocked(new Exception("Device Lock Controller service unbound"));
         }
     }
 
-    public void lockDevice(OutcomeReceiver<Void, Exception> callback) {
-        RemoteCallback remoteCallback = new RemoteCallback(checkTimeout(callback, result -> {
-            final boolean success =
-                    result.getBoolean(IDeviceLockControllerService.KEY_LOCK_DEVICE_RESULT);
-            if (success) {
-                mHandler.post(() -> callback.onResult(null));
-            } else {
-                mHandler.post(() -> callback.onError(new Exception("Failed to lock device")));
-            }
-        }));
+    /**
+     * Whether the connector is unbound and has no call in progress, so that it can be dropped.
+     */
+    boolean isIdle() {
+        synchronized (mLock) {
+            return isIdleLocked();
+        }
+    }
 
-        callControllerApi(new Callable<Void>() {
-            @Override
-            @SuppressWarnings("GuardedBy") // mLock already held in callControllerApi (error prone).
-            public Void call() throws Exception {
-                mDeviceLockControllerService.lockDevice(remoteCallback);
-                return null;
-            }
-        } , callback);
+    @GuardedBy("mLock")
+    private boolean isIdleLocked() {
+        if (mServiceConnection != null || !mPendingReads.isEmpty()
+                || !mPendingMutations.isEmpty() || mActiveMutation != null) {
+            return false;
+        }
 
+        return !hasPendingCalls();
     }
 
-    public void unlockDevice(OutcomeReceiver<Void, Exception> callback) {
-        RemoteCallback remoteCallback = new RemoteCallback(checkTimeout(callback, result -> {
-            final boolean success =
-                    result.getBoolean(IDeviceLockControllerService.KEY_UNLOCK_DEVICE_RESULT);
-            if (success) {
-                mHandler.post(() -> callback.onResult(null));
-            } else {
-                mHandler.post(() -> callback.onError(new Exception("Failed to unlock device")));
+    /**
+     * Close the connector if it is idle, so that it can be dropped. A closed connector never
+     * binds again, calls made through it fail.
+     *
+     * @return false if the connector is in use, it is then left open.
+     */
+    boolean closeIfIdle() {
+        synchronized (mLock) {
+            if (!isIdleLocked()) {
+                return false;
             }
-        }));
+            mClosed = true;
+        }
 
-        callControllerApi(new Callable<Void>() {
-            @Override
-            @SuppressWarnings("GuardedBy") // mLock already held in callControllerApi (error prone).
-            public Void call() throws Exception {
-                mDeviceLockControllerService.unlockDevice(remoteCallback);
-                return null;
+        return true;
+    }
+
+    /**
+     * Unbind and close the connector, failing the calls in progress.
+     */
+    void close() {
+        synchronized (mLock) {
+            mClosed = true;
+            mHeldUntilFirstCall = false;
+            unbindLocked();
+            failPendingCallsLocked(new Exception("Device Lock Controller connector closed"));
+        }
+    }
+
+    private void setCachedIsDeviceLocked(@NonNull PendingRequest<?> request, boolean isLocked) {
+        synchronized (mLock) {
+            // Results of calls dispatched before the last mutation may predate it. The state
+            // pushed by the controller is authoritative, results of the calls are only used while
+            // it is not known.
+            if (request.mMutationEpoch == mMutationEpoch
+                    && (mStateSequence == NO_STATE_SEQUENCE || mCachedIsDeviceLocked == null)) {
+                mCachedIsDeviceLocked = isLocked;
+                mCachedStateRestored = false;
             }
-        }, callback);
+        }
     }
 
-    public void isDeviceLocked(OutcomeReceiver<Boolean, Exception> callback) {
-        RemoteCallback remoteCallback = new RemoteCallback(checkTimeout(callback, result -> {
-            final boolean isLocked =
-                    result.getBoolean(IDeviceLockControllerService.KEY_IS_DEVICE_LOCKED_RESULT);
-            mHandler.post(() -> callback.onResult(isLocked));
-        }));
+    /**
+     * Update the cached state with a state change pushed by the controller.
+     *
+     * @param deviceState the new controller device state.
+     * @param isLocked true if the device is locked in the new state.
+     * @param sequence sequence number of the notification; out of order notifications (e.g.
+     *                 from a controller instance that has since crashed) are discarded.
+     * @return false if the notification was discarded.
+     */
+    public boolean onDeviceStateChanged(int deviceState, boolean isLocked, long sequence) {
+        synchronized (mLock) {
+            if (sequence <= mStateSequence) {
+                Slog.w(TAG, "Discarding out of order state " + deviceState + " (sequence "
+                        + sequence + ", last " + mStateSequence + ")");
+                return false;
+            }
 
-        callControllerApi(new Callable<Void>() {
-            @Override
-            @SuppressWarnings("GuardedBy") // mLock already held in callControllerApi (error prone).
-            public Void call() throws Exception {
-                mDeviceLockControllerService.isDeviceLocked(remoteCallback);
-                return null;
+            mStateSequence = sequence;
+            mCachedDeviceState = deviceState;
+            mDeviceStateFromBoundController = mConnectionState == STATE_BINDING
+                    || mConnectionState == STATE_CONNECTED;
+            mCachedIsDeviceLocked = isLocked;
+            mCachedStateRestored = false;
+        }
+
+        return true;
+    }
+
+    /**
+     * Seed the cached lock state with a state persisted before the controller reports it, e.g.
+     * during early boot. The state is confirmed with the controller on first use once boot
+     * completes (see {@link #onBootCompleted()}).
+     */
+    void restoreCachedIsDeviceLocked(boolean isLocked) {
+        synchronized (mLock) {
+            if (mCachedIsDeviceLocked == null) {
+                mCachedIsDeviceLocked = isLocked;
+                mCachedStateRestored = true;
             }
-        }, callback);
+        }
     }
 
-    public void getDeviceId(OutcomeReceiver<String, Exception> callback) {
-        RemoteCallback remoteCallback = new RemoteCallback(checkTimeout(callback, result -> {
-            final String deviceId =
-                    result.getString(IDeviceLockControllerService.KEY_HARDWARE_ID_RESULT);
-            if (TextUtils.isEmpty(deviceId)) { // If the deviceId is null or empty
-                mHandler.post(() -> callback.onError(new IllegalStateException(
-                        "No registered Device ID found")));
-            } else {
-                mHandler.post(() -> callback.onResult(deviceId));
+    /**
+     * Drop the cached lock state, including the restored one. Reads already in flight do not
+     * cache their result.
+     */
+    void invalidateCachedState() {
+        synchronized (mLock) {
+            mMutationEpoch++;
+            mCachedIsDeviceLocked = null;
+            mCachedStateRestored = false;
+            mCachedDeviceState = UNKNOWN_DEVICE_STATE;
+            mDeviceStateFromBoundController = false;
+        }
+    }
+
+    /**
+     * Allow a restored lock state to be confirmed with the controller on next use.
+     */
+    void onBootCompleted() {
+        synchronized (mLock) {
+            mBootCompleted = true;
+        }
+    }
+
+    /**
+     * Get the last known lock state without calling into the controller.
+     *
+     * @return the lock state, or null if it is not known.
+     */
+    @Nullable
+    public Boolean getCachedIsDeviceLocked() {
+        final Boolean isLocked;
+        synchronized (mLock) {
+            isLocked = mCachedIsDeviceLocked;
+            if (!mCachedStateRestored || mRestoredStateRefreshing || !mBootCompleted) {
+                return isLocked;
             }
-        }));
+            mRestoredStateRefreshing = true;
+        }
 
-        callControllerApi(new Callable<Void>() {
+        // Answered from the restored state, reconcile it with the controller in the background.
+        // The result updates the cache; on error, the next query tries again.
+        isDeviceLocked(new OutcomeReceiver<>() {
             @Override
-            @SuppressWarnings("GuardedBy") // mLock already held in callControllerApi (error prone).
-            public Void call() throws Exception {
-                mDeviceLockControllerService.getDeviceIdentifier(remoteCallback);
-                return null;
+            public void onResult(Boolean result) {
+                onRefreshDone();
+            }
+
+            @Override
+            public void onError(Exception ex) {
+                Slog.w(TAG, "Cannot confirm the restored lock state", ex);
+                onRefreshDone();
+            }
+
+            private void onRefreshDone() {
+                synchronized (mLock) {
+                    mRestoredStateRefreshing = false;
+                }
             }
-        }, callback);
+        });
+
+        return isLocked;
     }
 
-    public void clearDeviceRestrictions(OutcomeReceiver<Void, Exception> callback) {
-        RemoteCallback remoteCallback = new RemoteCallback(checkTimeout(callback, result -> {
-            final boolean success =
-                    result.getBoolean(IDeviceLockControllerService.KEY_CLEAR_DEVICE_RESULT);
-            if (success) {
-                mHandler.post(() -> callback.onResult(null));
-            } else {
-                mHandler.post(() -> callback.onError(new Exception("Failed to clear device")));
+    private static String connectionStateToString(int state) {
+        switch (state) {
+            case STATE_UNBOUND:
+                return "UNBOUND";
+            case STATE_BINDING:
+                return "BINDING";
+            case STATE_CONNECTED:
+                return "CONNECTED";
+            case STATE_DYING:
+                return "DYING";
+            default:
+                return "UNKNOWN_STATE";
+        }
+    }
+
+    /**
+     * Dump the connector state.
+     */
+    void dump(@NonNull PrintWriter pw, @NonNull String prefix) {
+        synchronized (mLock) {
+            pw.println(prefix + "Component: " + mComponentName.flattenToShortString()
+                    + " (user " + mUserHandle.getIdentifier() + ")");
+            pw.println(prefix + "Connection state: "
+                    + connectionStateToString(mConnectionState) + (mClosed ? " (closed)" : "")
+                    + (mHeldUntilFirstCall ? " (held until first call)" : ""));
+            pw.println(prefix + "Reads waiting for binding: " + mPendingReads.size());
+            pw.println(prefix + "Mutations waiting: " + mPendingMutations.size()
+                    + (mActiveMutation != null ? " (one in flight)" : ""));
+            pw.println(prefix + "Cached lock state: " + mCachedIsDeviceLocked
+                    + (mCachedStateRestored ? " (restored)" : ""));
+            pw.println(prefix + "Cached device state: " + mCachedDeviceState
+                    + " (sequence " + mStateSequence + ")");
+            pw.println(prefix + "Health check interval: "
+                    + (mHealthCheckIntervalMillis > 0 ? mHealthCheckIntervalMillis + "ms"
+                            : "disabled") + ", failures: " + mHealthCheckFailures);
+            final long now = SystemClock.uptimeMillis();
+            pw.println(prefix + "Consecutive failures: " + mConsecutiveFailures
+                    + ", circuit breaker trips: " + mCircuitBreakerTrips
+                    + (now < mCircuitOpenUntilUptimeMillis ? ", open for "
+                            + (mCircuitOpenUntilUptimeMillis - now) + "ms" : ""));
+            pw.println(prefix + "Replayed calls: " + mReplays + ", over budget: "
+                    + mReplaysOverBudget);
+        }
+        synchronized (mPendingRequests) {
+            pw.println(prefix + "Pending requests: " + mPendingRequests.size());
+        }
+        synchronized (mInFlightReads) {
+            for (int i = 0; i < mInFlightReads.size(); i++) {
+                pw.println(prefix + "Callers sharing read " + mInFlightReads.keyAt(i) + ": "
+                        + mInFlightReads.valueAt(i).mWaiters.size());
             }
-        }));
+        }
+        pw.println(prefix + "Scheduled timeouts: " + mTimeoutTimer.size());
+        pw.println(prefix + "Keep-alive policy:");
+        mKeepAlivePolicy.dump(pw, prefix + "  ");
+    }
 
-        callControllerApi(new Callable<Void>() {
-            @Override
-            @SuppressWarnings("GuardedBy") // mLock already held in callControllerApi (error prone).
-            public Void call() throws Exception {
-                mDeviceLockControllerService.clearDeviceRestrictions(remoteCallback);
-                return null;
+    /**
+     * Complete an unlock call without calling into the controller if the bound controller
+     * reported that the device is already unlocked. Only done when no other mutation is queued or
+     * in flight, since it could change the state before the call is dispatched.
+     *
+     * The controller follows the same rule: only an unlock in the real unlocked state is
+     * redundant. A lock always reaches the controller, which enforces lock task mode again even
+     * if the device is already locked, and pseudo states are handled by the controller.
+     *
+     * @return true if the call was completed.
+     */
+    private boolean completeRedundantUnlock(@NonNull OutcomeReceiver<Void, Exception> callback) {
+        synchronized (mLock) {
+            if (mCachedDeviceState != DEVICE_STATE_UNLOCKED || !mDeviceStateFromBoundController
+                    || mActiveMutation != null || !mPendingMutations.isEmpty()) {
+                return false;
             }
-        }, callback);
+        }
+
+        mMetrics.recordOutcome(ApiMetrics.API_UNLOCK_DEVICE, ApiMetrics.OUTCOME_REDUNDANT);
+        // Posted behind the results of the previous mutations, which jump ahead of the queue.
+        mHandler.post(() -> callback.onResult(null));
+
+        return true;
+    }
+
+    public void lockDevice(OutcomeReceiver<Void, Exception> callback) {
+        final PendingRequest<Void> request =
+                newPendingRequest(ApiMetrics.API_LOCK_DEVICE, callback);
+
+        callControllerApi(request, IDeviceLockControllerService::lockDevice,
+                new ControllerReply() {
+                    @Override
+                    public void onBooleanResult(boolean success) {
+                        if (success) {
+                            setCachedIsDeviceLocked(request, true);
+                            post(request, () -> request.onResult(null));
+                        } else {
+                            post(request, () -> request.onError(
+                                    new Exception("Failed to lock device")));
+                        }
+                    }
+                });
+    }
+
+    public void unlockDevice(OutcomeReceiver<Void, Exception> callback) {
+        if (completeRedundantUnlock(callback)) {
+            return;
+        }
+
+        final PendingRequest<Void> request =
+                newPendingRequest(ApiMetrics.API_UNLOCK_DEVICE, callback);
+
+        callControllerApi(request, IDeviceLockControllerService::unlockDevice,
+                new ControllerReply() {
+                    @Override
+                    public void onBooleanResult(boolean success) {
+                        if (success) {
+                            setCachedIsDeviceLocked(request, false);
+                            post(request, () -> request.onResult(null));
+                        } else {
+                            post(request, () -> request.onError(
+                                    new Exception("Failed to unlock device")));
+                        }
+                    }
+                });
+    }
+
+    public void isDeviceLocked(OutcomeReceiver<Boolean, Exception> callback) {
+        final OutcomeReceiver<Boolean, Exception> sharedCallback =
+                joinInFlightRead(READ_IS_DEVICE_LOCKED, callback);
+        if (sharedCallback == null) {
+            // Attached to the in-flight call.
+            mMetrics.recordOutcome(ApiMetrics.API_IS_DEVICE_LOCKED, ApiMetrics.OUTCOME_LOCAL);
+            return;
+        }
+
+        callIsDeviceLocked(sharedCallback);
+    }
+
+    /**
+     * Same as {@link #isDeviceLocked}, but always issues its own call to the controller instead
+     * of sharing an identical in-flight one. Used to measure the controller round trip.
+     */
+    void isDeviceLockedUncoalesced(OutcomeReceiver<Boolean, Exception> callback) {
+        callIsDeviceLocked(callback);
+    }
+
+    private void callIsDeviceLocked(OutcomeReceiver<Boolean, Exception> callback) {
+        final PendingRequest<Boolean> request =
+                newPendingRequest(ApiMetrics.API_IS_DEVICE_LOCKED, callback);
+
+        callControllerApi(request, IDeviceLockControllerService::isDeviceLocked,
+                new ControllerReply() {
+                    @Override
+                    public void onBooleanResult(boolean isLocked) {
+                        setCachedIsDeviceLocked(request, isLocked);
+                        post(request, () -> request.onResult(isLocked));
+                    }
+                });
+    }
+
+    public void getDeviceId(OutcomeReceiver<String, Exception> callback) {
+        final OutcomeReceiver<String, Exception> sharedCallback =
+                joinInFlightRead(READ_GET_DEVICE_ID, callback);
+        if (sharedCallback == null) {
+            // Attached to the in-flight call.
+            mMetrics.recordOutcome(ApiMetrics.API_GET_DEVICE_ID, ApiMetrics.OUTCOME_LOCAL);
+            return;
+        }
+
+        final PendingRequest<String> request =
+                newPendingRequest(ApiMetrics.API_GET_DEVICE_ID, sharedCallback);
+
+        callControllerApi(request, IDeviceLockControllerService::getDeviceIdentifier,
+                new ControllerReply() {
+                    @Override
+                    public void onStringResult(String deviceId) {
+                        if (TextUtils.isEmpty(deviceId)) { // If the deviceId is null or empty
+                            post(request, () -> request.onError(new IllegalStateException(
+                                    "No registered Device ID found")));
+                        } else {
+                            post(request, () -> request.onResult(deviceId));
+                        }
+                    }
+                });
+    }
+
+    public void clearDeviceRestrictions(OutcomeReceiver<Void, Exception> callback) {
+        final PendingRequest<Void> request =
+                newPendingRequest(ApiMetrics.API_CLEAR_DEVICE_RESTRICTIONS, callback);
+
+        callControllerApi(request, IDeviceLockControllerService::clearDeviceRestrictions,
+                new ControllerReply() {
+                    @Override
+                    public void onBooleanResult(boolean success) {
+                        if (success) {
+                            setCachedIsDeviceLocked(request, false);
+                            post(request, () -> request.onResult(null));
+                        } else {
+                            post(request, () -> request.onError(
+                                    new Exception("Failed to clear device")));
+                        }
+                    }
+                });
+    }
+
+    /**
+     * Get the lock state and the device id with a single controller call.
+     * The device id is null if the controller has no registered device id.
+     */
+    public void getDeviceStatus(OutcomeReceiver<DeviceStatus, Exception> callback) {
+        final OutcomeReceiver<DeviceStatus, Exception> sharedCallback =
+                joinInFlightRead(READ_GET_DEVICE_STATUS, callback);
+        if (sharedCallback == null) {
+            // Attached to the in-flight call.
+            mMetrics.recordOutcome(ApiMetrics.API_GET_DEVICE_LOCK_STATUS,
+                    ApiMetrics.OUTCOME_LOCAL);
+            return;
+        }
+
+        final PendingRequest<DeviceStatus> request =
+                newPendingRequest(ApiMetrics.API_GET_DEVICE_LOCK_STATUS, sharedCallback);
+
+        callControllerApi(request, IDeviceLockControllerService::getDeviceStatus,
+                new ControllerReply() {
+                    @Override
+                    public void onDeviceStatusResult(boolean isLocked, String deviceId) {
+                        setCachedIsDeviceLocked(request, isLocked);
+                        post(request, () -> request.onResult(new DeviceStatus(isLocked,
+                                TextUtils.isEmpty(deviceId) ? null : deviceId)));
+                    }
+                });
     }
 }
@@ -0,0 +1,268 @@
+/*
+ * Copyright (C) 2023 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.devicelock;
+
+import android.annotation.NonNull;
+import android.app.ActivityManager;
+import android.content.ComponentName;
+import android.content.Context;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.SystemClock;
+import android.os.UserHandle;
+import android.util.Slog;
+import android.util.SparseArray;
+import android.util.SparseLongArray;
+
+import com.android.internal.annotations.GuardedBy;
+import com.android.internal.annotations.VisibleForTesting;
+
+import java.io.PrintWriter;
+
+/**
+ * Connectors to the Device Lock Controller, one per user the controller runs as.
+ *
+ * Each connector has its own binding and lock, so that calls for a user never wait behind
+ * calls for another user. All connectors share a single handler thread.
+ * Connectors for secondary users are dropped once idle for a while, and the number of connectors
+ * is bounded as long as some of them are idle. The system user connector is never dropped.
+ */
+final class DeviceLockControllerConnectorPool {
+    private static final String TAG = "DeviceLockControllerConnectorPool";
+
+    // Bounds of the time the controller is kept bound after the last API call.
+    private static final long MIN_IDLE_MILLIS = 1_000 * 30;             // Thirty seconds.
+    private static final long DEFAULT_IDLE_MILLIS = 1_000 * 60 * 1;     // One minute.
+    private static final long MAX_IDLE_MILLIS = 1_000 * 60 * 5;         // Five minutes.
+
+    // Secondary user connectors idle for this long are dropped.
+    private static final long EVICTION_IDLE_MILLIS = 1_000 * 60 * 10;   // Ten minutes.
+
+    // Number of connectors above which idle connectors are dropped, least recently used first.
+    @VisibleForTesting
+    static final int MAX_CONNECTORS = 4;
+
+    // Connectors handed out this recently are kept, the caller is about to use them.
+    private static final long HAND_OUT_GRACE_MILLIS = 1_000 * 10;       // Ten seconds.
+
+    private final Context mContext;
+    private final ComponentName mComponentName;
+    private final Handler mHandler;
+    private final ApiMetrics mMetrics;
+    private final long mMaxIdleMillis;
+    private final long mHealthCheckIntervalMillis;
+    private final long mHandOutGraceMillis;
+    private final ControllerPackageEnabler mPackageEnabler;
+
+    // Connectors, keyed by user id.
+    @GuardedBy("mConnectors")
+    private final SparseArray<DeviceLockControllerConnector> mConnectors = new SparseArray<>();
+
+    // Time each connector was last handed out, keyed by user id.
+    @GuardedBy("mConnectors")
+    private final SparseLongArray mLastUseUptimeMillis = new SparseLongArray();
+
+    @GuardedBy("mConnectors")
+    private int mEvictions;
+
+    /**
+     * Create a new connector pool.
+     *
+     * @param context the context for this call.
+     * @param componentName Device Lock Controller service component name.
+     * @param metrics metrics recording the API calls and connection events.
+     * @param packageEnabler enabler of the controller package, awaited before the controller is
+     *                       first bound for a user.
+     */
+    DeviceLockControllerConnectorPool(@NonNull Context context,
+            @NonNull ComponentName componentName, @NonNull ApiMetrics metrics,
+            @NonNull ControllerPackageEnabler packageEnabler) {
+        // Low RAM devices do not keep the controller around longer than the default.
+        // The health check interval is read once, getConnector() runs with the identity of the
+        // API callers.
+        this(context, componentName, metrics, packageEnabler, newHandler(),
+                context.getSystemService(ActivityManager.class).isLowRamDevice()
+                        ? DEFAULT_IDLE_MILLIS : MAX_IDLE_MILLIS,
+                DeviceLockConfig.getHealthCheckIntervalMillis(), HAND_OUT_GRACE_MILLIS);
+    }
+
+    @VisibleForTesting
+    DeviceLockControllerConnectorPool(@NonNull Context context,
+            @NonNull ComponentName componentName, @NonNull ApiMetrics metrics,
+            @NonNull ControllerPackageEnabler packageEnabler, @NonNull Handler handler,
+            long maxIdleMillis, long healthCheckIntervalMillis, long handOutGraceMillis) {
+        mContext = context;
+        mComponentName = componentName;
+        mMetrics = metrics;
+        mHandler = handler;
+        mMaxIdleMillis = maxIdleMillis;
+        mHealthCheckIntervalMillis = healthCheckIntervalMillis;
+        mHandOutGraceMillis = handOutGraceMillis;
+        mPackageEnabler = packageEnabler;
+    }
+
+    /**
+     * Get the handler of the connectors, also used for other background work on the controller.
+     */
+    @NonNull
+    Handler getHandler() {
+        return mHandler;
+    }
+
+    private static Handler newHandler() {
+        final HandlerThread handlerThread =
+                new HandlerThread("DeviceLockControllerConnectorHandlerThread");
+        handlerThread.start();
+
+        return new Handler(handlerThread.getLooper());
+    }
+
+    /**
+     * Get the connector for the given user, creating it if needed.
+     */
+    @NonNull
+    DeviceLockControllerConnector getConnector(@NonNull UserHandle userHandle) {
+        final int userId = userHandle.getIdentifier();
+
+        synchronized (mConnectors) {
+            final DeviceLockControllerConnector connector = mConnectors.get(userId);
+            if (connector != null) {
+                mLastUseUptimeMillis.put(userId, SystemClock.uptimeMillis());
+                return connector;
+            }
+        }
+
+        // The controller package must be enabled before it is first bound for the user. Only
+        // done when the connector is created, outside of the lock: the request queued when the
+        // user started has usually run already.
+        mPackageEnabler.awaitDefaultEnabledState(userHandle);
+
+        final long now = SystemClock.uptimeMillis();
+        synchronized (mConnectors) {
+            DeviceLockControllerConnector connector = mConnectors.get(userId);
+            if (connector != null) {
+                mLastUseUptimeMillis.put(userId, now);
+                return connector;
+            }
+
+            evictIdleConnectorsLocked(now);
+
+            connector = new DeviceLockControllerConnector(mContext, mComponentName, userHandle,
+                    mHandler, new AdaptiveKeepAlivePolicy(MIN_IDLE_MILLIS, DEFAULT_IDLE_MILLIS,
+                            mMaxIdleMillis), mMetrics, mHealthCheckIntervalMillis);
+            mConnectors.put(userId, connector);
+            mLastUseUptimeMillis.put(userId, now);
+
+            return connector;
+        }
+    }
+
+    /**
+     * Drop the connector of a user, e.g. when the user is stopping.
+     */
+    void removeConnector(@NonNull UserHandle userHandle) {
+        final DeviceLockControllerConnector connector;
+        synchronized (mConnectors) {
+            final int index = mConnectors.indexOfKey(userHandle.getIdentifier());
+            if (index < 0) {
+                return;
+            }
+            connector = mConnectors.valueAt(index);
+            mConnectors.removeAt(index);
+            mLastUseUptimeMillis.delete(userHandle.getIdentifier());
+        }
+
+        connector.close();
+    }
+
+    /**
+     * Drop the lock state cached by every connector, the next queries call into the controller.
+     */
+    void invalidateCachedStates() {
+        synchronized (mConnectors) {
+            for (int i = 0; i < mConnectors.size(); i++) {
+                mConnectors.valueAt(i).invalidateCachedState();
+            }
+        }
+    }
+
+    // Only idle connectors (unbound, no call in progress) not handed out recently are dropped,
+    // and they are closed so that a caller still holding one cannot bind next to its replacement.
+    // Connectors in use are never dropped, there may then be more than MAX_CONNECTORS for a while.
+    @GuardedBy("mConnectors")
+    private void evictIdleConnectorsLocked(long now) {
+        for (int i = mConnectors.size() - 1; i >= 0; i--) {
+            final long unusedMillis = now - mLastUseUptimeMillis.get(mConnectors.keyAt(i));
+            if (unusedMillis >= EVICTION_IDLE_MILLIS && isEvictableLocked(i, now)) {
+                evictLocked(i);
+            }
+        }
+
+        while (mConnectors.size() >= MAX_CONNECTORS) {
+            int lruIndex = -1;
+            long lruLastUse = Long.MAX_VALUE;
+            for (int i = 0; i < mConnectors.size(); i++) {
+                final long lastUse = mLastUseUptimeMillis.get(mConnectors.keyAt(i));
+                if (isEvictableLocked(i, now) && lastUse < lruLastUse) {
+                    lruIndex = i;
+                    lruLastUse = lastUse;
+                }
+            }
+
+            if (lruIndex < 0 || !evictLocked(lruIndex)) {
+                Slog.w(TAG, "No idle connector to drop, " + mConnectors.size() + " connectors");
+                return;
+            }
+        }
+    }
+
+    @GuardedBy("mConnectors")
+    private boolean isEvictableLocked(int index, long now) {
+        final int userId = mConnectors.keyAt(index);
+        return userId != UserHandle.SYSTEM.getIdentifier()
+                && now - mLastUseUptimeMillis.get(userId) >= mHandOutGraceMillis
+                && mConnectors.valueAt(index).isIdle();
+    }
+
+    // Drop a connector, unless it got busy in the meantime.
+    @GuardedBy("mConnectors")
+    private boolean evictLocked(int index) {
+        if (!mConnectors.valueAt(index).closeIfIdle()) {
+            return false;
+        }
+
+        mLastUseUptimeMillis.delete(mConnectors.keyAt(index));
+        mConnectors.removeAt(index);
+        mEvictions++;
+
+        return true;
+    }
+
+    /**
+     * Dump the connectors.
+     */
+    void dump(@NonNull PrintWriter pw, @NonNull String prefix) {
+        synchronized (mConnectors) {
+            pw.println(prefix + "Connectors: " + mConnectors.size() + " (evicted " + mEvictions
+                    + ")");
+            for (int i = 0; i < mConnectors.size(); i++) {
+                pw.println(prefix + "User " + mConnectors.keyAt(i) + ":");
+                mConnectors.valueAt(i).dump(pw, prefix + "  ");
+            }
+        }
+    }
+}
@@ -17,6 +17,7 @@
 package com.android.server.devicelock;
 
 import android.content.Context;
+import android.os.UserHandle;
 import android.util.Slog;
 
 import com.android.server.SystemService;
@@ -33,6 +34,8 @@ public final class DeviceLockService extends SystemService {
 
     private final DeviceLockServiceImpl mImpl;
 
+    private boolean mControllerPrebindDone;
+
     public DeviceLockService(Context context) {
         super(context);
         Slog.d(TAG, "DeviceLockService constructor");
@@ -48,6 +51,22 @@ public final class DeviceLockService extends SystemService {
     @Override
     public void onBootPhase(int phase) {
         Slog.d(TAG, "onBootPhase: " + phase);
+
+        // The controller is resolved lazily, on first use at the latest once boot completes.
+        if (phase == PHASE_BOOT_COMPLETED) {
+            mImpl.initDeviceLockController();
+        }
+
+        // Binding is only possible once Activity Manager is ready.
+        if (phase < PHASE_ACTIVITY_MANAGER_READY || mControllerPrebindDone) {
+            return;
+        }
+
+        final int prebindBootPhase = DeviceLockConfig.getPrebindBootPhase();
+        if (prebindBootPhase > 0 && phase >= prebindBootPhase) {
+            mControllerPrebindDone = true;
+            mImpl.prebindDeviceLockController();
+        }
     }
 
     @Override
@@ -60,10 +79,16 @@ public final class DeviceLockService extends SystemService {
     @Override
     public void onUserUnlocking(TargetUser user) {
         Slog.d(TAG, "onUserUnlocking");
+
+        // The controller may have been stopped since boot, bind again if pre-binding is enabled.
+        if (mControllerPrebindDone && user.getUserHandle().equals(UserHandle.SYSTEM)) {
+            mImpl.prebindDeviceLockController();
+        }
     }
 
     @Override
     public void onUserStopping(TargetUser user) {
         Slog.d(TAG, "onUserStopping");
+        mImpl.onUserStopping(user.getUserHandle());
     }
 }
@@ -19,14 +19,13 @@ package com.android.server.devicelock;
 import static android.app.AppOpsManager.OPSTR_SYSTEM_EXEMPT_FROM_HIBERNATION;
 import static android.app.role.RoleManager.MANAGE_HOLDERS_FLAG_DONT_KILL_APP;
 import static android.content.IntentFilter.SYSTEM_HIGH_PRIORITY;
-import static android.content.pm.PackageManager.COMPONENT_ENABLED_STATE_DEFAULT;
-import static android.content.pm.PackageManager.DONT_KILL_APP;
 import static android.content.pm.PackageManager.PERMISSION_GRANTED;
 import static android.devicelock.DeviceId.DEVICE_ID_TYPE_IMEI;
 import static android.devicelock.DeviceId.DEVICE_ID_TYPE_MEID;
 
 import android.Manifest;
 import android.annotation.NonNull;
+import android.annotation.Nullable;
 import android.app.AppOpsManager;
 import android.app.role.RoleManager;
 import android.content.BroadcastReceiver;
@@ -39,27 +38,35 @@ import android.content.pm.PackageManager.NameNotFoundException;
 import android.content.pm.PackageManager.PackageInfoFlags;
 import android.content.pm.ServiceInfo;
 import android.devicelock.DeviceId.DeviceIdType;
-import android.devicelock.DeviceLockManager;
+import android.devicelock.DeviceLockStatus;
+import android.devicelock.IClearDeviceRestrictionsCallback;
 import android.devicelock.IDeviceLockService;
 import android.devicelock.IGetDeviceIdCallback;
+import android.devicelock.IGetDeviceLockStatusCallback;
 import android.devicelock.IGetKioskAppsCallback;
 import android.devicelock.IIsDeviceLockedCallback;
 import android.devicelock.ILockUnlockDeviceCallback;
 import android.os.Binder;
 import android.os.Bundle;
 import android.os.OutcomeReceiver;
+import android.os.ParcelFileDescriptor;
+import android.os.Process;
 import android.os.RemoteCallback;
 import android.os.RemoteException;
+import android.os.SystemClock;
 import android.os.UserHandle;
-import android.telephony.TelephonyManager;
-import android.text.TextUtils;
-import android.util.ArrayMap;
+import android.util.ArraySet;
 import android.util.Slog;
 
+import com.android.internal.annotations.GuardedBy;
 import com.android.internal.annotations.VisibleForTesting;
 
-import java.util.ArrayList;
+import java.io.FileDescriptor;
+import java.io.PrintWriter;
+import java.util.Collections;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 
 /**
  * Implementation of {@link android.devicelock.IDeviceLockService} binder service.
@@ -69,17 +76,69 @@ final class DeviceLockServiceImpl extends IDeviceLockService.Stub {
 
     private final Context mContext;
 
-    private final DeviceLockControllerConnector mDeviceLockControllerConnector;
-
     private final DeviceLockControllerPackageUtils mPackageUtils;
 
-    private final ServiceInfo mServiceInfo;
+    private final KioskAppsCache mKioskAppsCache;
+
+    private final ApiMetrics mApiMetrics = new ApiMetrics();
+
+    private final DeviceStateStore mDeviceStateStore = new DeviceStateStore();
+
+    private final PermissionCache mPermissionCache;
+
+    // Admission control of the calls that reach the controller. Created on the first such call,
+    // so that reading the limits does not delay boot, and created again when they change.
+    private final Object mRateLimiterLock = new Object();
+
+    // Written with mRateLimiterLock held, read without it.
+    private volatile CallerRateLimiter mMutationRateLimiter;
+
+    private volatile CallerRateLimiter mReadRateLimiter;
+
+    /**
+     * State depending on the controller package, resolved on first use or once boot completes
+     * (see {@link #getController()}), so that resolving it does not delay system_server boot.
+     */
+    private static final class ResolvedController {
+        final ServiceInfo mServiceInfo;
+        final DeviceLockControllerConnectorPool mConnectorPool;
+        final ControllerPackageEnabler mPackageEnabler;
+        // Only needed to match the device ids returned by the controller.
+        final TelephonyIdentifierCache mTelephonyIdentifierCache;
+
+        ResolvedController(@NonNull ServiceInfo serviceInfo,
+                @NonNull DeviceLockControllerConnectorPool connectorPool,
+                @NonNull ControllerPackageEnabler packageEnabler,
+                @NonNull TelephonyIdentifierCache telephonyIdentifierCache) {
+            mServiceInfo = serviceInfo;
+            mConnectorPool = connectorPool;
+            mPackageEnabler = packageEnabler;
+            mTelephonyIdentifierCache = telephonyIdentifierCache;
+        }
+    }
+
+    private final Object mControllerLock = new Object();
+
+    // Written with mControllerLock held, read without it.
+    private volatile ResolvedController mController;
+
+    // Users switched to before the controller was resolved, their controller package enabled
+    // state is restored once it is.
+    @GuardedBy("mControllerLock")
+    private final ArraySet<UserHandle> mPendingEnabledStateUsers = new ArraySet<>();
+
+    @GuardedBy("mControllerLock")
+    private long mControllerInitNanos;
+
+    @GuardedBy("mControllerLock")
+    private String mControllerInitReason;
 
     // The following should be a SystemApi on AppOpsManager.
     private static final String OPSTR_SYSTEM_EXEMPT_FROM_ACTIVITY_BG_START_RESTRICTION =
             "android:system_exempt_from_activity_bg_start_restriction";
 
-    // Stopgap: this receiver should be replaced by an API on DeviceLockManager.
+    // Compatibility shim for clients that still clear the device through an ordered broadcast,
+    // DeviceLockManager#clearDeviceRestrictions should be used instead.
     private final class DeviceLockClearReceiver extends BroadcastReceiver {
         static final String ACTION_CLEAR = "com.android.devicelock.intent.action.CLEAR";
         static final int CLEAR_SUCCEEDED = 0;
@@ -93,9 +152,18 @@ final class DeviceLockServiceImpl extends IDeviceLockService.Stub {
             // The result will still be sent to the 'resultReceiver' of 'sendOrderedBroadcast'.
             abortBroadcast();
 
+            final ResolvedController controller = tryGetController();
+            if (controller == null) {
+                setResultCode(DeviceLockClearReceiver.CLEAR_FAILED);
+                return;
+            }
+
             final PendingResult pendingResult = goAsync();
 
-            mDeviceLockControllerConnector.clearDeviceRestrictions(new OutcomeReceiver<>() {
+            // Broadcasts are only handled for the system user.
+            final DeviceLockControllerConnector connector =
+                    controller.mConnectorPool.getConnector(UserHandle.SYSTEM);
+            connector.clearDeviceRestrictions(new OutcomeReceiver<>() {
 
                 private void setResult(int resultCode) {
                     pendingResult.setResultCode(resultCode);
@@ -132,56 +200,232 @@ final class DeviceLockServiceImpl extends IDeviceLockService.Stub {
 
         mPackageUtils = new DeviceLockControllerPackageUtils(context);
 
-        final StringBuilder errorMessage = new StringBuilder();
-        mServiceInfo = mPackageUtils.findService(errorMessage);
+        mKioskAppsCache = new KioskAppsCache(context);
+
+        mPermissionCache = new PermissionCache(context);
+
+        // Registered right away, broadcasts sent before the controller is resolved are handled.
+        final IntentFilter intentFilter = new IntentFilter(DeviceLockClearReceiver.ACTION_CLEAR);
+        // Run before any eventual app receiver (there should be none).
+        intentFilter.setPriority(SYSTEM_HIGH_PRIORITY);
+        mContext.registerReceiver(new DeviceLockClearReceiver(),
+                intentFilter,
+                Manifest.permission.MANAGE_DEVICE_LOCK_STATE, null /* scheduler */,
+                Context.RECEIVER_EXPORTED);
+    }
+
+    /**
+     * Resolve the controller, if not done yet on first use, and let the lock state restored from
+     * disk be confirmed with the controller.
+     */
+    void initDeviceLockController() {
+        final ResolvedController controller =
+                mController != null ? mController : initController("boot completed");
+        controller.mConnectorPool.getConnector(UserHandle.SYSTEM).onBootCompleted();
+    }
 
-        if (mServiceInfo == null) {
-            mDeviceLockControllerConnector = null;
+    @NonNull
+    private ResolvedController getController() {
+        final ResolvedController controller = mController;
+        return controller != null ? controller : initController("first use");
+    }
 
+    // Same as getController(), but returns null instead of throwing if the controller cannot be
+    // resolved, for callers that report errors through a callback.
+    @Nullable
+    private ResolvedController tryGetController() {
+        try {
+            return getController();
+        } catch (RuntimeException e) {
+            Slog.e(TAG, "Cannot resolve the controller", e);
+            return null;
+        }
+    }
+
+    @NonNull
+    private ResolvedController initController(@NonNull String reason) {
+        synchronized (mControllerLock) {
+            if (mController != null) {
+                return mController;
+            }
+
+            final long startNanos = SystemClock.elapsedRealtimeNanos();
+            // Also reached from API calls, package queries must not be done as the caller.
+            final long identity = Binder.clearCallingIdentity();
+            try {
+                mController = resolveController();
+            } finally {
+                Binder.restoreCallingIdentity(identity);
+            }
+            mControllerInitNanos = SystemClock.elapsedRealtimeNanos() - startNanos;
+            mControllerInitReason = reason;
+            Slog.i(TAG, "Controller resolved on " + reason + " in "
+                    + mControllerInitNanos / 1_000_000 + "ms");
+
+            for (int i = 0; i < mPendingEnabledStateUsers.size(); i++) {
+                mController.mPackageEnabler.setDefaultEnabledStateAsync(
+                        mPendingEnabledStateUsers.valueAt(i));
+            }
+            mPendingEnabledStateUsers.clear();
+
+            return mController;
+        }
+    }
+
+    @GuardedBy("mControllerLock")
+    @NonNull
+    private ResolvedController resolveController() {
+        final StringBuilder errorMessage = new StringBuilder();
+        final ServiceInfo serviceInfo = mPackageUtils.findService(errorMessage);
+
+        if (serviceInfo == null) {
             throw new RuntimeException(errorMessage.toString());
         }
 
-        if (!mServiceInfo.applicationInfo.enabled) {
+        final ComponentName componentName = new ComponentName(serviceInfo.packageName,
+                serviceInfo.name);
+
+        final ControllerPackageEnabler packageEnabler =
+                new ControllerPackageEnabler(mContext, serviceInfo.packageName);
+        final DeviceLockControllerConnectorPool connectorPool =
+                new DeviceLockControllerConnectorPool(mContext, componentName, mApiMetrics,
+                        packageEnabler);
+
+        if (!serviceInfo.applicationInfo.enabled) {
             Slog.w(TAG, "Device Lock Controller is disabled");
-            setDeviceLockControllerPackageDefaultEnabledState(UserHandle.SYSTEM);
+            // Synchronously, the controller must be enabled before the first binding.
+            packageEnabler.setDefaultEnabledState(UserHandle.SYSTEM);
         }
 
-        final ComponentName componentName = new ComponentName(mServiceInfo.packageName,
-                mServiceInfo.name);
-
-        mDeviceLockControllerConnector = new DeviceLockControllerConnector(context, componentName);
+        // Answer the lock state from the persisted one until the controller reports it.
+        final DeviceStateStore.State persistedState = mDeviceStateStore.load();
+        if (persistedState != null) {
+            connectorPool.getConnector(UserHandle.SYSTEM)
+                    .restoreCachedIsDeviceLocked(persistedState.mIsDeviceLocked);
+        }
 
-        final IntentFilter intentFilter = new IntentFilter(DeviceLockClearReceiver.ACTION_CLEAR);
-        // Run before any eventual app receiver (there should be none).
-        intentFilter.setPriority(SYSTEM_HIGH_PRIORITY);
-        context.registerReceiver(new DeviceLockClearReceiver(),
-                intentFilter,
-                Manifest.permission.MANAGE_DEVICE_LOCK_STATE, null /* scheduler */,
-                Context.RECEIVER_EXPORTED);
+        return new ResolvedController(serviceInfo, connectorPool, packageEnabler,
+                new TelephonyIdentifierCache(mContext));
     }
 
+    /**
+     * Restore the default enabled state of the controller package for a user, in the background.
+     */
     void setDeviceLockControllerPackageDefaultEnabledState(@NonNull UserHandle userHandle) {
-        final String controllerPackageName = mServiceInfo.packageName;
+        final ResolvedController controller;
+        synchronized (mControllerLock) {
+            controller = mController;
+            if (controller == null) {
+                mPendingEnabledStateUsers.add(userHandle);
+                return;
+            }
+        }
 
-        Context controllerContext;
-        try {
-            controllerContext = mContext.createPackageContextAsUser(controllerPackageName,
-                    0 /* flags */, userHandle);
-        } catch (NameNotFoundException e) {
-            Slog.e(TAG, "Cannot create package context for: " + userHandle, e);
+        controller.mPackageEnabler.setDefaultEnabledStateAsync(userHandle);
+    }
 
+    /**
+     * Bind to the controller ahead of the first API call, if the persisted device state says the
+     * device is enrolled. Nothing is persisted until the controller first reports its state.
+     */
+    void prebindDeviceLockController() {
+        final DeviceStateStore.State state = mDeviceStateStore.get();
+        if (state == null || !state.isEnrolled()) {
+            Slog.d(TAG, "Device not enrolled, not pre-binding the controller");
             return;
         }
 
-        final PackageManager controllerPackageManager = controllerContext.getPackageManager();
+        Slog.i(TAG, "Pre-binding the controller");
+        getController().mConnectorPool.getConnector(UserHandle.SYSTEM).prebind();
+    }
+
+    /**
+     * Drop the controller connection of a stopping user.
+     */
+    void onUserStopping(@NonNull UserHandle userHandle) {
+        final ResolvedController controller;
+        synchronized (mControllerLock) {
+            controller = mController;
+            if (controller == null) {
+                mPendingEnabledStateUsers.remove(userHandle);
+                return;
+            }
+        }
+
+        controller.mConnectorPool.removeConnector(userHandle);
+        controller.mPackageEnabler.onUserRemoved(userHandle);
+    }
+
+    // Connector to the controller instance running as the calling user, or null if the
+    // controller cannot be resolved.
+    @Nullable
+    private DeviceLockControllerConnector tryGetCallerConnector() {
+        final ResolvedController controller = tryGetController();
+        return controller != null
+                ? controller.mConnectorPool.getConnector(Binder.getCallingUserHandle()) : null;
+    }
+
+    // Admission control, done before any connector work that may reach the controller.
+    private boolean admitCall(boolean mutation, int api) {
+        CallerRateLimiter rateLimiter = mutation ? mMutationRateLimiter : mReadRateLimiter;
+        if (rateLimiter == null) {
+            createRateLimiters();
+            rateLimiter = mutation ? mMutationRateLimiter : mReadRateLimiter;
+        }
+
+        if (rateLimiter.tryAcquire(Binder.getCallingUid(), SystemClock.uptimeMillis())) {
+            return true;
+        }
+
+        mApiMetrics.recordOutcome(api, ApiMetrics.OUTCOME_REJECTED);
 
-        controllerPackageManager.setApplicationEnabledSetting(controllerPackageName,
-                COMPONENT_ENABLED_STATE_DEFAULT, DONT_KILL_APP);
+        return false;
+    }
+
+    private void createRateLimiters() {
+        synchronized (mRateLimiterLock) {
+            if (mMutationRateLimiter != null) {
+                return;
+            }
+
+            // Reached from API calls, the configuration must not be read as the caller.
+            final long identity = Binder.clearCallingIdentity();
+            try {
+                // Registered before the limits are read, so that no change goes unnoticed.
+                try {
+                    DeviceLockConfig.addOnRateLimitsChangedListener(mContext.getMainExecutor(),
+                            this::onRateLimitsChanged);
+                } catch (RuntimeException e) {
+                    Slog.e(TAG, "Cannot observe rate limit changes, they apply after a reboot", e);
+                }
+                updateRateLimitersLocked();
+            } finally {
+                Binder.restoreCallingIdentity(identity);
+            }
+        }
+    }
+
+    private void onRateLimitsChanged() {
+        Slog.i(TAG, "Rate limits changed");
+        synchronized (mRateLimiterLock) {
+            updateRateLimitersLocked();
+        }
+    }
+
+    // Callers are tracked again from full buckets.
+    @GuardedBy("mRateLimiterLock")
+    private void updateRateLimitersLocked() {
+        final long now = SystemClock.uptimeMillis();
+        mReadRateLimiter = new CallerRateLimiter(DeviceLockConfig.getReadRatePerSecond(),
+                DeviceLockConfig.getReadBurst(), now);
+        // Written last, it tells that both limiters exist.
+        mMutationRateLimiter = new CallerRateLimiter(DeviceLockConfig.getMutationRatePerSecond(),
+                DeviceLockConfig.getMutationBurst(), now);
     }
 
     private boolean checkCallerPermission() {
-        return mContext.checkCallingOrSelfPermission(Manifest.permission.MANAGE_DEVICE_LOCK_STATE)
-                == PERMISSION_GRANTED;
+        return mPermissionCache.checkCallingOrSelfPermission(
+                Manifest.permission.MANAGE_DEVICE_LOCK_STATE);
     }
 
     private void reportDeviceLockedUnlocked(@NonNull ILockUnlockDeviceCallback callback,
@@ -226,8 +470,22 @@ final class DeviceLockServiceImpl extends IDeviceLockService.Stub {
             return;
         }
 
-        mDeviceLockControllerConnector.lockDevice(
-                getLockUnlockOutcomeReceiver(callback, "Device locked"));
+        if (!admitCall(true /* mutation */, ApiMetrics.API_LOCK_DEVICE)) {
+            try {
+                callback.onError(ILockUnlockDeviceCallback.ERROR_BUSY);
+            } catch (RemoteException e) {
+                Slog.e(TAG, "lockDevice() - Unable to send error to the callback", e);
+            }
+            return;
+        }
+
+        final DeviceLockControllerConnector connector = tryGetCallerConnector();
+        if (connector == null) {
+            reportDeviceLockedUnlocked(callback, false /* success */);
+            return;
+        }
+
+        connector.lockDevice(getLockUnlockOutcomeReceiver(callback, "Device locked"));
     }
 
     @Override
@@ -241,8 +499,22 @@ final class DeviceLockServiceImpl extends IDeviceLockService.Stub {
             return;
         }
 
-        mDeviceLockControllerConnector.unlockDevice(
-                getLockUnlockOutcomeReceiver(callback, "Device unlocked"));
+        if (!admitCall(true /* mutation */, ApiMetrics.API_UNLOCK_DEVICE)) {
+            try {
+                callback.onError(ILockUnlockDeviceCallback.ERROR_BUSY);
+            } catch (RemoteException e) {
+                Slog.e(TAG, "unlockDevice() - Unable to send error to the callback", e);
+            }
+            return;
+        }
+
+        final DeviceLockControllerConnector connector = tryGetCallerConnector();
+        if (connector == null) {
+            reportDeviceLockedUnlocked(callback, false /* success */);
+            return;
+        }
+
+        connector.unlockDevice(getLockUnlockOutcomeReceiver(callback, "Device unlocked"));
     }
 
     @Override
@@ -256,7 +528,7 @@ final class DeviceLockServiceImpl extends IDeviceLockService.Stub {
             return;
         }
 
-        mDeviceLockControllerConnector.isDeviceLocked(
+        final OutcomeReceiver<Boolean, Exception> isDeviceLockedReceiver =
                 new OutcomeReceiver<>() {
                     @Override
                     public void onResult(Boolean isLocked) {
@@ -279,7 +551,33 @@ final class DeviceLockServiceImpl extends IDeviceLockService.Stub {
                                         + "callback", e);
                             }
                         }
-                });
+                };
+
+        final DeviceLockControllerConnector connector = tryGetCallerConnector();
+        if (connector == null) {
+            isDeviceLockedReceiver.onError(new Exception("Cannot resolve the controller"));
+            return;
+        }
+
+        // Answer from the cached state if known, the controller is only called when it is not.
+        final Boolean cachedIsLocked = connector.getCachedIsDeviceLocked();
+        if (cachedIsLocked != null) {
+            mApiMetrics.recordOutcome(ApiMetrics.API_IS_DEVICE_LOCKED, ApiMetrics.OUTCOME_LOCAL);
+            isDeviceLockedReceiver.onResult(cachedIsLocked);
+            return;
+        }
+
+        // Only calls reaching the controller are limited.
+        if (!admitCall(false /* mutation */, ApiMetrics.API_IS_DEVICE_LOCKED)) {
+            try {
+                callback.onError(IIsDeviceLockedCallback.ERROR_BUSY);
+            } catch (RemoteException e) {
+                Slog.e(TAG, "isDeviceLocked() - Unable to send error to the callback", e);
+            }
+            return;
+        }
+
+        connector.isDeviceLocked(isDeviceLockedReceiver);
     }
 
     @VisibleForTesting
@@ -293,40 +591,35 @@ final class DeviceLockServiceImpl extends IDeviceLockService.Stub {
             Slog.e(TAG, "getDeviceId() - Unable to send result to the callback", e);
         }
 
-        final TelephonyManager telephonyManager =
-                mContext.getSystemService(TelephonyManager.class);
-        int activeModemCount = telephonyManager.getActiveModemCount();
-        List<String> imeiList = new ArrayList<String>();
-        List<String> meidList = new ArrayList<String>();
-
-        if ((deviceIdTypeBitmap & (1 << DEVICE_ID_TYPE_IMEI)) != 0) {
-            for (int i = 0; i < activeModemCount; i++) {
-                String imei = telephonyManager.getImei(i);
-                if (!TextUtils.isEmpty(imei)) {
-                    imeiList.add(imei);
-                }
+        final ResolvedController controller = tryGetController();
+        if (controller == null) {
+            try {
+                callback.onError(IGetDeviceIdCallback.ERROR_CANNOT_GET_DEVICE_ID);
+            } catch (RemoteException e) {
+                Slog.e(TAG, "getDeviceId() - Unable to send error to the callback", e);
             }
+            return;
         }
 
-        if ((deviceIdTypeBitmap & (1 << DEVICE_ID_TYPE_MEID)) != 0) {
-            for (int i = 0; i < activeModemCount; i++) {
-                String meid = telephonyManager.getMeid(i);
-                if (!TextUtils.isEmpty(meid)) {
-                    meidList.add(meid);
-                }
-            }
-        }
+        final TelephonyIdentifierCache telephonyIdentifierCache =
+                controller.mTelephonyIdentifierCache;
+        final Set<String> imeis = (deviceIdTypeBitmap & (1 << DEVICE_ID_TYPE_IMEI)) != 0
+                ? telephonyIdentifierCache.getImeis() : Collections.emptySet();
+        final Set<String> meids = (deviceIdTypeBitmap & (1 << DEVICE_ID_TYPE_MEID)) != 0
+                ? telephonyIdentifierCache.getMeids() : Collections.emptySet();
 
-        mDeviceLockControllerConnector.getDeviceId(new OutcomeReceiver<>() {
+        final DeviceLockControllerConnector connector =
+                controller.mConnectorPool.getConnector(Binder.getCallingUserHandle());
+        connector.getDeviceId(new OutcomeReceiver<>() {
                 @Override
                 public void onResult(String deviceId) {
                     Slog.i(TAG, "Get Device ID ");
                     try {
-                        if (meidList.contains(deviceId)) {
+                        if (meids.contains(deviceId)) {
                             callback.onDeviceIdReceived(DEVICE_ID_TYPE_MEID, deviceId);
                             return;
                         }
-                        if (imeiList.contains(deviceId)) {
+                        if (imeis.contains(deviceId)) {
                             callback.onDeviceIdReceived(DEVICE_ID_TYPE_IMEI, deviceId);
                             return;
                         }
@@ -367,6 +660,19 @@ final class DeviceLockServiceImpl extends IDeviceLockService.Stub {
             return;
         }
 
+        if (!admitCall(false /* mutation */, ApiMetrics.API_GET_DEVICE_ID)) {
+            try {
+                callback.onError(IGetDeviceIdCallback.ERROR_BUSY);
+            } catch (RemoteException e) {
+                Slog.e(TAG, "getDeviceId() - Unable to send error to the callback", e);
+            }
+            return;
+        }
+
+        getDeviceId(callback, getDeviceIdTypeBitmap());
+    }
+
+    private int getDeviceIdTypeBitmap() {
         final StringBuilder errorBuilder = new StringBuilder();
 
         final long identity = Binder.clearCallingIdentity();
@@ -377,32 +683,238 @@ final class DeviceLockServiceImpl extends IDeviceLockService.Stub {
             Slog.e(TAG, "getDeviceId: " + errorBuilder);
         }
 
-        getDeviceId(callback, deviceIdTypeBitmap);
+        return deviceIdTypeBitmap;
     }
 
     @Override
     public void getKioskApps(@NonNull IGetKioskAppsCallback callback) {
         // Caller is not necessarily a kiosk app, and no particular permission enforcing is needed.
 
-        final ArrayMap kioskApps = new ArrayMap<Integer, String>();
-
+        final long startNanos = SystemClock.elapsedRealtimeNanos();
         final UserHandle userHandle = Binder.getCallingUserHandle();
-        final RoleManager roleManager = mContext.getSystemService(RoleManager.class);
         final long identity = Binder.clearCallingIdentity();
         try {
-            List<String> roleHolders = roleManager.getRoleHoldersAsUser(
-                    RoleManager.ROLE_FINANCED_DEVICE_KIOSK, userHandle);
+            callback.onKioskAppsReceived(mKioskAppsCache.getKioskApps(userHandle));
+            mApiMetrics.recordOutcome(ApiMetrics.API_GET_KIOSK_APPS, ApiMetrics.OUTCOME_SUCCESS);
+        } catch (RemoteException e) {
+            Slog.e(TAG, "getKioskApps() - Unable to send result to the callback", e);
+            mApiMetrics.recordOutcome(ApiMetrics.API_GET_KIOSK_APPS, ApiMetrics.OUTCOME_ERROR);
+        } finally {
+            Binder.restoreCallingIdentity(identity);
+        }
+        mApiMetrics.recordLatency(ApiMetrics.API_GET_KIOSK_APPS, ApiMetrics.PHASE_TOTAL,
+                SystemClock.elapsedRealtimeNanos() - startNanos);
+    }
+
+    @Override
+    public void clearDeviceRestrictions(@NonNull IClearDeviceRestrictionsCallback callback) {
+        if (!checkCallerPermission()) {
+            try {
+                callback.onError(IClearDeviceRestrictionsCallback.ERROR_SECURITY);
+            } catch (RemoteException e) {
+                Slog.e(TAG, "clearDeviceRestrictions() - Unable to send error to the callback",
+                        e);
+            }
+            return;
+        }
 
-            if (!roleHolders.isEmpty()) {
-                kioskApps.put(DeviceLockManager.DEVICE_LOCK_ROLE_FINANCING, roleHolders.get(0));
+        if (!admitCall(true /* mutation */, ApiMetrics.API_CLEAR_DEVICE_RESTRICTIONS)) {
+            try {
+                callback.onError(IClearDeviceRestrictionsCallback.ERROR_BUSY);
+            } catch (RemoteException e) {
+                Slog.e(TAG, "clearDeviceRestrictions() - Unable to send error to the callback",
+                        e);
             }
+            return;
+        }
 
-            callback.onKioskAppsReceived(kioskApps);
-        } catch (RemoteException e) {
-            Slog.e(TAG, "getKioskApps() - Unable to send result to the callback", e);
+        final DeviceLockControllerConnector connector = tryGetCallerConnector();
+        if (connector == null) {
+            try {
+                callback.onError(IClearDeviceRestrictionsCallback.ERROR_UNKNOWN);
+            } catch (RemoteException e) {
+                Slog.e(TAG, "clearDeviceRestrictions() - Unable to send error to the callback",
+                        e);
+            }
+            return;
+        }
+
+        connector.clearDeviceRestrictions(new OutcomeReceiver<>() {
+            @Override
+            public void onResult(Void ignored) {
+                Slog.i(TAG, "Device cleared");
+                try {
+                    callback.onDeviceRestrictionsCleared();
+                } catch (RemoteException e) {
+                    Slog.e(TAG, "clearDeviceRestrictions() - Unable to send result to the "
+                            + "callback", e);
+                }
+            }
+
+            @Override
+            public void onError(Exception ex) {
+                Slog.e(TAG, "Exception clearing device: ", ex);
+                try {
+                    callback.onError(IClearDeviceRestrictionsCallback.ERROR_UNKNOWN);
+                } catch (RemoteException e) {
+                    Slog.e(TAG, "clearDeviceRestrictions() - Unable to send error to the "
+                            + "callback", e);
+                }
+            }
+        });
+    }
+
+    @Override
+    public void getDeviceLockStatus(@NonNull IGetDeviceLockStatusCallback callback) {
+        if (!checkCallerPermission()) {
+            try {
+                callback.onError(IGetDeviceLockStatusCallback.ERROR_SECURITY);
+            } catch (RemoteException e) {
+                Slog.e(TAG, "getDeviceLockStatus() - Unable to send error to the callback", e);
+            }
+            return;
+        }
+
+        if (!admitCall(false /* mutation */, ApiMetrics.API_GET_DEVICE_LOCK_STATUS)) {
+            try {
+                callback.onError(IGetDeviceLockStatusCallback.ERROR_BUSY);
+            } catch (RemoteException e) {
+                Slog.e(TAG, "getDeviceLockStatus() - Unable to send error to the callback", e);
+            }
+            return;
+        }
+
+        final ResolvedController controller = tryGetController();
+        if (controller == null) {
+            try {
+                callback.onError(IGetDeviceLockStatusCallback.ERROR_UNKNOWN);
+            } catch (RemoteException e) {
+                Slog.e(TAG, "getDeviceLockStatus() - Unable to send error to the callback", e);
+            }
+            return;
+        }
+
+        final UserHandle userHandle = Binder.getCallingUserHandle();
+        final int deviceIdTypeBitmap = getDeviceIdTypeBitmap();
+
+        final Map<Integer, String> kioskApps;
+        final long identity = Binder.clearCallingIdentity();
+        try {
+            kioskApps = mKioskAppsCache.getKioskApps(userHandle);
         } finally {
             Binder.restoreCallingIdentity(identity);
         }
+
+        // An invalid bitmap means no device id type is supported.
+        final TelephonyIdentifierCache telephonyIdentifierCache =
+                controller.mTelephonyIdentifierCache;
+        final Set<String> imeis = deviceIdTypeBitmap > 0
+                && (deviceIdTypeBitmap & (1 << DEVICE_ID_TYPE_IMEI)) != 0
+                ? telephonyIdentifierCache.getImeis() : Collections.emptySet();
+        final Set<String> meids = deviceIdTypeBitmap > 0
+                && (deviceIdTypeBitmap & (1 << DEVICE_ID_TYPE_MEID)) != 0
+                ? telephonyIdentifierCache.getMeids() : Collections.emptySet();
+
+        // Lock state and device id come from a single controller call, kiosk apps are known here.
+        controller.mConnectorPool.getConnector(userHandle).getDeviceStatus(new OutcomeReceiver<>() {
+            @Override
+            public void onResult(DeviceLockControllerConnector.DeviceStatus status) {
+                String deviceId = status.mDeviceId;
+                int deviceIdType = DEVICE_ID_TYPE_IMEI;
+                if (meids.contains(deviceId)) {
+                    deviceIdType = DEVICE_ID_TYPE_MEID;
+                } else if (!imeis.contains(deviceId)) {
+                    // Same as getDeviceId(): the id does not match any identifier of the device.
+                    deviceId = null;
+                }
+
+                try {
+                    callback.onDeviceLockStatusReceived(new DeviceLockStatus(
+                            status.mIsDeviceLocked, deviceIdType, deviceId, kioskApps));
+                } catch (RemoteException e) {
+                    Slog.e(TAG, "getDeviceLockStatus() - Unable to send result to the "
+                            + "callback", e);
+                }
+            }
+
+            @Override
+            public void onError(Exception ex) {
+                Slog.e(TAG, "Exception: ", ex);
+                try {
+                    callback.onError(IGetDeviceLockStatusCallback.ERROR_UNKNOWN);
+                } catch (RemoteException e) {
+                    Slog.e(TAG, "getDeviceLockStatus() - Unable to send error to the "
+                            + "callback", e);
+                }
+            }
+        });
+    }
+
+    @Override
+    protected void dump(@NonNull FileDescriptor fd, @NonNull PrintWriter pw,
+            @Nullable String[] args) {
+        if (mContext.checkCallingOrSelfPermission(Manifest.permission.DUMP)
+                != PERMISSION_GRANTED) {
+            pw.println("Permission Denial: can't dump " + TAG + " from pid="
+                    + Binder.getCallingPid() + ", uid=" + Binder.getCallingUid());
+            return;
+        }
+
+        pw.println("DeviceLockService:");
+        final ResolvedController controller;
+        synchronized (mControllerLock) {
+            controller = mController;
+            if (controller == null) {
+                pw.println("  Controller: not resolved yet");
+            } else {
+                pw.println("  Controller: resolved on " + mControllerInitReason + " in "
+                        + mControllerInitNanos / 1_000 + "us");
+            }
+        }
+        if (controller != null) {
+            pw.println("  Controller connectors:");
+            controller.mConnectorPool.dump(pw, "    ");
+            pw.println("  Telephony identifiers:");
+            controller.mTelephonyIdentifierCache.dump(pw, "    ");
+        }
+        pw.println("  Device state store:");
+        mDeviceStateStore.dump(pw, "    ");
+        if (controller != null) {
+            pw.println("  Controller package enabler:");
+            controller.mPackageEnabler.dump(pw, "    ");
+        }
+        pw.println("  Permission cache:");
+        mPermissionCache.dump(pw, "    ");
+        pw.println("  Kiosk apps:");
+        mKioskAppsCache.dump(pw, "    ");
+        final CallerRateLimiter mutationRateLimiter = mMutationRateLimiter;
+        final CallerRateLimiter readRateLimiter = mReadRateLimiter;
+        if (mutationRateLimiter == null) {
+            pw.println("  Rate limiters not created yet");
+        } else {
+            pw.println("  Mutation rate limiter:");
+            mutationRateLimiter.dump(pw, "    ");
+            pw.println("  Read rate limiter:");
+            readRateLimiter.dump(pw, "    ");
+        }
+        pw.println("  API metrics:");
+        mApiMetrics.dump(pw, "    ");
+    }
+
+    @Override
+    public int handleShellCommand(@NonNull ParcelFileDescriptor in,
+            @NonNull ParcelFileDescriptor out, @NonNull ParcelFileDescriptor err,
+            @NonNull String[] args) {
+        final int callingUid = Binder.getCallingUid();
+        if (callingUid != Process.SHELL_UID && callingUid != Process.ROOT_UID) {
+            throw new SecurityException("Shell commands are only allowed from the shell");
+        }
+
+        final ResolvedController controller = getController();
+        return new DeviceLockShellCommand(controller.mConnectorPool,
+                controller.mTelephonyIdentifierCache,
+                mKioskAppsCache).exec(this, in.getFileDescriptor(), out.getFileDescriptor(),
+                err.getFileDescriptor(), args);
     }
 
     // For calls from Controller to System Service.
@@ -414,8 +926,8 @@ final class DeviceLockServiceImpl extends IDeviceLockService.Stub {
     }
 
     private boolean checkDeviceLockControllerPermission(@NonNull RemoteCallback remoteCallback) {
-        if (mContext.checkCallingOrSelfPermission(MANAGE_DEVICE_LOCK_SERVICE_FROM_CONTROLLER)
-                != PERMISSION_GRANTED) {
+        if (!mPermissionCache.checkCallingOrSelfPermission(
+                MANAGE_DEVICE_LOCK_SERVICE_FROM_CONTROLLER)) {
             reportErrorToCaller(remoteCallback);
             return false;
         }
@@ -491,7 +1003,13 @@ final class DeviceLockServiceImpl extends IDeviceLockService.Stub {
             return;
         }
 
-        setExemption(mServiceInfo.packageName, Binder.getCallingUid(),
+        final ResolvedController controller = tryGetController();
+        if (controller == null) {
+            reportErrorToCaller(remoteCallback);
+            return;
+        }
+
+        setExemption(controller.mServiceInfo.packageName, Binder.getCallingUid(),
                 OPSTR_SYSTEM_EXEMPT_FROM_ACTIVITY_BG_START_RESTRICTION, exempt, remoteCallback);
     }
 
@@ -521,4 +1039,22 @@ final class DeviceLockServiceImpl extends IDeviceLockService.Stub {
         setExemption(packageName, kioskUid, OPSTR_SYSTEM_EXEMPT_FROM_HIBERNATION, exempt,
                 remoteCallback);
     }
+
+    @Override
+    public void onDeviceStateChanged(int deviceState, boolean isLocked, long sequence) {
+        if (!mPermissionCache.checkCallingOrSelfPermission(
+                MANAGE_DEVICE_LOCK_SERVICE_FROM_CONTROLLER)) {
+            Slog.w(TAG, "onDeviceStateChanged() - Caller is not the controller");
+            return;
+        }
+
+        final UserHandle userHandle = Binder.getCallingUserHandle();
+        final DeviceLockControllerConnectorPool connectorPool = getController().mConnectorPool;
+        final DeviceLockControllerConnector connector = connectorPool.getConnector(userHandle);
+        if (connector.onDeviceStateChanged(deviceState, isLocked, sequence)
+                && userHandle.equals(UserHandle.SYSTEM)) {
+            mDeviceStateStore.saveAsync(connectorPool.getHandler(), deviceState, isLocked,
+                    sequence);
+        }
+    }
 }
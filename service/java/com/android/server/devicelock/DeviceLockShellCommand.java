@@ -0,0 +1,322 @@
+/*
+ * Copyright (C) 2023 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.devicelock;
+
+import android.annotation.NonNull;
+import android.os.Build;
+import android.os.OutcomeReceiver;
+import android.os.SystemClock;
+import android.os.UserHandle;
+
+import com.android.modules.utils.BasicShellCommandHandler;
+
+import java.io.PrintWriter;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Handler of {@code cmd device_lock}.
+ *
+ * Exposes the connector state and a latency benchmark of the controller calls, so that builds
+ * can be qualified without a dedicated client app.
+ */
+final class DeviceLockShellCommand extends BasicShellCommandHandler {
+    private static final int DEFAULT_BENCH_CALLS = 100;
+    private static final int DEFAULT_BENCH_CONCURRENCY = 1;
+
+    // Upper bound of the time a benchmark waits for its outstanding calls.
+    private static final long BENCH_DRAIN_TIMEOUT_MILLIS = 1_000 * 60;   // One minute.
+
+    private static final String OP_LOCK = "lock";
+    private static final String OP_UNLOCK = "unlock";
+    private static final String OP_LOCK_UNLOCK = "lock-unlock";
+    private static final String OP_IS_LOCKED = "is-locked";
+
+    private final DeviceLockControllerConnectorPool mConnectorPool;
+    private final TelephonyIdentifierCache mTelephonyIdentifierCache;
+    private final KioskAppsCache mKioskAppsCache;
+
+    DeviceLockShellCommand(@NonNull DeviceLockControllerConnectorPool connectorPool,
+            @NonNull TelephonyIdentifierCache telephonyIdentifierCache,
+            @NonNull KioskAppsCache kioskAppsCache) {
+        mConnectorPool = connectorPool;
+        mTelephonyIdentifierCache = telephonyIdentifierCache;
+        mKioskAppsCache = kioskAppsCache;
+    }
+
+    @Override
+    public int onCommand(String cmd) {
+        if (cmd == null) {
+            return handleDefaultCommands(cmd);
+        }
+
+        switch (cmd) {
+            case "state":
+                return runState();
+            case "bind":
+                return runBind();
+            case "unbind":
+                return runUnbind();
+            case "flush-cache":
+                return runFlushCache();
+            case "bench":
+                return runBench();
+            default:
+                return handleDefaultCommands(cmd);
+        }
+    }
+
+    @Override
+    public void onHelp() {
+        final PrintWriter pw = getOutPrintWriter();
+        pw.println("Device Lock service commands:");
+        pw.println("  help");
+        pw.println("    Print this help text.");
+        pw.println("  state [--user USER_ID]");
+        pw.println("    Print the controller connection and cached lock state.");
+        pw.println("  bind [--user USER_ID]");
+        pw.println("    Bind to the controller.");
+        pw.println("  unbind [--user USER_ID]");
+        pw.println("    Unbind from the controller, failing the pending calls.");
+        pw.println("  flush-cache");
+        pw.println("    Drop the cached telephony identifiers, kiosk apps and lock states.");
+        pw.println("  bench [--user USER_ID] [-n CALLS] [-c CONCURRENCY] [--no-coalesce]");
+        pw.println("          [--op lock|unlock|lock-unlock|is-locked]");
+        pw.println("    Issue CALLS controller calls (default " + DEFAULT_BENCH_CALLS + "), with at"
+                + " most CONCURRENCY (default " + DEFAULT_BENCH_CONCURRENCY + ") outstanding,");
+        pw.println("    and print the throughput and latency histogram. The default op is"
+                + " is-locked.");
+        pw.println("    Lock and unlock ops change the device state and are only available on"
+                + " debuggable builds.");
+        pw.println("    Repeated lock or unlock calls complete locally once the state is known.");
+        pw.println("    Concurrent is-locked calls share one controller call unless"
+                + " --no-coalesce is given.");
+    }
+
+    // Parse the options common to all the connector commands, returns null on error.
+    private DeviceLockControllerConnector getConnectorFromOptions() {
+        UserHandle userHandle = UserHandle.SYSTEM;
+
+        String opt;
+        while ((opt = getNextOption()) != null) {
+            if ("--user".equals(opt)) {
+                userHandle = UserHandle.of(Integer.parseInt(getNextArgRequired()));
+            } else {
+                getErrPrintWriter().println("Unknown option: " + opt);
+                return null;
+            }
+        }
+
+        return mConnectorPool.getConnector(userHandle);
+    }
+
+    private int runState() {
+        final DeviceLockControllerConnector connector = getConnectorFromOptions();
+        if (connector == null) {
+            return -1;
+        }
+
+        connector.dump(getOutPrintWriter(), "");
+
+        return 0;
+    }
+
+    private int runBind() {
+        final DeviceLockControllerConnector connector = getConnectorFromOptions();
+        if (connector == null) {
+            return -1;
+        }
+
+        if (!connector.bind()) {
+            getErrPrintWriter().println("Failed to bind to the controller");
+            return -1;
+        }
+
+        return 0;
+    }
+
+    private int runUnbind() {
+        final DeviceLockControllerConnector connector = getConnectorFromOptions();
+        if (connector == null) {
+            return -1;
+        }
+
+        connector.unbind();
+
+        return 0;
+    }
+
+    private int runFlushCache() {
+        mTelephonyIdentifierCache.invalidate();
+        mKioskAppsCache.invalidate();
+        mConnectorPool.invalidateCachedStates();
+
+        return 0;
+    }
+
+    private int runBench() {
+        final PrintWriter pw = getOutPrintWriter();
+        final PrintWriter err = getErrPrintWriter();
+
+        UserHandle userHandle = UserHandle.SYSTEM;
+        int calls = DEFAULT_BENCH_CALLS;
+        int concurrency = DEFAULT_BENCH_CONCURRENCY;
+        String op = OP_IS_LOCKED;
+        boolean coalesce = true;
+
+        String opt;
+        while ((opt = getNextOption()) != null) {
+            switch (opt) {
+                case "--user":
+                    userHandle = UserHandle.of(Integer.parseInt(getNextArgRequired()));
+                    break;
+                case "-n":
+                    calls = Integer.parseInt(getNextArgRequired());
+                    break;
+                case "-c":
+                    concurrency = Integer.parseInt(getNextArgRequired());
+                    break;
+                case "--op":
+                    op = getNextArgRequired();
+                    break;
+                case "--no-coalesce":
+                    coalesce = false;
+                    break;
+                default:
+                    err.println("Unknown option: " + opt);
+                    return -1;
+            }
+        }
+
+        if (calls <= 0 || concurrency <= 0) {
+            err.println("CALLS and CONCURRENCY must be positive");
+            return -1;
+        }
+
+        switch (op) {
+            case OP_LOCK:
+            case OP_UNLOCK:
+            case OP_LOCK_UNLOCK:
+                if (!Build.isDebuggable()) {
+                    err.println("Op " + op + " is only available on debuggable builds");
+                    return -1;
+                }
+                break;
+            case OP_IS_LOCKED:
+                break;
+            default:
+                err.println("Unknown op: " + op);
+                return -1;
+        }
+
+        final DeviceLockControllerConnector connector = mConnectorPool.getConnector(userHandle);
+        final BenchRun run = new BenchRun(calls, concurrency);
+
+        final long startNanos = SystemClock.elapsedRealtimeNanos();
+        try {
+            for (int i = 0; i < calls; i++) {
+                run.mOutstanding.acquire();
+                issueBenchCall(connector, op, coalesce, i, run);
+            }
+
+            if (!run.mDone.await(BENCH_DRAIN_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS)) {
+                err.println("Timed out waiting for " + run.mDone.getCount() + " calls");
+                return -1;
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            err.println("Interrupted");
+            return -1;
+        }
+        final long elapsedNanos = SystemClock.elapsedRealtimeNanos() - startNanos;
+
+        pw.println("Op: " + op + ", user: " + userHandle.getIdentifier() + ", calls: " + calls
+                + ", concurrency: " + concurrency + ", coalesce: " + coalesce + ", errors: "
+                + run.mErrors.get());
+        pw.println("Elapsed: " + TimeUnit.NANOSECONDS.toMillis(elapsedNanos) + "ms, throughput: "
+                + String.format("%.1f", calls * 1e9 / Math.max(1, elapsedNanos)) + " calls/s");
+        run.mLatency.dump(pw, "", "Latency");
+        run.mLatency.dumpBuckets(pw, "  ");
+
+        return 0;
+    }
+
+    private static void issueBenchCall(@NonNull DeviceLockControllerConnector connector,
+            @NonNull String op, boolean coalesce, int index, @NonNull BenchRun run) {
+        switch (op) {
+            case OP_LOCK:
+                connector.lockDevice(run.newCallback());
+                break;
+            case OP_UNLOCK:
+                connector.unlockDevice(run.newCallback());
+                break;
+            case OP_LOCK_UNLOCK:
+                if (index % 2 == 0) {
+                    connector.lockDevice(run.newCallback());
+                } else {
+                    connector.unlockDevice(run.newCallback());
+                }
+                break;
+            default:
+                if (coalesce) {
+                    connector.isDeviceLocked(run.newCallback());
+                } else {
+                    connector.isDeviceLockedUncoalesced(run.newCallback());
+                }
+                break;
+        }
+    }
+
+    // State of a benchmark, shared by the callbacks of its calls.
+    private static final class BenchRun {
+        final LatencyHistogram mLatency = new LatencyHistogram();
+        final AtomicInteger mErrors = new AtomicInteger();
+        final Semaphore mOutstanding;
+        final CountDownLatch mDone;
+
+        BenchRun(int calls, int concurrency) {
+            mOutstanding = new Semaphore(concurrency);
+            mDone = new CountDownLatch(calls);
+        }
+
+        // Callback of a call issued now.
+        <Result> OutcomeReceiver<Result, Exception> newCallback() {
+            final long startNanos = SystemClock.elapsedRealtimeNanos();
+
+            return new OutcomeReceiver<>() {
+                @Override
+                public void onResult(Result ignored) {
+                    complete();
+                }
+
+                @Override
+                public void onError(Exception ex) {
+                    mErrors.incrementAndGet();
+                    complete();
+                }
+
+                private void complete() {
+                    mLatency.record(SystemClock.elapsedRealtimeNanos() - startNanos);
+                    mOutstanding.release();
+                    mDone.countDown();
+                }
+            };
+        }
+    }
+}
@@ -0,0 +1,228 @@
+/*
+ * Copyright (C) 2023 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.devicelock;
+
+import android.annotation.NonNull;
+import android.annotation.Nullable;
+import android.content.ApexEnvironment;
+import android.os.Handler;
+import android.util.AtomicFile;
+import android.util.Slog;
+
+import com.android.internal.annotations.GuardedBy;
+import com.android.internal.annotations.VisibleForTesting;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.PrintWriter;
+
+/**
+ * Last device state reported by the system user controller, persisted in the device encrypted
+ * APEX data directory.
+ *
+ * This lets the lock state be answered during early boot, before the controller is started. The
+ * state pushed by the controller once it connects always takes precedence.
+ */
+final class DeviceStateStore {
+    private static final String TAG = "DeviceStateStore";
+
+    private static final String APEX_NAME = "com.android.devicelock";
+    private static final String FILE_NAME = "device_state";
+
+    private static final int VERSION = 1;
+
+    // Mirrors DeviceStateController.DeviceState.
+    private static final int DEVICE_STATE_SETUP_IN_PROGRESS = 1;
+    private static final int DEVICE_STATE_SETUP_SUCCEEDED = 2;
+    private static final int DEVICE_STATE_KIOSK_SETUP = 4;
+    private static final int DEVICE_STATE_UNLOCKED = 5;
+    private static final int DEVICE_STATE_LOCKED = 6;
+
+    /**
+     * A persisted device state.
+     */
+    static final class State {
+        // Mirrors DeviceStateController.DeviceState.
+        final int mDeviceState;
+        final boolean mIsDeviceLocked;
+
+        State(int deviceState, boolean isDeviceLocked) {
+            mDeviceState = deviceState;
+            mIsDeviceLocked = isDeviceLocked;
+        }
+
+        /**
+         * Whether the device is enrolled, i.e. provisioned by a creditor and not cleared.
+         */
+        boolean isEnrolled() {
+            switch (mDeviceState) {
+                case DEVICE_STATE_SETUP_IN_PROGRESS:
+                case DEVICE_STATE_SETUP_SUCCEEDED:
+                case DEVICE_STATE_KIOSK_SETUP:
+                case DEVICE_STATE_UNLOCKED:
+                case DEVICE_STATE_LOCKED:
+                    return true;
+                default:
+                    return false;
+            }
+        }
+    }
+
+    private final AtomicFile mFile;
+
+    // Last state read or written, to skip writing an unchanged state.
+    @GuardedBy("this")
+    private State mState;
+
+    @GuardedBy("this")
+    private int mWriteFailures;
+
+    // Latest state scheduled to be written, see saveAsync().
+    @GuardedBy("this")
+    private State mPendingState;
+
+    @GuardedBy("this")
+    private long mPendingSequence = Long.MIN_VALUE;
+
+    @GuardedBy("this")
+    private boolean mWritePosted;
+
+    DeviceStateStore() {
+        this(new File(ApexEnvironment.getApexEnvironment(APEX_NAME).getDeviceProtectedDataDir(),
+                FILE_NAME));
+    }
+
+    @VisibleForTesting
+    DeviceStateStore(@NonNull File file) {
+        mFile = new AtomicFile(file);
+    }
+
+    /**
+     * Read the persisted state.
+     *
+     * @return the state, or null if none was persisted or it cannot be read.
+     */
+    @Nullable
+    synchronized State load() {
+        try (DataInputStream in = new DataInputStream(mFile.openRead())) {
+            final int version = in.readInt();
+            if (version != VERSION) {
+                Slog.w(TAG, "Ignoring persisted state with version " + version);
+                return null;
+            }
+
+            mState = new State(in.readInt(), in.readBoolean());
+        } catch (FileNotFoundException e) {
+            return null;
+        } catch (IOException e) {
+            Slog.e(TAG, "Cannot read the persisted state", e);
+            return null;
+        }
+
+        return mState;
+    }
+
+    /**
+     * Get the last state read or written, reading it if needed.
+     *
+     * @return the state, or null if none was persisted or it cannot be read.
+     */
+    @Nullable
+    synchronized State get() {
+        return mState != null ? mState : load();
+    }
+
+    /**
+     * Persist a state, if it differs from the last one.
+     */
+    synchronized void save(int deviceState, boolean isDeviceLocked) {
+        if (mState != null && mState.mDeviceState == deviceState
+                && mState.mIsDeviceLocked == isDeviceLocked) {
+            return;
+        }
+
+        FileOutputStream out = null;
+        try {
+            out = mFile.startWrite();
+            final DataOutputStream dataOut = new DataOutputStream(out);
+            dataOut.writeInt(VERSION);
+            dataOut.writeInt(deviceState);
+            dataOut.writeBoolean(isDeviceLocked);
+            dataOut.flush();
+            mFile.finishWrite(out);
+
+            mState = new State(deviceState, isDeviceLocked);
+        } catch (IOException e) {
+            Slog.e(TAG, "Cannot persist the state", e);
+            if (out != null) {
+                mFile.failWrite(out);
+            }
+            mWriteFailures++;
+        }
+    }
+
+    /**
+     * Persist a state on the given handler, so that the caller does not wait for the file to be
+     * synced. States older than the last one scheduled are ignored, and states scheduled while a
+     * write is pending replace it.
+     *
+     * @param sequence sequence number of the state, as reported by the controller.
+     */
+    void saveAsync(@NonNull Handler handler, int deviceState, boolean isDeviceLocked,
+            long sequence) {
+        synchronized (this) {
+            if (sequence <= mPendingSequence) {
+                return;
+            }
+            mPendingSequence = sequence;
+            mPendingState = new State(deviceState, isDeviceLocked);
+            if (mWritePosted) {
+                return;
+            }
+            mWritePosted = true;
+        }
+
+        handler.post(this::savePendingState);
+    }
+
+    private void savePendingState() {
+        final State state;
+        synchronized (this) {
+            state = mPendingState;
+            mWritePosted = false;
+        }
+
+        save(state.mDeviceState, state.mIsDeviceLocked);
+    }
+
+    /**
+     * Dump the store state.
+     */
+    synchronized void dump(@NonNull PrintWriter pw, @NonNull String prefix) {
+        if (mState == null) {
+            pw.println(prefix + "Persisted state: none");
+        } else {
+            pw.println(prefix + "Persisted state: " + mState.mDeviceState + " (locked: "
+                    + mState.mIsDeviceLocked + ")");
+        }
+        pw.println(prefix + "Write failures: " + mWriteFailures);
+    }
+}
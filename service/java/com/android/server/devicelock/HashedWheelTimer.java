@@ -0,0 +1,199 @@
+/*
+ * Copyright (C) 2023 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.devicelock;
+
+import android.annotation.NonNull;
+import android.os.Handler;
+import android.os.SystemClock;
+
+import com.android.internal.annotations.GuardedBy;
+
+import java.util.ArrayList;
+
+/**
+ * Hashed wheel timer running its tasks on a {@link Handler}.
+ *
+ * Scheduling and cancelling a timeout are O(1) and a single handler message is used, however
+ * many timeouts are outstanding. Timeouts fire at most one tick late. The wheel only ticks while
+ * there are outstanding timeouts.
+ */
+final class HashedWheelTimer {
+    private final Object mLock = new Object();
+
+    private final Handler mHandler;
+    private final long mTickMillis;
+
+    // Each bucket is a doubly linked list of timeouts.
+    @GuardedBy("mLock")
+    private final Timeout[] mWheel;
+
+    // Number of ticks processed since mStartTimeMillis.
+    @GuardedBy("mLock")
+    private long mTick;
+
+    @GuardedBy("mLock")
+    private long mStartTimeMillis;
+
+    @GuardedBy("mLock")
+    private int mSize;
+
+    @GuardedBy("mLock")
+    private boolean mTicking;
+
+    private final Runnable mTickRunnable = this::onTick;
+
+    /**
+     * A scheduled task, which can be cancelled until it runs.
+     */
+    final class Timeout {
+        private final Runnable mTask;
+        private final int mBucket;
+        private long mRemainingRounds;
+        private Timeout mPrev;
+        private Timeout mNext;
+        private boolean mActive;
+
+        private Timeout(Runnable task, int bucket, long remainingRounds) {
+            mTask = task;
+            mBucket = bucket;
+            mRemainingRounds = remainingRounds;
+        }
+
+        /**
+         * Cancel the timeout.
+         *
+         * @return true if the timeout was cancelled, false if it already ran or was cancelled.
+         */
+        boolean cancel() {
+            synchronized (mLock) {
+                if (!mActive) {
+                    return false;
+                }
+                removeLocked(this);
+                return true;
+            }
+        }
+    }
+
+    /**
+     * Create a new timer.
+     *
+     * @param handler handler on which the tasks are run.
+     * @param tickMillis duration of a tick, i.e. the timer resolution.
+     * @param wheelSize number of buckets in the wheel.
+     */
+    HashedWheelTimer(@NonNull Handler handler, long tickMillis, int wheelSize) {
+        mHandler = handler;
+        mTickMillis = tickMillis;
+        mWheel = new Timeout[wheelSize];
+    }
+
+    /**
+     * Schedule a task to be run on the handler after the given delay.
+     */
+    @NonNull
+    Timeout schedule(@NonNull Runnable task, long delayMillis) {
+        synchronized (mLock) {
+            if (!mTicking) {
+                mTicking = true;
+                mTick = 0;
+                mStartTimeMillis = SystemClock.uptimeMillis();
+                postNextTickLocked();
+            }
+
+            final long ticks = Math.max(1, (delayMillis + mTickMillis - 1) / mTickMillis);
+            final long targetTick = mTick + ticks;
+            final Timeout timeout = new Timeout(task, (int) (targetTick % mWheel.length),
+                    ticks / mWheel.length);
+
+            final Timeout head = mWheel[timeout.mBucket];
+            timeout.mNext = head;
+            if (head != null) {
+                head.mPrev = timeout;
+            }
+            mWheel[timeout.mBucket] = timeout;
+            timeout.mActive = true;
+            mSize++;
+
+            return timeout;
+        }
+    }
+
+    /**
+     * Number of outstanding timeouts.
+     */
+    int size() {
+        synchronized (mLock) {
+            return mSize;
+        }
+    }
+
+    @GuardedBy("mLock")
+    private void removeLocked(@NonNull Timeout timeout) {
+        if (timeout.mPrev != null) {
+            timeout.mPrev.mNext = timeout.mNext;
+        } else {
+            mWheel[timeout.mBucket] = timeout.mNext;
+        }
+        if (timeout.mNext != null) {
+            timeout.mNext.mPrev = timeout.mPrev;
+        }
+        timeout.mPrev = null;
+        timeout.mNext = null;
+        timeout.mActive = false;
+        mSize--;
+    }
+
+    @GuardedBy("mLock")
+    private void postNextTickLocked() {
+        mHandler.postAtTime(mTickRunnable, mStartTimeMillis + (mTick + 1) * mTickMillis);
+    }
+
+    private void onTick() {
+        final ArrayList<Runnable> expired = new ArrayList<>();
+
+        synchronized (mLock) {
+            final long now = SystemClock.uptimeMillis();
+
+            // Catch up if the handler was late.
+            while (mSize > 0 && mStartTimeMillis + (mTick + 1) * mTickMillis <= now) {
+                Timeout timeout = mWheel[(int) (mTick % mWheel.length)];
+                while (timeout != null) {
+                    final Timeout next = timeout.mNext;
+                    if (timeout.mRemainingRounds <= 0) {
+                        removeLocked(timeout);
+                        expired.add(timeout.mTask);
+                    } else {
+                        timeout.mRemainingRounds--;
+                    }
+                    timeout = next;
+                }
+                mTick++;
+            }
+
+            if (mSize > 0) {
+                postNextTickLocked();
+            } else {
+                mTicking = false;
+            }
+        }
+
+        for (int i = 0; i < expired.size(); i++) {
+            expired.get(i).run();
+        }
+    }
+}
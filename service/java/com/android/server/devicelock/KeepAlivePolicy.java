@@ -0,0 +1,46 @@
+/*
+ * Copyright (C) 2023 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.devicelock;
+
+import android.annotation.NonNull;
+
+import java.io.PrintWriter;
+
+/**
+ * Policy deciding how long the Device Lock Controller stays bound after the last API call.
+ */
+interface KeepAlivePolicy {
+    /**
+     * Called for each API call into the controller.
+     *
+     * @param uptimeMillis time of the call, in the {@link android.os.SystemClock#uptimeMillis}
+     *                     time base.
+     */
+    void onCall(long uptimeMillis);
+
+    /**
+     * Time after the last call at which the controller should be unbound.
+     *
+     * @param uptimeMillis current time.
+     */
+    long getIdleTimeoutMillis(long uptimeMillis);
+
+    /**
+     * Dump the policy state.
+     */
+    void dump(@NonNull PrintWriter pw, @NonNull String prefix);
+}
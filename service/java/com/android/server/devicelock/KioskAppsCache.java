@@ -0,0 +1,152 @@
+/*
+ * Copyright (C) 2023 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.devicelock;
+
+import android.annotation.NonNull;
+import android.app.role.OnRoleHoldersChangedListener;
+import android.app.role.RoleManager;
+import android.content.Context;
+import android.devicelock.DeviceLockManager;
+import android.os.UserHandle;
+import android.util.ArrayMap;
+import android.util.Slog;
+import android.util.SparseArray;
+import android.util.SparseIntArray;
+
+import com.android.internal.annotations.GuardedBy;
+
+import java.io.PrintWriter;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Per-user cache of the kiosk apps, i.e. the holders of the financed device kiosk role.
+ *
+ * Entries are invalidated by a role holders changed listener, so that callers polling
+ * {@link DeviceLockManager#getKioskApps} do not call into RoleManager.
+ * Callers must clear the calling identity.
+ */
+final class KioskAppsCache implements OnRoleHoldersChangedListener {
+    private static final String TAG = "KioskAppsCache";
+
+    private final Context mContext;
+
+    // Immutable kiosk apps map, per user id.
+    @GuardedBy("this")
+    private final SparseArray<Map<Integer, String>> mKioskApps = new SparseArray<>();
+
+    // Incremented on each invalidation, to avoid caching a map read before a role change.
+    @GuardedBy("this")
+    private final SparseIntArray mGenerations = new SparseIntArray();
+
+    @GuardedBy("this")
+    private boolean mListenerRegistered;
+
+    KioskAppsCache(@NonNull Context context) {
+        mContext = context;
+    }
+
+    /**
+     * Get the kiosk apps for the given user.
+     *
+     * @return an immutable map of device lock role to kiosk app package name.
+     */
+    @NonNull
+    Map<Integer, String> getKioskApps(@NonNull UserHandle userHandle) {
+        final int userId = userHandle.getIdentifier();
+        final RoleManager roleManager = mContext.getSystemService(RoleManager.class);
+        final int generation;
+
+        synchronized (this) {
+            final Map<Integer, String> kioskApps = mKioskApps.get(userId);
+            if (kioskApps != null) {
+                return kioskApps;
+            }
+
+            registerListenerLocked(roleManager);
+            generation = mGenerations.get(userId);
+        }
+
+        final List<String> roleHolders = roleManager.getRoleHoldersAsUser(
+                RoleManager.ROLE_FINANCED_DEVICE_KIOSK, userHandle);
+
+        final ArrayMap<Integer, String> kioskApps = new ArrayMap<>();
+        if (!roleHolders.isEmpty()) {
+            kioskApps.put(DeviceLockManager.DEVICE_LOCK_ROLE_FINANCING, roleHolders.get(0));
+        }
+        final Map<Integer, String> result = Collections.unmodifiableMap(kioskApps);
+
+        synchronized (this) {
+            // Only cache the result if the listener will tell us when it becomes stale.
+            if (mListenerRegistered && mGenerations.get(userId) == generation) {
+                mKioskApps.put(userId, result);
+            }
+        }
+
+        return result;
+    }
+
+    @GuardedBy("this")
+    private void registerListenerLocked(@NonNull RoleManager roleManager) {
+        if (mListenerRegistered) {
+            return;
+        }
+
+        try {
+            roleManager.addOnRoleHoldersChangedListenerAsUser(mContext.getMainExecutor(), this,
+                    UserHandle.ALL);
+            mListenerRegistered = true;
+        } catch (RuntimeException e) {
+            Slog.e(TAG, "Cannot observe role holders, kiosk apps will not be cached", e);
+        }
+    }
+
+    @Override
+    public void onRoleHoldersChanged(@NonNull String roleName, @NonNull UserHandle user) {
+        if (!RoleManager.ROLE_FINANCED_DEVICE_KIOSK.equals(roleName)) {
+            return;
+        }
+
+        final int userId = user.getIdentifier();
+        synchronized (this) {
+            mKioskApps.remove(userId);
+            mGenerations.put(userId, mGenerations.get(userId) + 1);
+        }
+    }
+
+    /**
+     * Drop the cached kiosk apps of all the users.
+     */
+    synchronized void invalidate() {
+        for (int i = 0; i < mKioskApps.size(); i++) {
+            final int userId = mKioskApps.keyAt(i);
+            mGenerations.put(userId, mGenerations.get(userId) + 1);
+        }
+        mKioskApps.clear();
+    }
+
+    /**
+     * Dump the cache state.
+     */
+    synchronized void dump(@NonNull PrintWriter pw, @NonNull String prefix) {
+        pw.println(prefix + "Listener registered: " + mListenerRegistered);
+        for (int i = 0; i < mKioskApps.size(); i++) {
+            pw.println(prefix + "User " + mKioskApps.keyAt(i) + ": " + mKioskApps.valueAt(i));
+        }
+    }
+}
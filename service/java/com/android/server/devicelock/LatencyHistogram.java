@@ -0,0 +1,144 @@
+/*
+ * Copyright (C) 2023 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.devicelock;
+
+import android.annotation.NonNull;
+
+import java.io.PrintWriter;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Lock-free latency histogram with fixed, roughly logarithmic, buckets.
+ *
+ * Percentiles are reported as the upper bound of the bucket they fall in.
+ */
+final class LatencyHistogram {
+    // Upper bounds of the buckets, in microseconds. The last bucket is unbounded.
+    private static final long[] BUCKET_UPPER_BOUNDS_MICROS = {
+            50, 100, 250, 500,
+            1_000, 2_500, 5_000, 10_000, 25_000, 50_000, 100_000, 250_000, 500_000,
+            1_000_000, 2_500_000, 5_000_000, 10_000_000,
+    };
+
+    private final AtomicLongArray mBuckets =
+            new AtomicLongArray(BUCKET_UPPER_BOUNDS_MICROS.length + 1);
+
+    private final AtomicLong mCount = new AtomicLong();
+    private final AtomicLong mSumMicros = new AtomicLong();
+    private final AtomicLong mMaxMicros = new AtomicLong();
+
+    /**
+     * Record a sample.
+     *
+     * @param nanos duration, in nanoseconds.
+     */
+    void record(long nanos) {
+        final long micros = Math.max(0, nanos / 1_000);
+
+        int bucket = 0;
+        while (bucket < BUCKET_UPPER_BOUNDS_MICROS.length
+                && micros > BUCKET_UPPER_BOUNDS_MICROS[bucket]) {
+            bucket++;
+        }
+
+        mBuckets.incrementAndGet(bucket);
+        mCount.incrementAndGet();
+        mSumMicros.addAndGet(micros);
+
+        long max;
+        while (micros > (max = mMaxMicros.get())) {
+            if (mMaxMicros.compareAndSet(max, micros)) {
+                break;
+            }
+        }
+    }
+
+    /**
+     * Number of samples.
+     */
+    long getCount() {
+        return mCount.get();
+    }
+
+    /**
+     * Get the given percentile, in microseconds.
+     *
+     * @param percentile percentile, between 0 and 100.
+     * @return the upper bound of the bucket of the percentile, the maximum sample for the last
+     *         bucket, or 0 if there is no sample.
+     */
+    long getPercentileMicros(int percentile) {
+        // Snapshot the buckets, counters may change while we read them.
+        final long[] buckets = new long[mBuckets.length()];
+        long count = 0;
+        for (int i = 0; i < buckets.length; i++) {
+            buckets[i] = mBuckets.get(i);
+            count += buckets[i];
+        }
+
+        if (count == 0) {
+            return 0;
+        }
+
+        final long rank = Math.max(1, (count * percentile + 99) / 100);
+        long seen = 0;
+        for (int i = 0; i < BUCKET_UPPER_BOUNDS_MICROS.length; i++) {
+            seen += buckets[i];
+            if (seen >= rank) {
+                return BUCKET_UPPER_BOUNDS_MICROS[i];
+            }
+        }
+
+        return mMaxMicros.get();
+    }
+
+    /**
+     * Dump the histogram summary on a single line.
+     */
+    void dump(@NonNull PrintWriter pw, @NonNull String prefix, @NonNull String name) {
+        final long count = mCount.get();
+        if (count == 0) {
+            pw.println(prefix + name + ": no samples");
+            return;
+        }
+
+        pw.println(prefix + name + ": count=" + count
+                + " avg=" + (mSumMicros.get() / count) + "us"
+                + " p50<=" + getPercentileMicros(50) + "us"
+                + " p90<=" + getPercentileMicros(90) + "us"
+                + " p99<=" + getPercentileMicros(99) + "us"
+                + " max=" + mMaxMicros.get() + "us");
+    }
+
+    /**
+     * Dump the non-empty buckets, one per line.
+     */
+    void dumpBuckets(@NonNull PrintWriter pw, @NonNull String prefix) {
+        for (int i = 0; i < mBuckets.length(); i++) {
+            final long count = mBuckets.get(i);
+            if (count == 0) {
+                continue;
+            }
+
+            final String bound = i < BUCKET_UPPER_BOUNDS_MICROS.length
+                    ? "<=" + BUCKET_UPPER_BOUNDS_MICROS[i] + "us"
+                    : ">" + BUCKET_UPPER_BOUNDS_MICROS[i - 1] + "us";
+            pw.println(prefix + bound + ": " + count);
+        }
+    }
+}
@@ -0,0 +1,194 @@
+/*
+ * Copyright (C) 2023 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.devicelock;
+
+import static android.content.pm.PackageManager.PERMISSION_GRANTED;
+
+import android.annotation.NonNull;
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.content.pm.PackageManager;
+import android.os.Binder;
+import android.util.ArrayMap;
+import android.util.Slog;
+import android.util.SparseBooleanArray;
+
+import com.android.internal.annotations.GuardedBy;
+
+import java.io.PrintWriter;
+
+/**
+ * Per-uid cache of the permission checks of the API callers.
+ *
+ * Grants and denials are cached per permission and uid, so that repeated calls from the same
+ * callers do not go to the permission service. Decisions are only cached once permission and
+ * package changes are observed: a permission change drops the decisions of its uid, and a package
+ * or uid change drops all of them. Changes are delivered asynchronously, a revoked permission may
+ * be seen as granted until its change is delivered, as for any permission check made just before
+ * a revocation. Permission checks do not depend on the calling pid for apps, decisions are keyed
+ * by uid.
+ */
+final class PermissionCache implements PackageManager.OnPermissionsChangedListener {
+    private static final String TAG = "PermissionCache";
+
+    // Decisions kept per permission. Callers of the API are few, past this the cache is reset.
+    private static final int MAX_CACHED_UIDS = 64;
+
+    private final Context mContext;
+
+    // Grant decisions, per permission and uid.
+    @GuardedBy("this")
+    private final ArrayMap<String, SparseBooleanArray> mDecisions = new ArrayMap<>();
+
+    // Incremented on each invalidation, to avoid caching a decision made before a change.
+    @GuardedBy("this")
+    private int mGeneration;
+
+    @GuardedBy("this")
+    private boolean mListenersRegistered;
+
+    // Registration is only attempted once, a partial one must not be repeated.
+    @GuardedBy("this")
+    private boolean mRegistrationFailed;
+
+    @GuardedBy("this")
+    private long mHits;
+
+    @GuardedBy("this")
+    private long mMisses;
+
+    @GuardedBy("this")
+    private int mInvalidations;
+
+    private final BroadcastReceiver mPackageReceiver = new BroadcastReceiver() {
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            // Packages sharing a uid, and uids reused after removal, change the decision of every
+            // package of the uid, drop them all.
+            invalidate();
+        }
+    };
+
+    PermissionCache(@NonNull Context context) {
+        mContext = context;
+    }
+
+    /**
+     * Check whether the calling uid, or this process if not in a binder call, holds the given
+     * permission, like {@link Context#checkCallingOrSelfPermission}.
+     */
+    boolean checkCallingOrSelfPermission(@NonNull String permission) {
+        final int uid = Binder.getCallingUid();
+        final int generation;
+
+        synchronized (this) {
+            final SparseBooleanArray decisions = mDecisions.get(permission);
+            final int index = decisions != null ? decisions.indexOfKey(uid) : -1;
+            if (index >= 0) {
+                mHits++;
+                return decisions.valueAt(index);
+            }
+
+            mMisses++;
+            registerListenersLocked();
+            generation = mGeneration;
+        }
+
+        final boolean granted = mContext.checkPermission(permission, Binder.getCallingPid(), uid)
+                == PERMISSION_GRANTED;
+
+        synchronized (this) {
+            // Only cache the decision if the listeners will tell us when it becomes stale.
+            if (mListenersRegistered && mGeneration == generation) {
+                SparseBooleanArray decisions = mDecisions.get(permission);
+                if (decisions == null) {
+                    decisions = new SparseBooleanArray();
+                    mDecisions.put(permission, decisions);
+                } else if (decisions.size() >= MAX_CACHED_UIDS) {
+                    decisions.clear();
+                }
+                decisions.put(uid, granted);
+            }
+        }
+
+        return granted;
+    }
+
+    @GuardedBy("this")
+    private void registerListenersLocked() {
+        if (mListenersRegistered || mRegistrationFailed) {
+            return;
+        }
+
+        final long identity = Binder.clearCallingIdentity();
+        try {
+            mContext.getPackageManager().addOnPermissionsChangeListener(this);
+
+            final IntentFilter packageFilter = new IntentFilter();
+            packageFilter.addAction(Intent.ACTION_PACKAGE_ADDED);
+            packageFilter.addAction(Intent.ACTION_PACKAGE_CHANGED);
+            packageFilter.addAction(Intent.ACTION_PACKAGE_REMOVED);
+            packageFilter.addDataScheme("package");
+            mContext.registerReceiverForAllUsers(mPackageReceiver, packageFilter,
+                    null /* broadcastPermission */, null /* scheduler */);
+            mContext.registerReceiverForAllUsers(mPackageReceiver,
+                    new IntentFilter(Intent.ACTION_UID_REMOVED), null /* broadcastPermission */,
+                    null /* scheduler */);
+
+            mListenersRegistered = true;
+        } catch (RuntimeException e) {
+            Slog.e(TAG, "Cannot observe permission changes, decisions will not be cached", e);
+            mRegistrationFailed = true;
+        } finally {
+            Binder.restoreCallingIdentity(identity);
+        }
+    }
+
+    @Override
+    public void onPermissionsChanged(int uid) {
+        synchronized (this) {
+            for (int i = 0; i < mDecisions.size(); i++) {
+                mDecisions.valueAt(i).delete(uid);
+            }
+            mGeneration++;
+            mInvalidations++;
+        }
+    }
+
+    /**
+     * Drop all the cached decisions.
+     */
+    synchronized void invalidate() {
+        mDecisions.clear();
+        mGeneration++;
+        mInvalidations++;
+    }
+
+    /**
+     * Dump the cache state.
+     */
+    synchronized void dump(@NonNull PrintWriter pw, @NonNull String prefix) {
+        pw.println(prefix + "Listeners registered: " + mListenersRegistered);
+        pw.println(prefix + "Hits: " + mHits + ", misses: " + mMisses + ", invalidations: "
+                + mInvalidations);
+        for (int i = 0; i < mDecisions.size(); i++) {
+            pw.println(prefix + mDecisions.keyAt(i) + ": " + mDecisions.valueAt(i));
+        }
+    }
+}
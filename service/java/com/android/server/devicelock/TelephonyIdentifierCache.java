@@ -0,0 +1,161 @@
+/*
+ * Copyright (C) 2023 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.devicelock;
+
+import android.annotation.NonNull;
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.telephony.TelephonyManager;
+import android.text.TextUtils;
+import android.util.Slog;
+
+import com.android.internal.annotations.GuardedBy;
+
+import java.io.PrintWriter;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Cache of the IMEI and MEID identifiers of the device.
+ *
+ * Reading the identifiers from {@link TelephonyManager} is a binder call into the phone process
+ * per slot and per identifier type. The identifiers of all the active modems are read once, slots
+ * without an identifier included (e.g. no MEID on GSM-only devices), and kept until the multi-SIM
+ * configuration or the state of a SIM changes. SIM state changes are also reported once the modem
+ * is ready, identifiers missing because it was not ready yet are then read again.
+ */
+final class TelephonyIdentifierCache {
+    private static final String TAG = "TelephonyIdentifierCache";
+
+    private final Context mContext;
+
+    // Identifiers of all the active modems, null if not read since the last invalidation.
+    @GuardedBy("this")
+    private Set<String> mImeis;
+
+    @GuardedBy("this")
+    private Set<String> mMeids;
+
+    // Active modem count when the identifiers were last read, for dumps.
+    @GuardedBy("this")
+    private int mActiveModemCount = -1;
+
+    // Incremented on each invalidation, to avoid caching identifiers read before a change.
+    @GuardedBy("this")
+    private int mGeneration;
+
+    @GuardedBy("this")
+    private int mInvalidations;
+
+    private final class TelephonyConfigChangedReceiver extends BroadcastReceiver {
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            Slog.i(TAG, intent.getAction() + ", invalidating identifiers");
+            invalidate();
+        }
+    }
+
+    TelephonyIdentifierCache(@NonNull Context context) {
+        mContext = context;
+
+        final IntentFilter filter = new IntentFilter();
+        filter.addAction(TelephonyManager.ACTION_MULTI_SIM_CONFIG_CHANGED);
+        filter.addAction(TelephonyManager.ACTION_SIM_CARD_STATE_CHANGED);
+        filter.addAction(TelephonyManager.ACTION_SIM_APPLICATION_STATE_CHANGED);
+        // Only sent by the system.
+        context.registerReceiver(new TelephonyConfigChangedReceiver(), filter,
+                Context.RECEIVER_NOT_EXPORTED);
+    }
+
+    /**
+     * Drop all the cached identifiers.
+     */
+    synchronized void invalidate() {
+        mImeis = null;
+        mMeids = null;
+        mGeneration++;
+        mInvalidations++;
+    }
+
+    /**
+     * Get the IMEIs of all the active modems.
+     */
+    @NonNull
+    Set<String> getImeis() {
+        return getIdentifiers(true /* imei */);
+    }
+
+    /**
+     * Get the MEIDs of all the active modems.
+     */
+    @NonNull
+    Set<String> getMeids() {
+        return getIdentifiers(false /* imei */);
+    }
+
+    @NonNull
+    private Set<String> getIdentifiers(boolean imei) {
+        final int generation;
+        synchronized (this) {
+            final Set<String> identifiers = imei ? mImeis : mMeids;
+            if (identifiers != null) {
+                return identifiers;
+            }
+            generation = mGeneration;
+        }
+
+        // Read without the lock, invalidations are not held up by the phone process.
+        final TelephonyManager telephonyManager =
+                mContext.getSystemService(TelephonyManager.class);
+        final int activeModemCount = telephonyManager.getActiveModemCount();
+        final HashSet<String> identifiers = new HashSet<>();
+        for (int i = 0; i < activeModemCount; i++) {
+            final String identifier =
+                    imei ? telephonyManager.getImei(i) : telephonyManager.getMeid(i);
+            if (!TextUtils.isEmpty(identifier)) {
+                identifiers.add(identifier);
+            }
+        }
+        final Set<String> result = Collections.unmodifiableSet(identifiers);
+
+        synchronized (this) {
+            if (mGeneration == generation) {
+                mActiveModemCount = activeModemCount;
+                if (imei) {
+                    mImeis = result;
+                } else {
+                    mMeids = result;
+                }
+            }
+        }
+
+        return result;
+    }
+
+    /**
+     * Dump the cache state.
+     */
+    synchronized void dump(@NonNull PrintWriter pw, @NonNull String prefix) {
+        pw.println(prefix + "Active modem count: " + mActiveModemCount);
+        pw.println(prefix + "IMEIs cached: " + (mImeis != null));
+        pw.println(prefix + "MEIDs cached: " + (mMeids != null));
+        pw.println(prefix + "Invalidations: " + mInvalidations);
+    }
+}
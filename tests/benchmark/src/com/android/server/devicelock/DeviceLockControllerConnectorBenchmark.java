@@ -0,0 +1,297 @@
+/*
+ * Copyright (C) 2023 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.devicelock;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import android.content.ComponentName;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.OutcomeReceiver;
+import android.os.UserHandle;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.shadows.ShadowSystemClock;
+
+import java.io.PrintWriter;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.time.Duration;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Throughput benchmark of {@link DeviceLockControllerConnector} against an in-process fake
+ * controller.
+ *
+ * Each run prints calls/s, latency percentiles, the peak thread count and the allocation rate.
+ * Set the {@code devicelock.benchmark.minCallsPerSecond} system property to fail runs below a
+ * given throughput, e.g. to gate connector changes.
+ */
+@RunWith(RobolectricTestRunner.class)
+public final class DeviceLockControllerConnectorBenchmark {
+    private static final ComponentName CONTROLLER_COMPONENT = new ComponentName(
+            "com.android.devicelockcontroller",
+            "com.android.devicelockcontroller.DeviceLockControllerService");
+
+    private static final long MIN_IDLE_MILLIS = 1_000 * 30;
+    private static final long DEFAULT_IDLE_MILLIS = 1_000 * 60;
+    private static final long MAX_IDLE_MILLIS = 1_000 * 60 * 5;
+
+    private static final long RUN_TIMEOUT_SECONDS = 120;
+
+    // The Robolectric clock only moves when advanced. While a run is in progress, it is advanced
+    // by CLOCK_STEP_MILLIS every CLOCK_TICK_MILLIS of real time, so that the connector timeouts
+    // fire, faster than in real time.
+    private static final long CLOCK_TICK_MILLIS = 10;
+    private static final long CLOCK_STEP_MILLIS = 50;
+
+    private static final String MIN_CALLS_PER_SECOND_PROPERTY =
+            "devicelock.benchmark.minCallsPerSecond";
+
+    private interface Op {
+        void call(DeviceLockControllerConnector connector, int index,
+                OutcomeReceiver<Object, Exception> callback);
+    }
+
+    private static final Op IS_DEVICE_LOCKED = (connector, index, callback) ->
+            connector.isDeviceLocked(wrap(callback));
+
+    private static final Op LOCK_UNLOCK = (connector, index, callback) -> {
+        if (index % 2 == 0) {
+            connector.lockDevice(wrap(callback));
+        } else {
+            connector.unlockDevice(wrap(callback));
+        }
+    };
+
+    private static final Op MIXED = (connector, index, callback) -> {
+        if (index % 10 == 0) {
+            LOCK_UNLOCK.call(connector, index / 10, callback);
+        } else {
+            IS_DEVICE_LOCKED.call(connector, index, callback);
+        }
+    };
+
+    private HandlerThread mHandlerThread;
+    private FakeControllerService mController;
+    private FakeControllerContext mContext;
+    private DeviceLockControllerConnector mConnector;
+
+    @Before
+    public void setUp() {
+        mHandlerThread = new HandlerThread("DeviceLockControllerConnectorBenchmark");
+        mHandlerThread.start();
+        final Handler handler = new Handler(mHandlerThread.getLooper());
+
+        mController = new FakeControllerService();
+        mController.startAutoReply();
+        mContext = new FakeControllerContext(RuntimeEnvironment.getApplication(), handler,
+                mController);
+        mConnector = new DeviceLockControllerConnector(mContext, CONTROLLER_COMPONENT,
+                UserHandle.SYSTEM, handler, new AdaptiveKeepAlivePolicy(MIN_IDLE_MILLIS,
+                        DEFAULT_IDLE_MILLIS, MAX_IDLE_MILLIS), new ApiMetrics(),
+                0 /* healthCheckIntervalMillis */);
+    }
+
+    @After
+    public void tearDown() {
+        mConnector.unbind();
+        mController.shutdown();
+        mHandlerThread.quitSafely();
+    }
+
+    @Test
+    public void isDeviceLocked_noLatency() throws Exception {
+        final Result result = run("isDeviceLocked, no latency", IS_DEVICE_LOCKED,
+                20_000 /* calls */, 8 /* concurrency */);
+
+        assertThat(result.mErrors).isEqualTo(0);
+        assertMinThroughput(result);
+    }
+
+    @Test
+    public void lockUnlock_withLatency() throws Exception {
+        mController.setReplyLatencyMicros(500);
+
+        final Result result = run("lock/unlock, 500us latency", LOCK_UNLOCK,
+                2_000 /* calls */, 8 /* concurrency */);
+
+        assertThat(result.mErrors).isEqualTo(0);
+        assertMinThroughput(result);
+    }
+
+    @Test
+    public void mixed_withLatency() throws Exception {
+        mController.setReplyLatencyMicros(200);
+
+        final Result result = run("10% lock/unlock, 90% isDeviceLocked, 200us latency", MIXED,
+                10_000 /* calls */, 16 /* concurrency */);
+
+        assertThat(result.mErrors).isEqualTo(0);
+        assertMinThroughput(result);
+    }
+
+    @Test
+    public void isDeviceLocked_withCrashes() throws Exception {
+        mController.setCrashEveryCalls(1_000, mContext::crashController);
+
+        final Result result = run("isDeviceLocked, crash every 1000 calls", IS_DEVICE_LOCKED,
+                3_000 /* calls */, 8 /* concurrency */);
+
+        // Every call completes, the connector binds again after each crash and replays the calls
+        // that were in flight.
+        assertThat(result.mCompleted).isEqualTo(3_000);
+        assertThat(result.mErrors).isEqualTo(0);
+        assertThat(mContext.getBindCount()).isGreaterThan(1);
+    }
+
+    @Test
+    public void isDeviceLocked_withDroppedReplies() throws Exception {
+        mController.setDropRate(0.01);
+
+        final Result result = run("isDeviceLocked, 1% dropped replies", IS_DEVICE_LOCKED,
+                1_000 /* calls */, 8 /* concurrency */);
+
+        // Dropped replies time out, they are not lost.
+        assertThat(result.mCompleted).isEqualTo(1_000);
+    }
+
+    private static final class Result {
+        int mCompleted;
+        int mErrors;
+        double mCallsPerSecond;
+    }
+
+    /**
+     * Issue calls from concurrent client threads, each waiting for its call to complete before
+     * issuing the next one, and print the results.
+     */
+    private Result run(String name, Op op, int calls, int concurrency) throws Exception {
+        final LatencyHistogram latency = new LatencyHistogram();
+        final AtomicInteger nextCall = new AtomicInteger();
+        final AtomicInteger completed = new AtomicInteger();
+        final AtomicInteger errors = new AtomicInteger();
+        final ExecutorService clients = Executors.newFixedThreadPool(concurrency);
+
+        final ThreadMXBean threadBean = ManagementFactory.getThreadMXBean();
+        threadBean.resetPeakThreadCount();
+        final long allocatedBytesBefore = getAllocatedBytes(threadBean);
+        final long startNanos = System.nanoTime();
+
+        for (int i = 0; i < concurrency; i++) {
+            clients.execute(() -> {
+                int index;
+                while ((index = nextCall.getAndIncrement()) < calls) {
+                    final CountDownLatch done = new CountDownLatch(1);
+                    final long callStartNanos = System.nanoTime();
+                    op.call(mConnector, index, new OutcomeReceiver<>() {
+                        @Override
+                        public void onResult(Object result) {
+                            done.countDown();
+                        }
+
+                        @Override
+                        public void onError(Exception error) {
+                            errors.incrementAndGet();
+                            done.countDown();
+                        }
+                    });
+
+                    try {
+                        done.await();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    latency.record(System.nanoTime() - callStartNanos);
+                    completed.incrementAndGet();
+                }
+            });
+        }
+
+        clients.shutdown();
+        final long deadlineNanos = startNanos + TimeUnit.SECONDS.toNanos(RUN_TIMEOUT_SECONDS);
+        while (!clients.awaitTermination(CLOCK_TICK_MILLIS, TimeUnit.MILLISECONDS)) {
+            assertThat(System.nanoTime()).isLessThan(deadlineNanos);
+            ShadowSystemClock.advanceBy(Duration.ofMillis(CLOCK_STEP_MILLIS));
+        }
+
+        final long elapsedNanos = System.nanoTime() - startNanos;
+        final long allocatedBytes = getAllocatedBytes(threadBean) - allocatedBytesBefore;
+
+        final Result result = new Result();
+        result.mCompleted = completed.get();
+        result.mErrors = errors.get();
+        result.mCallsPerSecond = result.mCompleted * 1e9 / elapsedNanos;
+
+        final PrintWriter pw = new PrintWriter(System.out, true /* autoFlush */);
+        pw.println(name + ": " + calls + " calls, concurrency " + concurrency);
+        pw.println("  Throughput: " + String.format("%.0f", result.mCallsPerSecond)
+                + " calls/s, errors: " + result.mErrors + ", controller calls: "
+                + mController.getCallCount() + ", binds: " + mContext.getBindCount());
+        latency.dump(pw, "  ", "Latency");
+        pw.println("  Peak threads: " + threadBean.getPeakThreadCount());
+        if (allocatedBytes >= 0) {
+            pw.println("  Allocation rate: "
+                    + String.format("%.1f", allocatedBytes * 1e9 / elapsedNanos / (1 << 20))
+                    + " MiB/s (" + allocatedBytes / Math.max(1, result.mCompleted)
+                    + " bytes/call)");
+        }
+
+        return result;
+    }
+
+    // Bytes allocated by all live threads, or -1 if not supported by the JVM. Threads that exit
+    // during a run are not accounted for, the client threads are kept until the end.
+    private static long getAllocatedBytes(ThreadMXBean threadBean) {
+        if (!(threadBean instanceof com.sun.management.ThreadMXBean)) {
+            return -1;
+        }
+
+        final com.sun.management.ThreadMXBean allocationBean =
+                (com.sun.management.ThreadMXBean) threadBean;
+        long total = 0;
+        for (long allocated : allocationBean.getThreadAllocatedBytes(
+                threadBean.getAllThreadIds())) {
+            if (allocated > 0) {
+                total += allocated;
+            }
+        }
+
+        return total;
+    }
+
+    private static void assertMinThroughput(Result result) {
+        final double minCallsPerSecond =
+                Double.parseDouble(System.getProperty(MIN_CALLS_PER_SECOND_PROPERTY, "0"));
+        assertThat(result.mCallsPerSecond).isAtLeast(minCallsPerSecond);
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <T> OutcomeReceiver<T, Exception> wrap(
+            OutcomeReceiver<Object, Exception> callback) {
+        return (OutcomeReceiver<T, Exception>) (OutcomeReceiver<?, Exception>) callback;
+    }
+}
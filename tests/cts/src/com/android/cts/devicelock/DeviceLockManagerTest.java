@@ -23,6 +23,7 @@ import static org.junit.Assert.assertThrows;
 import android.content.Context;
 import android.devicelock.DeviceId;
 import android.devicelock.DeviceLockManager;
+import android.devicelock.DeviceLockStatus;
 import android.os.Build;
 import android.os.OutcomeReceiver;
 import android.os.UserHandle;
@@ -181,6 +182,46 @@ public final class DeviceLockManagerTest {
                 });
     }
 
+    public ListenableFuture<DeviceLockStatus> getDeviceLockStatusFuture() {
+        return CallbackToFutureAdapter.getFuture(
+                completer -> {
+                    mDeviceLockManager.getDeviceLockStatus(mExecutorService,
+                            new OutcomeReceiver<DeviceLockStatus, Exception>() {
+                                @Override
+                                public void onResult(DeviceLockStatus result) {
+                                    completer.set(result);
+                                }
+
+                                @Override
+                                public void onError(Exception error) {
+                                    completer.setException(error);
+                                }
+                            });
+                    // Used only for debugging.
+                    return "getDeviceLockStatus operation";
+                });
+    }
+
+    public ListenableFuture<Void> getClearDeviceRestrictionsFuture() {
+        return CallbackToFutureAdapter.getFuture(
+                completer -> {
+                    mDeviceLockManager.clearDeviceRestrictions(mExecutorService,
+                            new OutcomeReceiver<Void, Exception>() {
+                                @Override
+                                public void onResult(Void result) {
+                                    completer.set(null);
+                                }
+
+                                @Override
+                                public void onError(Exception error) {
+                                    completer.setException(error);
+                                }
+                            });
+                    // Used only for debugging.
+                    return "clearDeviceRestrictions operation";
+                });
+    }
+
     @Test
     @ApiTest(apis = {"android.devicelock.DeviceLockManager#lockDevice"})
     public void lockDevicePermissionCheck() {
@@ -241,6 +282,36 @@ public final class DeviceLockManagerTest {
                 .isInstanceOf(SecurityException.class);
     }
 
+    @Test
+    @ApiTest(apis = {"android.devicelock.DeviceLockManager#clearDeviceRestrictions"})
+    public void clearDeviceRestrictionsPermissionCheck() {
+        ListenableFuture<Void> clearDeviceRestrictionsFuture = getClearDeviceRestrictionsFuture();
+
+        Exception clearDeviceRestrictionsResponseException =
+                assertThrows(
+                        ExecutionException.class,
+                        () -> {
+                            clearDeviceRestrictionsFuture.get(TIMEOUT, TimeUnit.SECONDS);
+                        });
+        assertThat(clearDeviceRestrictionsResponseException.getCause())
+                .isInstanceOf(SecurityException.class);
+    }
+
+    @Test
+    @ApiTest(apis = {"android.devicelock.DeviceLockManager#getDeviceLockStatus"})
+    public void getDeviceLockStatusPermissionCheck() {
+        ListenableFuture<DeviceLockStatus> deviceLockStatusFuture = getDeviceLockStatusFuture();
+
+        Exception deviceLockStatusResponseException =
+                assertThrows(
+                        ExecutionException.class,
+                        () -> {
+                            deviceLockStatusFuture.get(TIMEOUT, TimeUnit.SECONDS);
+                        });
+        assertThat(deviceLockStatusResponseException.getCause())
+                .isInstanceOf(SecurityException.class);
+    }
+
     @Test
     @ApiTest(
             apis = {
@@ -291,6 +362,29 @@ public final class DeviceLockManagerTest {
         }
     }
 
+    @Test
+    @ApiTest(apis = {"android.devicelock.DeviceLockManager#getDeviceLockStatus"})
+    public void getDeviceLockStatusShouldReturnStatus()
+            throws ExecutionException, InterruptedException, TimeoutException {
+        final ArrayMap expectedKioskApps = new ArrayMap<Integer, String>();
+        expectedKioskApps.put(
+                DeviceLockManager.DEVICE_LOCK_ROLE_FINANCING, mContext.getPackageName());
+
+        try {
+            addFinancedDeviceKioskRole();
+
+            DeviceLockStatus status = getDeviceLockStatusFuture().get(TIMEOUT, TimeUnit.SECONDS);
+
+            assertThat(status.isDeviceLocked()).isFalse();
+            // No device id is registered without the DeviceLock backend service, see
+            // getDeviceIdShouldReturnAnId().
+            assertThat(status.getDeviceId()).isNull();
+            assertThat(status.getKioskApps()).isEqualTo(expectedKioskApps);
+        } finally {
+            removeFinancedDeviceKioskRole();
+        }
+    }
+
     @Test
     @ApiTest(apis = {"android.devicelock.DeviceLockManager#getKioskApps"})
     public void getKioskApp_financedRoleHolderExists_returnsMapping()
@@ -0,0 +1,133 @@
+/*
+ * Copyright (C) 2023 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.devicelock;
+
+import android.content.ComponentName;
+import android.content.Context;
+import android.content.ContextWrapper;
+import android.content.Intent;
+import android.content.ServiceConnection;
+import android.os.Handler;
+import android.os.IBinder;
+import android.os.UserHandle;
+
+/**
+ * Context binding to an in-process controller binder. Connection callbacks are delivered on the
+ * given handler, as Activity Manager delivers them on the main thread.
+ */
+public final class FakeControllerContext extends ContextWrapper {
+    private final Handler mHandler;
+    private final IBinder mController;
+
+    private volatile boolean mAutoConnect = true;
+
+    private ServiceConnection mConnection;
+    private ComponentName mComponentName;
+    private int mBinds;
+    private int mUnbinds;
+
+    public FakeControllerContext(Context base, Handler handler, IBinder controller) {
+        super(base);
+        mHandler = handler;
+        mController = controller;
+    }
+
+    /**
+     * Whether bindings connect right away, otherwise {@link #connect} must be called.
+     */
+    public void setAutoConnect(boolean autoConnect) {
+        mAutoConnect = autoConnect;
+    }
+
+    @Override
+    public boolean bindServiceAsUser(Intent service, ServiceConnection conn, int flags,
+            UserHandle user) {
+        synchronized (this) {
+            mConnection = conn;
+            mComponentName = service.getComponent();
+            mBinds++;
+        }
+        if (mAutoConnect) {
+            connect();
+        }
+
+        return true;
+    }
+
+    @Override
+    public void unbindService(ServiceConnection conn) {
+        synchronized (this) {
+            if (mConnection == conn) {
+                mConnection = null;
+            }
+            mUnbinds++;
+        }
+    }
+
+    /**
+     * Connect the bound connection, if any, to the controller.
+     */
+    public void connect() {
+        final ServiceConnection conn;
+        final ComponentName componentName;
+        synchronized (this) {
+            conn = mConnection;
+            componentName = mComponentName;
+        }
+
+        if (conn != null) {
+            mHandler.post(() -> conn.onServiceConnected(componentName, mController));
+        }
+    }
+
+    /**
+     * Report the controller process as dead to the bound connection, if any.
+     */
+    public void crashController() {
+        final ServiceConnection conn;
+        final ComponentName componentName;
+        synchronized (this) {
+            conn = mConnection;
+            componentName = mComponentName;
+        }
+
+        if (conn != null) {
+            mHandler.post(() -> conn.onServiceDisconnected(componentName));
+        }
+    }
+
+    /**
+     * Whether a connection is currently bound.
+     */
+    public synchronized boolean isBound() {
+        return mConnection != null;
+    }
+
+    /**
+     * Number of bindings requested.
+     */
+    public synchronized int getBindCount() {
+        return mBinds;
+    }
+
+    /**
+     * Number of unbindings requested.
+     */
+    public synchronized int getUnbindCount() {
+        return mUnbinds;
+    }
+}
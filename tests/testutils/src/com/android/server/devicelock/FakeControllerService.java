@@ -0,0 +1,280 @@
+/*
+ * Copyright (C) 2023 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.devicelock;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import android.os.DeadObjectException;
+import android.os.RemoteException;
+
+import com.android.devicelockcontroller.IDeviceLockControllerCallback;
+import com.android.devicelockcontroller.IDeviceLockControllerService;
+
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * In-process Device Lock Controller.
+ *
+ * By default, it records the calls it receives, so that tests decide when and how each call is
+ * answered. Once {@link #startAutoReply} is called, it answers calls from its own threads instead,
+ * like the real controller replies to oneway calls, with a configurable reply latency, rate of
+ * calls that never get a reply and crashes.
+ */
+public final class FakeControllerService extends IDeviceLockControllerService.Stub {
+    public static final String LOCK_DEVICE = "lockDevice";
+    public static final String UNLOCK_DEVICE = "unlockDevice";
+    public static final String IS_DEVICE_LOCKED = "isDeviceLocked";
+    public static final String GET_DEVICE_IDENTIFIER = "getDeviceIdentifier";
+    public static final String CLEAR_DEVICE_RESTRICTIONS = "clearDeviceRestrictions";
+    public static final String GET_DEVICE_STATUS = "getDeviceStatus";
+    public static final String PING = "ping";
+
+    private static final long CALL_TIMEOUT_MILLIS = 1000;
+    private static final long NO_CALL_TIMEOUT_MILLIS = 200;
+
+    private static final int REPLY_THREADS = 2;
+    private static final String DEVICE_ID = "123456789012345";
+
+    private final LinkedBlockingQueue<Call> mCalls = new LinkedBlockingQueue<>();
+
+    private final AtomicInteger mCallCount = new AtomicInteger();
+
+    private volatile boolean mDead;
+
+    // Answers the calls if set, otherwise they are recorded.
+    private volatile ScheduledExecutorService mReplyExecutor;
+
+    private volatile long mReplyLatencyMicros;
+    private volatile double mDropRate;
+    private volatile int mCrashEveryCalls;
+    private volatile Runnable mCrashListener;
+
+    private volatile boolean mIsLocked;
+
+    /**
+     * A call received by the controller, answered with one of the reply methods.
+     */
+    public static final class Call {
+        public final String mMethod;
+        public final int mRequestId;
+        private final IDeviceLockControllerCallback mCallback;
+
+        private Call(String method, int requestId, IDeviceLockControllerCallback callback) {
+            mMethod = method;
+            mRequestId = requestId;
+            mCallback = callback;
+        }
+
+        public void replyBoolean(boolean result) throws RemoteException {
+            mCallback.onBooleanResult(mRequestId, result);
+        }
+
+        public void replyString(String result) throws RemoteException {
+            mCallback.onStringResult(mRequestId, result);
+        }
+
+        public void replyDeviceStatus(boolean isLocked, String deviceId) throws RemoteException {
+            mCallback.onDeviceStatusResult(mRequestId, isLocked, deviceId);
+        }
+
+        public void replyError() throws RemoteException {
+            mCallback.onError(mRequestId);
+        }
+    }
+
+    /**
+     * Make the following calls fail with a {@link DeadObjectException}, as if the controller
+     * process died.
+     */
+    public void setDead(boolean dead) {
+        mDead = dead;
+    }
+
+    /**
+     * Answer the following calls from reply threads, successfully unless configured otherwise.
+     * Calls are not recorded any more.
+     */
+    public synchronized void startAutoReply() {
+        if (mReplyExecutor == null) {
+            mReplyExecutor = new ScheduledThreadPoolExecutor(REPLY_THREADS);
+        }
+    }
+
+    /**
+     * Set the time the controller takes to reply, once auto replying.
+     */
+    public void setReplyLatencyMicros(long replyLatencyMicros) {
+        mReplyLatencyMicros = replyLatencyMicros;
+    }
+
+    /**
+     * Set the rate, between 0 and 1, of calls that never get a reply, once auto replying.
+     */
+    public void setDropRate(double dropRate) {
+        mDropRate = dropRate;
+    }
+
+    /**
+     * Crash the controller every given number of calls once auto replying, 0 to never crash.
+     * The crash listener is invoked instead of replying.
+     */
+    public void setCrashEveryCalls(int crashEveryCalls, Runnable crashListener) {
+        mCrashListener = crashListener;
+        mCrashEveryCalls = crashEveryCalls;
+    }
+
+    /**
+     * Number of calls received.
+     */
+    public int getCallCount() {
+        return mCallCount.get();
+    }
+
+    /**
+     * Stop the reply threads, if any.
+     */
+    public synchronized void shutdown() {
+        if (mReplyExecutor != null) {
+            mReplyExecutor.shutdownNow();
+        }
+    }
+
+    /**
+     * Wait for the next call and check its method.
+     */
+    public Call takeCall(String method) throws InterruptedException {
+        final Call call = mCalls.poll(CALL_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+        assertThat(call).isNotNull();
+        assertThat(call.mMethod).isEqualTo(method);
+
+        return call;
+    }
+
+    /**
+     * Check that no call is received for a while.
+     */
+    public void assertNoCall() throws InterruptedException {
+        final Call call = mCalls.poll(NO_CALL_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+        assertThat(call == null ? null : call.mMethod).isNull();
+    }
+
+    private void onCall(String method, int requestId, IDeviceLockControllerCallback callback)
+            throws RemoteException {
+        if (mDead) {
+            throw new DeadObjectException();
+        }
+        final int calls = mCallCount.incrementAndGet();
+        final Call call = new Call(method, requestId, callback);
+
+        final ScheduledExecutorService replyExecutor = mReplyExecutor;
+        if (replyExecutor == null) {
+            mCalls.add(call);
+            return;
+        }
+
+        final int crashEveryCalls = mCrashEveryCalls;
+        if (crashEveryCalls > 0 && calls % crashEveryCalls == 0) {
+            mCrashListener.run();
+            return;
+        }
+
+        if (mDropRate > 0 && ThreadLocalRandom.current().nextDouble() < mDropRate) {
+            return;
+        }
+
+        replyExecutor.schedule(() -> {
+            try {
+                autoReply(call);
+            } catch (RemoteException e) {
+                throw new AssertionError(e);
+            }
+        }, mReplyLatencyMicros, TimeUnit.MICROSECONDS);
+    }
+
+    private void autoReply(Call call) throws RemoteException {
+        switch (call.mMethod) {
+            case LOCK_DEVICE:
+                mIsLocked = true;
+                call.replyBoolean(true);
+                break;
+            case UNLOCK_DEVICE:
+            case CLEAR_DEVICE_RESTRICTIONS:
+                mIsLocked = false;
+                call.replyBoolean(true);
+                break;
+            case IS_DEVICE_LOCKED:
+                call.replyBoolean(mIsLocked);
+                break;
+            case GET_DEVICE_IDENTIFIER:
+                call.replyString(DEVICE_ID);
+                break;
+            case GET_DEVICE_STATUS:
+                call.replyDeviceStatus(mIsLocked, DEVICE_ID);
+                break;
+            default:
+                call.replyBoolean(true);
+                break;
+        }
+    }
+
+    @Override
+    public void lockDevice(int requestId, IDeviceLockControllerCallback callback)
+            throws RemoteException {
+        onCall(LOCK_DEVICE, requestId, callback);
+    }
+
+    @Override
+    public void unlockDevice(int requestId, IDeviceLockControllerCallback callback)
+            throws RemoteException {
+        onCall(UNLOCK_DEVICE, requestId, callback);
+    }
+
+    @Override
+    public void isDeviceLocked(int requestId, IDeviceLockControllerCallback callback)
+            throws RemoteException {
+        onCall(IS_DEVICE_LOCKED, requestId, callback);
+    }
+
+    @Override
+    public void getDeviceIdentifier(int requestId, IDeviceLockControllerCallback callback)
+            throws RemoteException {
+        onCall(GET_DEVICE_IDENTIFIER, requestId, callback);
+    }
+
+    @Override
+    public void clearDeviceRestrictions(int requestId, IDeviceLockControllerCallback callback)
+            throws RemoteException {
+        onCall(CLEAR_DEVICE_RESTRICTIONS, requestId, callback);
+    }
+
+    @Override
+    public void getDeviceStatus(int requestId, IDeviceLockControllerCallback callback)
+            throws RemoteException {
+        onCall(GET_DEVICE_STATUS, requestId, callback);
+    }
+
+    @Override
+    public void ping(int requestId, IDeviceLockControllerCallback callback)
+            throws RemoteException {
+        onCall(PING, requestId, callback);
+    }
+}
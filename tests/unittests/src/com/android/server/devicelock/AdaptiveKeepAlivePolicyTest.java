@@ -0,0 +1,66 @@
+/*
+ * Copyright (C) 2023 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.devicelock;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests for {@link com.android.server.devicelock.AdaptiveKeepAlivePolicy}.
+ */
+public class AdaptiveKeepAlivePolicyTest {
+    private static final long MIN_IDLE_MILLIS = 30_000;
+    private static final long DEFAULT_IDLE_MILLIS = 60_000;
+    private static final long MAX_IDLE_MILLIS = 300_000;
+
+    private AdaptiveKeepAlivePolicy mPolicy;
+
+    @Before
+    public void setup() {
+        mPolicy = new AdaptiveKeepAlivePolicy(MIN_IDLE_MILLIS, DEFAULT_IDLE_MILLIS,
+                MAX_IDLE_MILLIS);
+    }
+
+    @Test
+    public void unknownInterArrival_shouldUseDefaultIdleWindow() {
+        mPolicy.onCall(0);
+
+        assertThat(mPolicy.getIdleTimeoutMillis(0)).isEqualTo(DEFAULT_IDLE_MILLIS);
+    }
+
+    @Test
+    public void periodicCaller_shouldWidenIdleWindow() {
+        long now = 0;
+        for (int i = 0; i < 5; i++) {
+            mPolicy.onCall(now);
+            now += 70_000;
+        }
+
+        assertThat(mPolicy.getIdleTimeoutMillis(now)).isGreaterThan(70_000L);
+        assertThat(mPolicy.getIdleTimeoutMillis(now)).isAtMost(MAX_IDLE_MILLIS);
+    }
+
+    @Test
+    public void infrequentCaller_shouldUseMinIdleWindow() {
+        mPolicy.onCall(0);
+        mPolicy.onCall(600_000);
+
+        assertThat(mPolicy.getIdleTimeoutMillis(600_000)).isEqualTo(MIN_IDLE_MILLIS);
+    }
+}
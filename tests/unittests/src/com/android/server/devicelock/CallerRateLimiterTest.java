@@ -0,0 +1,90 @@
+/*
+ * Copyright (C) 2023 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.devicelock;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import org.junit.Test;
+
+/**
+ * Tests for {@link com.android.server.devicelock.CallerRateLimiter}.
+ */
+public class CallerRateLimiterTest {
+    private static final int RATE_PER_SECOND = 2;
+    private static final int BURST = 3;
+    private static final int UID = 10_001;
+    private static final int OTHER_UID = 10_002;
+
+    @Test
+    public void burst_shouldBeAdmittedThenRejected() {
+        final CallerRateLimiter rateLimiter = new CallerRateLimiter(RATE_PER_SECOND, BURST, 0);
+
+        for (int i = 0; i < BURST; i++) {
+            assertThat(rateLimiter.tryAcquire(UID, 0)).isTrue();
+        }
+        assertThat(rateLimiter.tryAcquire(UID, 0)).isFalse();
+    }
+
+    @Test
+    public void tokens_shouldRefillOverTime() {
+        final CallerRateLimiter rateLimiter = new CallerRateLimiter(RATE_PER_SECOND, BURST, 0);
+        for (int i = 0; i < BURST; i++) {
+            rateLimiter.tryAcquire(UID, 0);
+        }
+
+        // Two calls per second, one token every 500ms.
+        assertThat(rateLimiter.tryAcquire(UID, 400)).isFalse();
+        assertThat(rateLimiter.tryAcquire(UID, 500)).isTrue();
+        assertThat(rateLimiter.tryAcquire(UID, 500)).isFalse();
+    }
+
+    @Test
+    public void uids_shouldBeLimitedSeparately() {
+        final CallerRateLimiter rateLimiter = new CallerRateLimiter(RATE_PER_SECOND, BURST, 0);
+        for (int i = 0; i < BURST; i++) {
+            rateLimiter.tryAcquire(UID, 0);
+        }
+
+        assertThat(rateLimiter.tryAcquire(UID, 0)).isFalse();
+        assertThat(rateLimiter.tryAcquire(OTHER_UID, 0)).isTrue();
+    }
+
+    @Test
+    public void allCallers_shouldBeBoundedTogether() {
+        final CallerRateLimiter rateLimiter = new CallerRateLimiter(RATE_PER_SECOND, BURST, 0);
+
+        int admitted = 0;
+        for (int uid = UID; uid < UID + CallerRateLimiter.GLOBAL_FACTOR * 2; uid++) {
+            for (int i = 0; i < BURST; i++) {
+                if (rateLimiter.tryAcquire(uid, 0)) {
+                    admitted++;
+                }
+            }
+        }
+
+        assertThat(admitted).isEqualTo(BURST * CallerRateLimiter.GLOBAL_FACTOR);
+    }
+
+    @Test
+    public void nonPositiveRate_shouldDisableLimiting() {
+        final CallerRateLimiter rateLimiter = new CallerRateLimiter(0, BURST, 0);
+
+        for (int i = 0; i < BURST * 10; i++) {
+            assertThat(rateLimiter.tryAcquire(UID, 0)).isTrue();
+        }
+    }
+}
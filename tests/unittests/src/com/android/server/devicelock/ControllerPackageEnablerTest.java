@@ -0,0 +1,246 @@
+/*
+ * Copyright (C) 2023 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.devicelock;
+
+import static android.content.pm.PackageManager.COMPONENT_ENABLED_STATE_DEFAULT;
+import static android.content.pm.PackageManager.COMPONENT_ENABLED_STATE_DISABLED;
+import static android.content.pm.PackageManager.DONT_KILL_APP;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.ArgumentMatchers.isNull;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.content.pm.PackageManager;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Process;
+import android.os.UserHandle;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Tests for {@link com.android.server.devicelock.ControllerPackageEnabler}.
+ */
+public class ControllerPackageEnablerTest {
+    private static final String CONTROLLER_PACKAGE = "com.android.devicelockcontroller";
+
+    // User of this process, for the uid carried by package broadcasts.
+    private static final UserHandle USER = UserHandle.getUserHandleForUid(Process.myUid());
+
+    private static final long TIMEOUT_SECONDS = 5;
+
+    private HandlerThread mHandlerThread;
+    private Handler mHandler;
+    private Context mContext;
+    private PackageManager mPackageManager;
+
+    private ControllerPackageEnabler mEnabler;
+
+    @Before
+    public void setup() throws Exception {
+        mHandlerThread = new HandlerThread("ControllerPackageEnablerTest");
+        mHandlerThread.start();
+        mHandler = new Handler(mHandlerThread.getLooper());
+
+        mContext = mock(Context.class);
+        mPackageManager = mock(PackageManager.class);
+        final Context controllerContext = mock(Context.class);
+        when(controllerContext.getPackageManager()).thenReturn(mPackageManager);
+        when(mContext.createPackageContextAsUser(eq(CONTROLLER_PACKAGE), anyInt(), any()))
+                .thenReturn(controllerContext);
+
+        mEnabler = new ControllerPackageEnabler(mContext, CONTROLLER_PACKAGE, mHandler);
+    }
+
+    @After
+    public void teardown() {
+        mHandlerThread.quitSafely();
+    }
+
+    private void setEnabledSetting(int state) {
+        when(mPackageManager.getApplicationEnabledSetting(CONTROLLER_PACKAGE)).thenReturn(state);
+    }
+
+    private void verifyEnabledSettingReads(int reads) {
+        verify(mPackageManager, times(reads)).getApplicationEnabledSetting(CONTROLLER_PACKAGE);
+    }
+
+    private void verifyEnabledSettingWrites(int writes) {
+        verify(mPackageManager, times(writes)).setApplicationEnabledSetting(CONTROLLER_PACKAGE,
+                COMPONENT_ENABLED_STATE_DEFAULT, DONT_KILL_APP);
+    }
+
+    private BroadcastReceiver getPackageReceiver() {
+        final ArgumentCaptor<BroadcastReceiver> receiver =
+                ArgumentCaptor.forClass(BroadcastReceiver.class);
+        verify(mContext).registerReceiverForAllUsers(receiver.capture(), any(IntentFilter.class),
+                isNull(), any(Handler.class));
+        return receiver.getValue();
+    }
+
+    private void waitForHandler() throws InterruptedException {
+        final CountDownLatch latch = new CountDownLatch(1);
+        mHandler.post(latch::countDown);
+        assertThat(latch.await(TIMEOUT_SECONDS, TimeUnit.SECONDS)).isTrue();
+    }
+
+    @Test
+    public void setDefaultEnabledState_writesTheStateOnce() {
+        setEnabledSetting(COMPONENT_ENABLED_STATE_DISABLED);
+
+        mEnabler.setDefaultEnabledState(USER);
+        mEnabler.setDefaultEnabledState(USER);
+
+        verifyEnabledSettingReads(1);
+        verifyEnabledSettingWrites(1);
+    }
+
+    @Test
+    public void setDefaultEnabledState_doesNotWriteTheDefaultState() {
+        setEnabledSetting(COMPONENT_ENABLED_STATE_DEFAULT);
+
+        mEnabler.setDefaultEnabledState(USER);
+        mEnabler.setDefaultEnabledState(USER);
+
+        verifyEnabledSettingReads(1);
+        verifyEnabledSettingWrites(0);
+    }
+
+    @Test
+    public void packageChangeOfTheUserDropsTheRememberedState() {
+        setEnabledSetting(COMPONENT_ENABLED_STATE_DEFAULT);
+        mEnabler.setDefaultEnabledState(USER);
+
+        getPackageReceiver().onReceive(mContext, new Intent(Intent.ACTION_PACKAGE_CHANGED)
+                .putExtra(Intent.EXTRA_UID, Process.myUid()));
+        setEnabledSetting(COMPONENT_ENABLED_STATE_DISABLED);
+        mEnabler.setDefaultEnabledState(USER);
+
+        verifyEnabledSettingReads(2);
+        verifyEnabledSettingWrites(1);
+    }
+
+    @Test
+    public void packageChangeWithoutUidDropsAllRememberedStates() {
+        setEnabledSetting(COMPONENT_ENABLED_STATE_DEFAULT);
+        mEnabler.setDefaultEnabledState(USER);
+
+        getPackageReceiver().onReceive(mContext, new Intent(Intent.ACTION_PACKAGE_CHANGED));
+        mEnabler.setDefaultEnabledState(USER);
+
+        verifyEnabledSettingReads(2);
+    }
+
+    @Test
+    public void stateIsNotRememberedIfPackageChangesCannotBeObserved() {
+        doThrow(new SecurityException()).when(mContext).registerReceiverForAllUsers(any(),
+                any(), any(), any());
+        setEnabledSetting(COMPONENT_ENABLED_STATE_DEFAULT);
+
+        mEnabler.setDefaultEnabledState(USER);
+        mEnabler.setDefaultEnabledState(USER);
+
+        verifyEnabledSettingReads(2);
+        // Registration is only attempted once.
+        verify(mContext).registerReceiverForAllUsers(any(), any(), any(), any());
+    }
+
+    @Test
+    public void stateIsNotRememberedIfThePackageIsNotInstalled() {
+        setEnabledSetting(COMPONENT_ENABLED_STATE_DISABLED);
+        doThrow(new IllegalArgumentException()).when(mPackageManager)
+                .setApplicationEnabledSetting(CONTROLLER_PACKAGE,
+                        COMPONENT_ENABLED_STATE_DEFAULT, DONT_KILL_APP);
+
+        mEnabler.setDefaultEnabledState(USER);
+        mEnabler.setDefaultEnabledState(USER);
+
+        verifyEnabledSettingWrites(2);
+    }
+
+    @Test
+    public void setDefaultEnabledStateAsync_isHandledInTheBackground() throws Exception {
+        setEnabledSetting(COMPONENT_ENABLED_STATE_DISABLED);
+
+        mEnabler.setDefaultEnabledStateAsync(USER);
+        waitForHandler();
+
+        verifyEnabledSettingWrites(1);
+    }
+
+    @Test
+    public void setDefaultEnabledStateAsync_queuesNothingOnceInTheDefaultState()
+            throws Exception {
+        setEnabledSetting(COMPONENT_ENABLED_STATE_DEFAULT);
+        mEnabler.setDefaultEnabledState(USER);
+
+        mEnabler.setDefaultEnabledStateAsync(USER);
+        waitForHandler();
+
+        verifyEnabledSettingReads(1);
+    }
+
+    @Test
+    public void awaitDefaultEnabledState_handlesAQueuedRequestOnce() throws Exception {
+        setEnabledSetting(COMPONENT_ENABLED_STATE_DISABLED);
+        final CountDownLatch blocker = new CountDownLatch(1);
+        mHandler.post(() -> {
+            try {
+                blocker.await(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        });
+
+        mEnabler.setDefaultEnabledStateAsync(USER);
+        mEnabler.awaitDefaultEnabledState(USER);
+
+        // Handled on the calling thread, the background thread is busy.
+        verifyEnabledSettingWrites(1);
+
+        blocker.countDown();
+        waitForHandler();
+
+        verifyEnabledSettingWrites(1);
+    }
+
+    @Test
+    public void awaitDefaultEnabledState_doesNothingWithoutAQueuedRequest() {
+        mEnabler.awaitDefaultEnabledState(USER);
+
+        verify(mPackageManager, never()).getApplicationEnabledSetting(any());
+    }
+}
@@ -0,0 +1,174 @@
+/*
+ * Copyright (C) 2023 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.devicelock;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import android.content.ComponentName;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.SystemClock;
+import android.os.UserHandle;
+
+import androidx.test.platform.app.InstrumentationRegistry;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests for {@link com.android.server.devicelock.DeviceLockControllerConnectorPool}.
+ */
+public class DeviceLockControllerConnectorPoolTest {
+    private static final ComponentName CONTROLLER_COMPONENT = new ComponentName(
+            "com.android.devicelockcontroller",
+            "com.android.devicelockcontroller.DeviceLockControllerService");
+
+    private static final long MAX_IDLE_MILLIS = 1_000 * 60;
+    private static final long LONG_GRACE_MILLIS = 1_000 * 60;
+
+    private HandlerThread mHandlerThread;
+    private Handler mHandler;
+    private FakeControllerContext mContext;
+
+    @Before
+    public void setup() {
+        mHandlerThread = new HandlerThread("DeviceLockControllerConnectorPoolTest");
+        mHandlerThread.start();
+        mHandler = new Handler(mHandlerThread.getLooper());
+        mContext = new FakeControllerContext(
+                InstrumentationRegistry.getInstrumentation().getContext(), mHandler,
+                new FakeControllerService());
+        // Bindings never complete, calls stay in progress.
+        mContext.setAutoConnect(false);
+    }
+
+    @After
+    public void teardown() {
+        mHandlerThread.quitSafely();
+    }
+
+    private DeviceLockControllerConnectorPool newPool(long handOutGraceMillis) {
+        return new DeviceLockControllerConnectorPool(mContext, CONTROLLER_COMPONENT,
+                new ApiMetrics(), new ControllerPackageEnabler(mContext,
+                        CONTROLLER_COMPONENT.getPackageName(), mHandler),
+                mHandler, MAX_IDLE_MILLIS, 0 /* healthCheckIntervalMillis */, handOutGraceMillis);
+    }
+
+    // Fill the pool with the system user connector and secondary user connectors, handed out in
+    // user order.
+    private DeviceLockControllerConnector[] fillPool(DeviceLockControllerConnectorPool pool) {
+        final DeviceLockControllerConnector[] connectors =
+                new DeviceLockControllerConnector[DeviceLockControllerConnectorPool.MAX_CONNECTORS];
+        connectors[0] = pool.getConnector(UserHandle.SYSTEM);
+        for (int i = 1; i < connectors.length; i++) {
+            SystemClock.sleep(2);
+            connectors[i] = pool.getConnector(UserHandle.of(10 + i));
+        }
+        SystemClock.sleep(2);
+
+        return connectors;
+    }
+
+    @Test
+    public void sameConnectorIsReturnedForAUser() {
+        final DeviceLockControllerConnectorPool pool = newPool(0 /* handOutGraceMillis */);
+
+        assertThat(pool.getConnector(UserHandle.of(10)))
+                .isSameInstanceAs(pool.getConnector(UserHandle.of(10)));
+        assertThat(pool.getConnector(UserHandle.of(10)))
+                .isNotSameInstanceAs(pool.getConnector(UserHandle.of(11)));
+    }
+
+    @Test
+    public void leastRecentlyUsedIdleConnectorIsDropped() {
+        final DeviceLockControllerConnectorPool pool = newPool(0 /* handOutGraceMillis */);
+        final DeviceLockControllerConnector[] connectors = fillPool(pool);
+
+        pool.getConnector(UserHandle.of(20));
+
+        assertThat(pool.getConnector(UserHandle.SYSTEM)).isSameInstanceAs(connectors[0]);
+        assertThat(pool.getConnector(UserHandle.of(12))).isSameInstanceAs(connectors[2]);
+        assertThat(pool.getConnector(UserHandle.of(13))).isSameInstanceAs(connectors[3]);
+        assertThat(pool.getConnector(UserHandle.of(11))).isNotSameInstanceAs(connectors[1]);
+    }
+
+    @Test
+    public void droppedConnectorNeverBinds() throws Exception {
+        final DeviceLockControllerConnectorPool pool = newPool(0 /* handOutGraceMillis */);
+        final DeviceLockControllerConnector[] connectors = fillPool(pool);
+        pool.getConnector(UserHandle.of(20));
+
+        // A caller still holding the dropped connector does not bind next to its replacement.
+        final TestOutcomeReceiver<Boolean> isLocked = new TestOutcomeReceiver<>();
+        connectors[1].isDeviceLocked(isLocked);
+
+        assertThat(isLocked.getError()).isNotNull();
+        assertThat(connectors[1].bind()).isFalse();
+        assertThat(mContext.getBindCount()).isEqualTo(0);
+    }
+
+    @Test
+    public void connectorInUseIsNotDropped() {
+        final DeviceLockControllerConnectorPool pool = newPool(0 /* handOutGraceMillis */);
+        final DeviceLockControllerConnector[] connectors = fillPool(pool);
+        for (int i = 1; i < connectors.length; i++) {
+            connectors[i].isDeviceLocked(new TestOutcomeReceiver<>());
+        }
+
+        pool.getConnector(UserHandle.of(20));
+
+        for (int i = 1; i < connectors.length; i++) {
+            assertThat(pool.getConnector(UserHandle.of(10 + i))).isSameInstanceAs(connectors[i]);
+        }
+    }
+
+    @Test
+    public void recentlyHandedOutConnectorIsNotDropped() {
+        final DeviceLockControllerConnectorPool pool = newPool(LONG_GRACE_MILLIS);
+        final DeviceLockControllerConnector[] connectors = fillPool(pool);
+
+        pool.getConnector(UserHandle.of(20));
+
+        for (int i = 1; i < connectors.length; i++) {
+            assertThat(pool.getConnector(UserHandle.of(10 + i))).isSameInstanceAs(connectors[i]);
+        }
+    }
+
+    @Test
+    public void systemUserConnectorIsNeverDropped() {
+        final DeviceLockControllerConnectorPool pool = newPool(0 /* handOutGraceMillis */);
+        final DeviceLockControllerConnector[] connectors = fillPool(pool);
+
+        for (int i = 0; i < DeviceLockControllerConnectorPool.MAX_CONNECTORS; i++) {
+            pool.getConnector(UserHandle.of(20 + i));
+        }
+
+        assertThat(pool.getConnector(UserHandle.SYSTEM)).isSameInstanceAs(connectors[0]);
+    }
+
+    @Test
+    public void removedConnectorIsClosed() {
+        final DeviceLockControllerConnectorPool pool = newPool(LONG_GRACE_MILLIS);
+        final DeviceLockControllerConnector connector = pool.getConnector(UserHandle.of(10));
+
+        pool.removeConnector(UserHandle.of(10));
+
+        assertThat(connector.bind()).isFalse();
+        assertThat(pool.getConnector(UserHandle.of(10))).isNotSameInstanceAs(connector);
+    }
+}
@@ -0,0 +1,656 @@
+/*
+ * Copyright (C) 2023 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.devicelock;
+
+import static com.android.server.devicelock.FakeControllerService.CLEAR_DEVICE_RESTRICTIONS;
+import static com.android.server.devicelock.FakeControllerService.GET_DEVICE_IDENTIFIER;
+import static com.android.server.devicelock.FakeControllerService.IS_DEVICE_LOCKED;
+import static com.android.server.devicelock.FakeControllerService.LOCK_DEVICE;
+import static com.android.server.devicelock.FakeControllerService.PING;
+import static com.android.server.devicelock.FakeControllerService.UNLOCK_DEVICE;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import android.content.ComponentName;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.SystemClock;
+import android.os.UserHandle;
+
+import androidx.test.platform.app.InstrumentationRegistry;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Tests for {@link com.android.server.devicelock.DeviceLockControllerConnector}.
+ */
+public class DeviceLockControllerConnectorTest {
+    private static final ComponentName CONTROLLER_COMPONENT = new ComponentName(
+            "com.android.devicelockcontroller",
+            "com.android.devicelockcontroller.DeviceLockControllerService");
+
+    // Mirrors DeviceStateController.DeviceState.
+    private static final int DEVICE_STATE_UNLOCKED = 5;
+    private static final int DEVICE_STATE_LOCKED = 6;
+    private static final int DEVICE_STATE_PSEUDO_UNLOCKED = 9;
+
+    private static final long IDLE_MILLIS = 1_000 * 60;
+    private static final long SHORT_IDLE_MILLIS = 100;
+    private static final long UNBIND_TIMEOUT_MILLIS = 2000;
+    private static final long API_CALL_TIMEOUT_MILLIS = 300;
+    private static final long HEALTH_CHECK_INTERVAL_MILLIS = 10;
+
+    // Mirrors DeviceLockControllerConnector.CIRCUIT_BREAKER_THRESHOLD.
+    private static final int CIRCUIT_BREAKER_THRESHOLD = 3;
+
+    // Mirrors DeviceLockControllerConnector.REPLAY_BUDGET.
+    private static final int REPLAY_BUDGET = 20;
+
+    private HandlerThread mHandlerThread;
+    private Handler mHandler;
+    private FakeControllerService mController;
+    private FakeControllerContext mContext;
+
+    private DeviceLockControllerConnector mConnector;
+
+    @Before
+    public void setup() {
+        mHandlerThread = new HandlerThread("DeviceLockControllerConnectorTest");
+        mHandlerThread.start();
+        mHandler = new Handler(mHandlerThread.getLooper());
+
+        mController = new FakeControllerService();
+        mContext = new FakeControllerContext(
+                InstrumentationRegistry.getInstrumentation().getContext(), mHandler, mController);
+        mConnector = newConnector(IDLE_MILLIS);
+    }
+
+    private DeviceLockControllerConnector newConnector(long idleMillis) {
+        return newConnector(idleMillis, 0 /* healthCheckIntervalMillis */);
+    }
+
+    private DeviceLockControllerConnector newConnector(long idleMillis,
+            long healthCheckIntervalMillis) {
+        return new DeviceLockControllerConnector(mContext, CONTROLLER_COMPONENT,
+                UserHandle.SYSTEM, mHandler,
+                new AdaptiveKeepAlivePolicy(idleMillis, idleMillis, idleMillis),
+                new ApiMetrics(), healthCheckIntervalMillis, API_CALL_TIMEOUT_MILLIS);
+    }
+
+    private void waitForUnbind() {
+        final long deadline = SystemClock.uptimeMillis() + UNBIND_TIMEOUT_MILLIS;
+        while (mContext.isBound() && SystemClock.uptimeMillis() < deadline) {
+            SystemClock.sleep(10);
+        }
+        assertThat(mContext.isBound()).isFalse();
+    }
+
+    @After
+    public void teardown() {
+        mConnector.unbind();
+        mHandlerThread.quitSafely();
+    }
+
+    @Test
+    public void callsWaitingForTheControllerShareOneBinding() throws Exception {
+        mContext.setAutoConnect(false);
+
+        final TestOutcomeReceiver<Boolean> isLocked = new TestOutcomeReceiver<>();
+        final TestOutcomeReceiver<String> deviceId = new TestOutcomeReceiver<>();
+        mConnector.isDeviceLocked(isLocked);
+        mConnector.getDeviceId(deviceId);
+
+        assertThat(mContext.getBindCount()).isEqualTo(1);
+        mController.assertNoCall();
+
+        mContext.connect();
+        mController.takeCall(IS_DEVICE_LOCKED).replyBoolean(true);
+        mController.takeCall(GET_DEVICE_IDENTIFIER).replyString("123456789012345");
+
+        assertThat(isLocked.getResult()).isTrue();
+        assertThat(deviceId.getResult()).isEqualTo("123456789012345");
+        assertThat(mContext.getBindCount()).isEqualTo(1);
+    }
+
+    @Test
+    public void callWithoutReplyTimesOut() throws Exception {
+        final TestOutcomeReceiver<Void> lock = new TestOutcomeReceiver<>();
+        mConnector.lockDevice(lock);
+        final FakeControllerService.Call call = mController.takeCall(LOCK_DEVICE);
+
+        assertThat(lock.getError()).isInstanceOf(TimeoutException.class);
+
+        // The late reply is ignored, the caller is only answered once.
+        call.replyBoolean(true);
+        lock.assertDeliveredOnce();
+    }
+
+    @Test
+    public void callWaitingForTheBindingTimesOut() throws Exception {
+        mContext.setAutoConnect(false);
+
+        final TestOutcomeReceiver<Boolean> isLocked = new TestOutcomeReceiver<>();
+        mConnector.isDeviceLocked(isLocked);
+
+        assertThat(isLocked.getError()).isInstanceOf(TimeoutException.class);
+
+        // Not dispatched once connected.
+        mContext.connect();
+        mController.assertNoCall();
+    }
+
+    @Test
+    public void controllerErrorFailsTheCall() throws Exception {
+        final TestOutcomeReceiver<String> deviceId = new TestOutcomeReceiver<>();
+        mConnector.getDeviceId(deviceId);
+        mController.takeCall(GET_DEVICE_IDENTIFIER).replyError();
+
+        assertThat(deviceId.getError()).isNotInstanceOf(TimeoutException.class);
+        deviceId.assertDeliveredOnce();
+    }
+
+    @Test
+    public void concurrentReadsAreShared() throws Exception {
+        mContext.setAutoConnect(false);
+
+        final TestOutcomeReceiver<Boolean> first = new TestOutcomeReceiver<>();
+        final TestOutcomeReceiver<Boolean> second = new TestOutcomeReceiver<>();
+        mConnector.isDeviceLocked(first);
+        mConnector.isDeviceLocked(second);
+
+        mContext.connect();
+        mController.takeCall(IS_DEVICE_LOCKED).replyBoolean(true);
+        mController.assertNoCall();
+
+        assertThat(first.getResult()).isTrue();
+        assertThat(second.getResult()).isTrue();
+    }
+
+    @Test
+    public void readIssuedAfterAMutationDoesNotJoinAnEarlierRead() throws Exception {
+        final TestOutcomeReceiver<Boolean> first = new TestOutcomeReceiver<>();
+        mConnector.isDeviceLocked(first);
+        final FakeControllerService.Call firstRead = mController.takeCall(IS_DEVICE_LOCKED);
+
+        final TestOutcomeReceiver<Void> lock = new TestOutcomeReceiver<>();
+        mConnector.lockDevice(lock);
+        final FakeControllerService.Call lockCall = mController.takeCall(LOCK_DEVICE);
+
+        final TestOutcomeReceiver<Boolean> second = new TestOutcomeReceiver<>();
+        final TestOutcomeReceiver<Boolean> third = new TestOutcomeReceiver<>();
+        mConnector.isDeviceLocked(second);
+        mConnector.isDeviceLocked(third);
+        final FakeControllerService.Call secondRead = mController.takeCall(IS_DEVICE_LOCKED);
+        mController.assertNoCall();
+
+        firstRead.replyBoolean(false);
+        assertThat(first.getResult()).isFalse();
+        assertThat(second.isDone()).isFalse();
+
+        lockCall.replyBoolean(true);
+        lock.getResult();
+        secondRead.replyBoolean(true);
+        assertThat(second.getResult()).isTrue();
+        assertThat(third.getResult()).isTrue();
+    }
+
+    @Test
+    public void readAfterCompletedReadCallsTheController() throws Exception {
+        final TestOutcomeReceiver<Boolean> first = new TestOutcomeReceiver<>();
+        mConnector.isDeviceLocked(first);
+        mController.takeCall(IS_DEVICE_LOCKED).replyBoolean(false);
+        assertThat(first.getResult()).isFalse();
+
+        final TestOutcomeReceiver<Boolean> second = new TestOutcomeReceiver<>();
+        mConnector.isDeviceLocked(second);
+        mController.takeCall(IS_DEVICE_LOCKED).replyBoolean(true);
+        assertThat(second.getResult()).isTrue();
+    }
+
+    @Test
+    public void mutationsAreDispatchedOneAtATimeInOrder() throws Exception {
+        final TestOutcomeReceiver<Void> lock = new TestOutcomeReceiver<>();
+        final TestOutcomeReceiver<Void> unlock = new TestOutcomeReceiver<>();
+        mConnector.lockDevice(lock);
+        mConnector.unlockDevice(unlock);
+
+        final FakeControllerService.Call lockCall = mController.takeCall(LOCK_DEVICE);
+        mController.assertNoCall();
+
+        lockCall.replyBoolean(true);
+        lock.getResult();
+
+        mController.takeCall(UNLOCK_DEVICE).replyBoolean(true);
+        unlock.getResult();
+    }
+
+    @Test
+    public void readsAreNotHeldBehindAMutation() throws Exception {
+        final TestOutcomeReceiver<Void> lock = new TestOutcomeReceiver<>();
+        mConnector.lockDevice(lock);
+        final FakeControllerService.Call lockCall = mController.takeCall(LOCK_DEVICE);
+
+        final TestOutcomeReceiver<String> deviceId = new TestOutcomeReceiver<>();
+        mConnector.getDeviceId(deviceId);
+        mController.takeCall(GET_DEVICE_IDENTIFIER).replyString("123456789012345");
+        assertThat(deviceId.getResult()).isEqualTo("123456789012345");
+        assertThat(lock.isDone()).isFalse();
+
+        lockCall.replyBoolean(true);
+        lock.getResult();
+    }
+
+    @Test
+    public void failedMutationDoesNotBlockTheNextOne() throws Exception {
+        final TestOutcomeReceiver<Void> lock = new TestOutcomeReceiver<>();
+        final TestOutcomeReceiver<Void> unlock = new TestOutcomeReceiver<>();
+        mConnector.lockDevice(lock);
+        mConnector.unlockDevice(unlock);
+
+        mController.takeCall(LOCK_DEVICE).replyBoolean(false);
+        assertThat(lock.getError()).isNotNull();
+
+        mController.takeCall(UNLOCK_DEVICE).replyBoolean(true);
+        unlock.getResult();
+    }
+
+    @Test
+    public void unbindFailsPendingCalls() throws Exception {
+        mContext.setAutoConnect(false);
+
+        final TestOutcomeReceiver<Boolean> isLocked = new TestOutcomeReceiver<>();
+        final TestOutcomeReceiver<Void> lock = new TestOutcomeReceiver<>();
+        mConnector.isDeviceLocked(isLocked);
+        mConnector.lockDevice(lock);
+
+        mConnector.unbind();
+
+        assertThat(isLocked.getError()).isNotInstanceOf(TimeoutException.class);
+        assertThat(lock.getError()).isNotInstanceOf(TimeoutException.class);
+        assertThat(mContext.isBound()).isFalse();
+        assertThat(mConnector.isIdle()).isTrue();
+    }
+
+    @Test
+    public void callAfterUnbindBindsAgain() throws Exception {
+        final TestOutcomeReceiver<Boolean> first = new TestOutcomeReceiver<>();
+        mConnector.isDeviceLocked(first);
+        mController.takeCall(IS_DEVICE_LOCKED).replyBoolean(true);
+        first.getResult();
+
+        mConnector.unbind();
+
+        final TestOutcomeReceiver<Boolean> second = new TestOutcomeReceiver<>();
+        mConnector.isDeviceLocked(second);
+        mController.takeCall(IS_DEVICE_LOCKED).replyBoolean(true);
+        second.getResult();
+
+        assertThat(mContext.getBindCount()).isEqualTo(2);
+    }
+
+    @Test
+    public void mutationDropsTheCachedLockState() throws Exception {
+        mConnector.onDeviceStateChanged(DEVICE_STATE_UNLOCKED, false /* isLocked */, 1);
+        assertThat(mConnector.getCachedIsDeviceLocked()).isFalse();
+
+        final TestOutcomeReceiver<Void> lock = new TestOutcomeReceiver<>();
+        mConnector.lockDevice(lock);
+        final FakeControllerService.Call lockCall = mController.takeCall(LOCK_DEVICE);
+        assertThat(mConnector.getCachedIsDeviceLocked()).isNull();
+
+        lockCall.replyBoolean(true);
+        lock.getResult();
+        assertThat(mConnector.getCachedIsDeviceLocked()).isTrue();
+    }
+
+    @Test
+    public void readDispatchedBeforeAMutationIsNotCached() throws Exception {
+        final TestOutcomeReceiver<Boolean> isLocked = new TestOutcomeReceiver<>();
+        mConnector.isDeviceLocked(isLocked);
+        final FakeControllerService.Call readCall = mController.takeCall(IS_DEVICE_LOCKED);
+
+        final TestOutcomeReceiver<Void> lock = new TestOutcomeReceiver<>();
+        mConnector.lockDevice(lock);
+        final FakeControllerService.Call lockCall = mController.takeCall(LOCK_DEVICE);
+
+        readCall.replyBoolean(false);
+        assertThat(isLocked.getResult()).isFalse();
+        assertThat(mConnector.getCachedIsDeviceLocked()).isNull();
+
+        lockCall.replyBoolean(true);
+        lock.getResult();
+        assertThat(mConnector.getCachedIsDeviceLocked()).isTrue();
+    }
+
+    @Test
+    public void uncoalescedReadsAreNotShared() throws Exception {
+        final TestOutcomeReceiver<Boolean> first = new TestOutcomeReceiver<>();
+        final TestOutcomeReceiver<Boolean> second = new TestOutcomeReceiver<>();
+        mConnector.isDeviceLockedUncoalesced(first);
+        mConnector.isDeviceLockedUncoalesced(second);
+
+        mController.takeCall(IS_DEVICE_LOCKED).replyBoolean(true);
+        mController.takeCall(IS_DEVICE_LOCKED).replyBoolean(true);
+
+        assertThat(first.getResult()).isTrue();
+        assertThat(second.getResult()).isTrue();
+    }
+
+    @Test
+    public void invalidateDropsTheCachedLockState() throws Exception {
+        mConnector.onDeviceStateChanged(DEVICE_STATE_LOCKED, true /* isLocked */, 1);
+
+        mConnector.invalidateCachedState();
+
+        assertThat(mConnector.getCachedIsDeviceLocked()).isNull();
+    }
+
+    @Test
+    public void restoredStateIsConfirmedOnlyOnceBootCompletes() throws Exception {
+        mConnector.restoreCachedIsDeviceLocked(true);
+
+        assertThat(mConnector.getCachedIsDeviceLocked()).isTrue();
+        mController.assertNoCall();
+        assertThat(mContext.getBindCount()).isEqualTo(0);
+
+        mConnector.onBootCompleted();
+        assertThat(mConnector.getCachedIsDeviceLocked()).isTrue();
+        mController.takeCall(IS_DEVICE_LOCKED).replyBoolean(false);
+    }
+
+    @Test
+    public void stateDeliveredOutOfOrderIsDiscarded() {
+        assertThat(mConnector.onDeviceStateChanged(DEVICE_STATE_UNLOCKED, false /* isLocked */,
+                2)).isTrue();
+        assertThat(mConnector.onDeviceStateChanged(DEVICE_STATE_LOCKED, true /* isLocked */,
+                1)).isFalse();
+        assertThat(mConnector.onDeviceStateChanged(DEVICE_STATE_LOCKED, true /* isLocked */,
+                2)).isFalse();
+
+        assertThat(mConnector.getCachedIsDeviceLocked()).isFalse();
+    }
+
+    // Bind the controller and wait for it to be connected.
+    private void connect() throws Exception {
+        final TestOutcomeReceiver<Boolean> isLocked = new TestOutcomeReceiver<>();
+        mConnector.isDeviceLocked(isLocked);
+        mController.takeCall(IS_DEVICE_LOCKED).replyBoolean(false);
+        isLocked.getResult();
+    }
+
+    @Test
+    public void unlockOfAnUnlockedDeviceIsAnsweredLocally() throws Exception {
+        connect();
+        mConnector.onDeviceStateChanged(DEVICE_STATE_UNLOCKED, false /* isLocked */, 1);
+
+        final TestOutcomeReceiver<Void> unlock = new TestOutcomeReceiver<>();
+        mConnector.unlockDevice(unlock);
+
+        unlock.getResult();
+        mController.assertNoCall();
+    }
+
+    @Test
+    public void lockOfALockedDeviceIsDispatched() throws Exception {
+        connect();
+        mConnector.onDeviceStateChanged(DEVICE_STATE_LOCKED, true /* isLocked */, 1);
+
+        // The controller enforces lock task mode again.
+        final TestOutcomeReceiver<Void> lock = new TestOutcomeReceiver<>();
+        mConnector.lockDevice(lock);
+
+        mController.takeCall(LOCK_DEVICE).replyBoolean(true);
+        lock.getResult();
+    }
+
+    @Test
+    public void unlockOfAPseudoUnlockedDeviceIsDispatched() throws Exception {
+        connect();
+        mConnector.onDeviceStateChanged(DEVICE_STATE_PSEUDO_UNLOCKED, false /* isLocked */, 1);
+
+        final TestOutcomeReceiver<Void> unlock = new TestOutcomeReceiver<>();
+        mConnector.unlockDevice(unlock);
+
+        mController.takeCall(UNLOCK_DEVICE).replyBoolean(true);
+        unlock.getResult();
+    }
+
+    @Test
+    public void stateReportedWhileUnboundIsNotTrustedForMutations() throws Exception {
+        mConnector.onDeviceStateChanged(DEVICE_STATE_UNLOCKED, false /* isLocked */, 1);
+
+        final TestOutcomeReceiver<Void> unlock = new TestOutcomeReceiver<>();
+        mConnector.unlockDevice(unlock);
+
+        mController.takeCall(UNLOCK_DEVICE).replyBoolean(true);
+        unlock.getResult();
+    }
+
+    @Test
+    public void unlockBehindALockIsDispatched() throws Exception {
+        connect();
+        mConnector.onDeviceStateChanged(DEVICE_STATE_UNLOCKED, false /* isLocked */, 1);
+
+        final TestOutcomeReceiver<Void> lock = new TestOutcomeReceiver<>();
+        final TestOutcomeReceiver<Void> unlock = new TestOutcomeReceiver<>();
+        mConnector.lockDevice(lock);
+        final FakeControllerService.Call lockCall = mController.takeCall(LOCK_DEVICE);
+        mConnector.unlockDevice(unlock);
+        assertThat(unlock.isDone()).isFalse();
+
+        lockCall.replyBoolean(true);
+        lock.getResult();
+        mController.takeCall(UNLOCK_DEVICE).replyBoolean(true);
+        unlock.getResult();
+    }
+
+    @Test
+    public void bindingWithoutCallsIsDroppedOnceIdle() {
+        final DeviceLockControllerConnector connector = newConnector(SHORT_IDLE_MILLIS);
+
+        assertThat(connector.bind()).isTrue();
+        assertThat(mContext.isBound()).isTrue();
+
+        waitForUnbind();
+        assertThat(connector.isIdle()).isTrue();
+    }
+
+    @Test
+    public void prebindingIsKeptUntilTheFirstCall() throws Exception {
+        final DeviceLockControllerConnector connector = newConnector(SHORT_IDLE_MILLIS);
+
+        assertThat(connector.prebind()).isTrue();
+        SystemClock.sleep(2 * SHORT_IDLE_MILLIS);
+        assertThat(mContext.isBound()).isTrue();
+
+        final TestOutcomeReceiver<Boolean> isLocked = new TestOutcomeReceiver<>();
+        connector.isDeviceLocked(isLocked);
+        mController.takeCall(IS_DEVICE_LOCKED).replyBoolean(true);
+        assertThat(isLocked.getResult()).isTrue();
+
+        waitForUnbind();
+    }
+
+    @Test
+    public void unbindReleasesAPrebinding() {
+        final DeviceLockControllerConnector connector = newConnector(SHORT_IDLE_MILLIS);
+        assertThat(connector.prebind()).isTrue();
+
+        connector.unbind();
+        assertThat(connector.bind()).isTrue();
+
+        waitForUnbind();
+    }
+
+    @Test
+    public void bindingIsKeptWhileACallIsPending() throws Exception {
+        final DeviceLockControllerConnector connector = newConnector(SHORT_IDLE_MILLIS);
+
+        final TestOutcomeReceiver<Boolean> isLocked = new TestOutcomeReceiver<>();
+        connector.isDeviceLocked(isLocked);
+        final FakeControllerService.Call call = mController.takeCall(IS_DEVICE_LOCKED);
+
+        SystemClock.sleep(2 * SHORT_IDLE_MILLIS);
+        assertThat(mContext.isBound()).isTrue();
+
+        call.replyBoolean(true);
+        assertThat(isLocked.getResult()).isTrue();
+        waitForUnbind();
+    }
+
+    @Test
+    public void pendingHealthCheckDoesNotKeepTheBinding() throws Exception {
+        final DeviceLockControllerConnector connector =
+                newConnector(SHORT_IDLE_MILLIS, HEALTH_CHECK_INTERVAL_MILLIS);
+
+        assertThat(connector.bind()).isTrue();
+        // Never answered, the ping stays pending.
+        mController.takeCall(PING);
+
+        waitForUnbind();
+        assertThat(connector.isIdle()).isTrue();
+    }
+
+    @Test
+    public void callsTimingOutBeforeDispatchDoNotOpenTheCircuit() throws Exception {
+        mContext.setAutoConnect(false);
+
+        for (int i = 0; i < CIRCUIT_BREAKER_THRESHOLD; i++) {
+            final TestOutcomeReceiver<Void> lock = new TestOutcomeReceiver<>();
+            mConnector.lockDevice(lock);
+            assertThat(lock.getError()).isInstanceOf(TimeoutException.class);
+        }
+
+        mContext.connect();
+        final TestOutcomeReceiver<Boolean> isLocked = new TestOutcomeReceiver<>();
+        mConnector.isDeviceLocked(isLocked);
+        mController.takeCall(IS_DEVICE_LOCKED).replyBoolean(true);
+        assertThat(isLocked.getResult()).isTrue();
+    }
+
+    @Test
+    public void dispatchedCallsTimingOutOpenTheCircuit() throws Exception {
+        for (int i = 0; i < CIRCUIT_BREAKER_THRESHOLD; i++) {
+            final TestOutcomeReceiver<Void> lock = new TestOutcomeReceiver<>();
+            mConnector.lockDevice(lock);
+            mController.takeCall(LOCK_DEVICE);
+            assertThat(lock.getError()).isInstanceOf(TimeoutException.class);
+        }
+
+        final TestOutcomeReceiver<Boolean> isLocked = new TestOutcomeReceiver<>();
+        mConnector.isDeviceLocked(isLocked);
+
+        assertThat(isLocked.getError()).isNotInstanceOf(TimeoutException.class);
+        mController.assertNoCall();
+    }
+
+    @Test
+    public void lockInFlightWhenTheControllerDiesIsReplayed() throws Exception {
+        final TestOutcomeReceiver<Void> lock = new TestOutcomeReceiver<>();
+        mConnector.lockDevice(lock);
+        mController.takeCall(LOCK_DEVICE);
+
+        mContext.crashController();
+
+        mController.takeCall(LOCK_DEVICE).replyBoolean(true);
+        lock.getResult();
+        lock.assertDeliveredOnce();
+        assertThat(mContext.getBindCount()).isEqualTo(2);
+    }
+
+    @Test
+    public void callFailingWithADeadControllerIsReplayed() throws Exception {
+        connect();
+
+        mContext.setAutoConnect(false);
+        mController.setDead(true);
+        final TestOutcomeReceiver<Boolean> isLocked = new TestOutcomeReceiver<>();
+        mConnector.isDeviceLocked(isLocked);
+
+        // Replayed once bound again.
+        final long deadline = SystemClock.uptimeMillis() + UNBIND_TIMEOUT_MILLIS;
+        while (mContext.getBindCount() < 2 && SystemClock.uptimeMillis() < deadline) {
+            SystemClock.sleep(10);
+        }
+        assertThat(mContext.getBindCount()).isEqualTo(2);
+        mController.setDead(false);
+        mContext.connect();
+
+        mController.takeCall(IS_DEVICE_LOCKED).replyBoolean(true);
+        assertThat(isLocked.getResult()).isTrue();
+    }
+
+    @Test
+    public void clearInFlightWhenTheControllerDiesFails() throws Exception {
+        final TestOutcomeReceiver<Void> clear = new TestOutcomeReceiver<>();
+        mConnector.clearDeviceRestrictions(clear);
+        mController.takeCall(CLEAR_DEVICE_RESTRICTIONS);
+
+        mContext.crashController();
+
+        assertThat(clear.getError()).isNotInstanceOf(TimeoutException.class);
+        mController.assertNoCall();
+    }
+
+    @Test
+    public void callsAreNotReplayedOnceTheBudgetIsSpent() throws Exception {
+        for (int i = 0; i < REPLAY_BUDGET; i++) {
+            final TestOutcomeReceiver<Boolean> isLocked = new TestOutcomeReceiver<>();
+            mConnector.isDeviceLocked(isLocked);
+            mController.takeCall(IS_DEVICE_LOCKED);
+            mContext.crashController();
+            mController.takeCall(IS_DEVICE_LOCKED).replyBoolean(true);
+            assertThat(isLocked.getResult()).isTrue();
+        }
+
+        final TestOutcomeReceiver<Boolean> isLocked = new TestOutcomeReceiver<>();
+        mConnector.isDeviceLocked(isLocked);
+        mController.takeCall(IS_DEVICE_LOCKED);
+        mContext.crashController();
+
+        assertThat(isLocked.getError()).isNotInstanceOf(TimeoutException.class);
+        mController.assertNoCall();
+    }
+
+    @Test
+    public void callsToAControllerFailingItsHealthCheckAreNotReplayed() throws Exception {
+        final DeviceLockControllerConnector connector =
+                newConnector(IDLE_MILLIS, HEALTH_CHECK_INTERVAL_MILLIS);
+        assertThat(connector.bind()).isTrue();
+        final FakeControllerService.Call ping = mController.takeCall(PING);
+
+        final TestOutcomeReceiver<Void> lock = new TestOutcomeReceiver<>();
+        connector.lockDevice(lock);
+        final FakeControllerService.Call lockCall = mController.takeCall(LOCK_DEVICE);
+
+        // The controller is dropped and bound again, the lock may still be executed by the
+        // dropped instance and is not issued again.
+        ping.replyError();
+        mController.takeCall(PING);
+        mController.assertNoCall();
+        assertThat(mContext.getBindCount()).isEqualTo(2);
+
+        lockCall.replyBoolean(true);
+        lock.getResult();
+        lock.assertDeliveredOnce();
+        connector.unbind();
+    }
+}
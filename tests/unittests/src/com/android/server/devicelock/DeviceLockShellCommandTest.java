@@ -0,0 +1,194 @@
+/*
+ * Copyright (C) 2023 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.devicelock;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import android.app.role.RoleManager;
+import android.content.ComponentName;
+import android.content.Context;
+import android.os.Binder;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.UserHandle;
+import android.telephony.TelephonyManager;
+
+import androidx.test.platform.app.InstrumentationRegistry;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+/**
+ * Tests for {@link com.android.server.devicelock.DeviceLockShellCommand}.
+ */
+public class DeviceLockShellCommandTest {
+    private static final ComponentName CONTROLLER_COMPONENT = new ComponentName(
+            "com.android.devicelockcontroller",
+            "com.android.devicelockcontroller.DeviceLockControllerService");
+
+    private static final long MAX_IDLE_MILLIS = 1_000 * 60;
+
+    // Mirrors DeviceStateController.DeviceState.
+    private static final int DEVICE_STATE_LOCKED = 6;
+
+    private HandlerThread mHandlerThread;
+    private Handler mHandler;
+    private FakeControllerService mController;
+    private FakeControllerContext mContext;
+    private TelephonyManager mTelephonyManager;
+    private RoleManager mRoleManager;
+    private DeviceLockControllerConnectorPool mPool;
+    private TelephonyIdentifierCache mTelephonyIdentifierCache;
+    private KioskAppsCache mKioskAppsCache;
+
+    private File mOut;
+    private File mErr;
+
+    @Before
+    public void setup() throws Exception {
+        mHandlerThread = new HandlerThread("DeviceLockShellCommandTest");
+        mHandlerThread.start();
+        mHandler = new Handler(mHandlerThread.getLooper());
+        mController = new FakeControllerService();
+        mController.startAutoReply();
+        mContext = new FakeControllerContext(
+                InstrumentationRegistry.getInstrumentation().getContext(), mHandler, mController);
+        mPool = new DeviceLockControllerConnectorPool(mContext, CONTROLLER_COMPONENT,
+                new ApiMetrics(), new ControllerPackageEnabler(mContext,
+                        CONTROLLER_COMPONENT.getPackageName(), mHandler),
+                mHandler, MAX_IDLE_MILLIS, 0 /* healthCheckIntervalMillis */,
+                0 /* handOutGraceMillis */);
+
+        final Context cacheContext = mock(Context.class);
+        mTelephonyManager = mock(TelephonyManager.class);
+        mRoleManager = mock(RoleManager.class);
+        when(cacheContext.getSystemService(TelephonyManager.class)).thenReturn(mTelephonyManager);
+        when(cacheContext.getSystemService(RoleManager.class)).thenReturn(mRoleManager);
+        when(cacheContext.getMainExecutor()).thenReturn(Runnable::run);
+        when(mTelephonyManager.getActiveModemCount()).thenReturn(1);
+        when(mRoleManager.getRoleHoldersAsUser(eq(RoleManager.ROLE_FINANCED_DEVICE_KIOSK),
+                any())).thenReturn(List.of());
+        mTelephonyIdentifierCache = new TelephonyIdentifierCache(cacheContext);
+        mKioskAppsCache = new KioskAppsCache(cacheContext);
+
+        mOut = File.createTempFile("DeviceLockShellCommandTest", "out");
+        mErr = File.createTempFile("DeviceLockShellCommandTest", "err");
+    }
+
+    @After
+    public void teardown() {
+        mController.shutdown();
+        mHandlerThread.quitSafely();
+        mOut.delete();
+        mErr.delete();
+    }
+
+    private int exec(String... args) throws Exception {
+        try (FileInputStream in = new FileInputStream("/dev/null");
+                FileOutputStream out = new FileOutputStream(mOut);
+                FileOutputStream err = new FileOutputStream(mErr)) {
+            return new DeviceLockShellCommand(mPool, mTelephonyIdentifierCache, mKioskAppsCache)
+                    .exec(new Binder(), in.getFD(), out.getFD(), err.getFD(), args);
+        }
+    }
+
+    private static String read(File file) throws Exception {
+        try (FileInputStream in = new FileInputStream(file)) {
+            return new String(in.readAllBytes(), StandardCharsets.UTF_8);
+        }
+    }
+
+    @Test
+    public void bind_bindsToTheControllerOfTheUser() throws Exception {
+        assertThat(exec("bind", "--user", "10")).isEqualTo(0);
+
+        assertThat(mContext.isBound()).isTrue();
+    }
+
+    @Test
+    public void unbind_unbindsFromTheController() throws Exception {
+        exec("bind");
+
+        assertThat(exec("unbind")).isEqualTo(0);
+
+        assertThat(mContext.isBound()).isFalse();
+    }
+
+    @Test
+    public void unknownOptionIsRejected() throws Exception {
+        assertThat(exec("state", "--foo")).isEqualTo(-1);
+
+        assertThat(read(mErr)).contains("Unknown option: --foo");
+    }
+
+    @Test
+    public void flushCache_dropsTheCachedValues() throws Exception {
+        final DeviceLockControllerConnector connector = mPool.getConnector(UserHandle.SYSTEM);
+        connector.onDeviceStateChanged(DEVICE_STATE_LOCKED, /* isLocked= */ true,
+                /* sequence= */ 1);
+        mTelephonyIdentifierCache.getImeis();
+        mKioskAppsCache.getKioskApps(UserHandle.SYSTEM);
+
+        assertThat(exec("flush-cache")).isEqualTo(0);
+        mTelephonyIdentifierCache.getImeis();
+        mKioskAppsCache.getKioskApps(UserHandle.SYSTEM);
+
+        assertThat(connector.getCachedIsDeviceLocked()).isNull();
+        verify(mTelephonyManager, times(2)).getImei(anyInt());
+        verify(mRoleManager, times(2)).getRoleHoldersAsUser(
+                eq(RoleManager.ROLE_FINANCED_DEVICE_KIOSK), any());
+    }
+
+    @Test
+    public void bench_issuesTheRequestedCalls() throws Exception {
+        assertThat(exec("bench", "-n", "10", "-c", "2", "--no-coalesce")).isEqualTo(0);
+
+        assertThat(read(mOut)).contains("calls: 10, concurrency: 2, coalesce: false, errors: 0");
+        assertThat(mController.getCallCount()).isAtLeast(10);
+    }
+
+    @Test
+    public void bench_rejectsANonPositiveCallCount() throws Exception {
+        assertThat(exec("bench", "-n", "0")).isEqualTo(-1);
+
+        assertThat(read(mErr)).contains("CALLS and CONCURRENCY must be positive");
+        assertThat(mContext.getBindCount()).isEqualTo(0);
+    }
+
+    @Test
+    public void bench_rejectsAnUnknownOp() throws Exception {
+        assertThat(exec("bench", "--op", "wipe")).isEqualTo(-1);
+
+        assertThat(read(mErr)).contains("Unknown op: wipe");
+        assertThat(mContext.getBindCount()).isEqualTo(0);
+    }
+}
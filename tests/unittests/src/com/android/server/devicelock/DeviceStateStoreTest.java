@@ -0,0 +1,186 @@
+/*
+ * Copyright (C) 2023 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.devicelock;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import android.os.Handler;
+import android.os.HandlerThread;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Tests for {@link com.android.server.devicelock.DeviceStateStore}.
+ */
+public class DeviceStateStoreTest {
+    // Mirrors DeviceStateController.DeviceState.
+    private static final int DEVICE_STATE_UNPROVISIONED = 0;
+    private static final int DEVICE_STATE_SETUP_IN_PROGRESS = 1;
+    private static final int DEVICE_STATE_UNLOCKED = 5;
+    private static final int DEVICE_STATE_LOCKED = 6;
+    private static final int DEVICE_STATE_CLEARED = 7;
+
+    private static final long TIMEOUT_SECONDS = 5;
+
+    private File mDir;
+    private File mFile;
+    private HandlerThread mHandlerThread;
+    private Handler mHandler;
+
+    @Before
+    public void setup() throws Exception {
+        mDir = File.createTempFile("DeviceStateStoreTest", null);
+        mDir.delete();
+        mDir.mkdir();
+        mFile = new File(mDir, "device_state");
+
+        mHandlerThread = new HandlerThread("DeviceStateStoreTest");
+        mHandlerThread.start();
+        mHandler = new Handler(mHandlerThread.getLooper());
+    }
+
+    @After
+    public void teardown() {
+        mHandlerThread.quitSafely();
+        for (File file : mDir.listFiles()) {
+            file.delete();
+        }
+        mDir.delete();
+    }
+
+    private void waitForHandler() throws InterruptedException {
+        final CountDownLatch latch = new CountDownLatch(1);
+        mHandler.post(latch::countDown);
+        assertThat(latch.await(TIMEOUT_SECONDS, TimeUnit.SECONDS)).isTrue();
+    }
+
+    private DeviceStateStore.State loadFromANewStore() {
+        return new DeviceStateStore(mFile).load();
+    }
+
+    @Test
+    public void load_returnsNullWithoutAPersistedState() {
+        assertThat(loadFromANewStore()).isNull();
+    }
+
+    @Test
+    public void savedStateIsLoaded() {
+        new DeviceStateStore(mFile).save(DEVICE_STATE_LOCKED, /* isDeviceLocked= */ true);
+
+        final DeviceStateStore.State state = loadFromANewStore();
+
+        assertThat(state.mDeviceState).isEqualTo(DEVICE_STATE_LOCKED);
+        assertThat(state.mIsDeviceLocked).isTrue();
+    }
+
+    @Test
+    public void save_skipsAnUnchangedState() {
+        final DeviceStateStore store = new DeviceStateStore(mFile);
+        store.save(DEVICE_STATE_LOCKED, /* isDeviceLocked= */ true);
+        mFile.delete();
+
+        store.save(DEVICE_STATE_LOCKED, /* isDeviceLocked= */ true);
+
+        assertThat(mFile.exists()).isFalse();
+    }
+
+    @Test
+    public void load_ignoresAnotherVersion() throws Exception {
+        try (DataOutputStream out = new DataOutputStream(new FileOutputStream(mFile))) {
+            out.writeInt(/* version= */ 2);
+            out.writeInt(DEVICE_STATE_LOCKED);
+            out.writeBoolean(true);
+        }
+
+        assertThat(loadFromANewStore()).isNull();
+    }
+
+    @Test
+    public void load_ignoresATruncatedFile() throws Exception {
+        try (DataOutputStream out = new DataOutputStream(new FileOutputStream(mFile))) {
+            out.writeInt(/* version= */ 1);
+        }
+
+        assertThat(loadFromANewStore()).isNull();
+    }
+
+    @Test
+    public void get_readsThePersistedStateOnce() {
+        new DeviceStateStore(mFile).save(DEVICE_STATE_UNLOCKED, /* isDeviceLocked= */ false);
+        final DeviceStateStore store = new DeviceStateStore(mFile);
+
+        final DeviceStateStore.State state = store.get();
+        mFile.delete();
+
+        assertThat(store.get()).isSameInstanceAs(state);
+    }
+
+    @Test
+    public void saveAsync_persistsTheLatestState() throws Exception {
+        final DeviceStateStore store = new DeviceStateStore(mFile);
+        final CountDownLatch blocker = blockHandler();
+
+        store.saveAsync(mHandler, DEVICE_STATE_SETUP_IN_PROGRESS, false, /* sequence= */ 1);
+        store.saveAsync(mHandler, DEVICE_STATE_LOCKED, true, /* sequence= */ 2);
+        blocker.countDown();
+        waitForHandler();
+
+        assertThat(loadFromANewStore().mDeviceState).isEqualTo(DEVICE_STATE_LOCKED);
+    }
+
+    @Test
+    public void saveAsync_ignoresAnOlderState() throws Exception {
+        final DeviceStateStore store = new DeviceStateStore(mFile);
+
+        store.saveAsync(mHandler, DEVICE_STATE_LOCKED, true, /* sequence= */ 2);
+        store.saveAsync(mHandler, DEVICE_STATE_UNLOCKED, false, /* sequence= */ 1);
+        waitForHandler();
+
+        assertThat(loadFromANewStore().mDeviceState).isEqualTo(DEVICE_STATE_LOCKED);
+    }
+
+    @Test
+    public void isEnrolled_isTrueOnlyForProvisionedStates() {
+        assertThat(new DeviceStateStore.State(DEVICE_STATE_UNPROVISIONED, false).isEnrolled())
+                .isFalse();
+        assertThat(new DeviceStateStore.State(DEVICE_STATE_SETUP_IN_PROGRESS, false).isEnrolled())
+                .isTrue();
+        assertThat(new DeviceStateStore.State(DEVICE_STATE_LOCKED, true).isEnrolled()).isTrue();
+        assertThat(new DeviceStateStore.State(DEVICE_STATE_CLEARED, false).isEnrolled())
+                .isFalse();
+    }
+
+    private CountDownLatch blockHandler() {
+        final CountDownLatch blocker = new CountDownLatch(1);
+        mHandler.post(() -> {
+            try {
+                blocker.await(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        });
+        return blocker;
+    }
+}
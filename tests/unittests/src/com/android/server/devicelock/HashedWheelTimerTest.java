@@ -0,0 +1,93 @@
+/*
+ * Copyright (C) 2023 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.devicelock;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import android.os.Handler;
+import android.os.HandlerThread;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Tests for {@link com.android.server.devicelock.HashedWheelTimer}.
+ */
+public class HashedWheelTimerTest {
+    private static final long TICK_MILLIS = 10;
+    private static final int WHEEL_SIZE = 8;
+    private static final long ONE_SEC_MILLIS = 1000;
+
+    private HandlerThread mHandlerThread;
+
+    private HashedWheelTimer mTimer;
+
+    @Before
+    public void setup() {
+        mHandlerThread = new HandlerThread("HashedWheelTimerTest");
+        mHandlerThread.start();
+        mTimer = new HashedWheelTimer(new Handler(mHandlerThread.getLooper()), TICK_MILLIS,
+                WHEEL_SIZE);
+    }
+
+    @After
+    public void teardown() {
+        mHandlerThread.quitSafely();
+    }
+
+    @Test
+    public void scheduledTaskShouldRun() throws InterruptedException {
+        final CountDownLatch latch = new CountDownLatch(1);
+
+        mTimer.schedule(latch::countDown, 2 * TICK_MILLIS);
+
+        assertThat(latch.await(ONE_SEC_MILLIS, TimeUnit.MILLISECONDS)).isTrue();
+        assertThat(mTimer.size()).isEqualTo(0);
+    }
+
+    @Test
+    public void taskLongerThanOneRotationShouldRun() throws InterruptedException {
+        final CountDownLatch latch = new CountDownLatch(1);
+
+        mTimer.schedule(latch::countDown, 3 * WHEEL_SIZE * TICK_MILLIS);
+
+        assertThat(latch.await(ONE_SEC_MILLIS, TimeUnit.MILLISECONDS)).isTrue();
+    }
+
+    @Test
+    public void cancelledTaskShouldNotRun() throws InterruptedException {
+        final AtomicBoolean cancelledTaskRan = new AtomicBoolean();
+        final CountDownLatch latch = new CountDownLatch(1);
+
+        final HashedWheelTimer.Timeout timeout =
+                mTimer.schedule(() -> cancelledTaskRan.set(true), TICK_MILLIS);
+        mTimer.schedule(latch::countDown, 4 * TICK_MILLIS);
+
+        assertThat(mTimer.size()).isEqualTo(2);
+        assertThat(timeout.cancel()).isTrue();
+        assertThat(timeout.cancel()).isFalse();
+        assertThat(mTimer.size()).isEqualTo(1);
+
+        assertThat(latch.await(ONE_SEC_MILLIS, TimeUnit.MILLISECONDS)).isTrue();
+        assertThat(cancelledTaskRan.get()).isFalse();
+    }
+}
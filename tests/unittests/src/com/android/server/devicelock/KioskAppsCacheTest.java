@@ -0,0 +1,151 @@
+/*
+ * Copyright (C) 2023 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.devicelock;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import android.app.role.RoleManager;
+import android.content.Context;
+import android.devicelock.DeviceLockManager;
+import android.os.UserHandle;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Tests for {@link com.android.server.devicelock.KioskAppsCache}.
+ */
+public class KioskAppsCacheTest {
+    private static final String KIOSK_PACKAGE = "com.example.kiosk";
+
+    private static final UserHandle USER = UserHandle.SYSTEM;
+    private static final UserHandle OTHER_USER = UserHandle.of(10);
+
+    private RoleManager mRoleManager;
+
+    private KioskAppsCache mCache;
+
+    @Before
+    public void setup() {
+        final Context context = mock(Context.class);
+        mRoleManager = mock(RoleManager.class);
+        when(context.getSystemService(RoleManager.class)).thenReturn(mRoleManager);
+        when(context.getMainExecutor()).thenReturn(Runnable::run);
+        when(mRoleManager.getRoleHoldersAsUser(eq(RoleManager.ROLE_FINANCED_DEVICE_KIOSK),
+                any())).thenReturn(List.of(KIOSK_PACKAGE));
+
+        mCache = new KioskAppsCache(context);
+    }
+
+    private void verifyRoleHoldersQueries(UserHandle user, int queries) {
+        verify(mRoleManager, times(queries)).getRoleHoldersAsUser(
+                RoleManager.ROLE_FINANCED_DEVICE_KIOSK, user);
+    }
+
+    @Test
+    public void kioskAppsAreCached() {
+        assertThat(mCache.getKioskApps(USER)).containsExactly(
+                DeviceLockManager.DEVICE_LOCK_ROLE_FINANCING, KIOSK_PACKAGE);
+        assertThat(mCache.getKioskApps(USER)).containsExactly(
+                DeviceLockManager.DEVICE_LOCK_ROLE_FINANCING, KIOSK_PACKAGE);
+
+        verifyRoleHoldersQueries(USER, 1);
+    }
+
+    @Test
+    public void noRoleHolderIsCached() {
+        when(mRoleManager.getRoleHoldersAsUser(RoleManager.ROLE_FINANCED_DEVICE_KIOSK, USER))
+                .thenReturn(Collections.emptyList());
+
+        assertThat(mCache.getKioskApps(USER)).isEmpty();
+        assertThat(mCache.getKioskApps(USER)).isEmpty();
+
+        verifyRoleHoldersQueries(USER, 1);
+    }
+
+    @Test
+    public void roleChangeInvalidatesOnlyThatUser() {
+        mCache.getKioskApps(USER);
+        mCache.getKioskApps(OTHER_USER);
+
+        mCache.onRoleHoldersChanged(RoleManager.ROLE_FINANCED_DEVICE_KIOSK, USER);
+        mCache.getKioskApps(USER);
+        mCache.getKioskApps(OTHER_USER);
+
+        verifyRoleHoldersQueries(USER, 2);
+        verifyRoleHoldersQueries(OTHER_USER, 1);
+    }
+
+    @Test
+    public void otherRoleChangeDoesNotInvalidate() {
+        mCache.getKioskApps(USER);
+
+        mCache.onRoleHoldersChanged(RoleManager.ROLE_SMS, USER);
+        mCache.getKioskApps(USER);
+
+        verifyRoleHoldersQueries(USER, 1);
+    }
+
+    @Test
+    public void roleChangeDuringQueryIsNotCached() {
+        when(mRoleManager.getRoleHoldersAsUser(RoleManager.ROLE_FINANCED_DEVICE_KIOSK, USER))
+                .thenAnswer(invocation -> {
+                    mCache.onRoleHoldersChanged(RoleManager.ROLE_FINANCED_DEVICE_KIOSK, USER);
+                    return List.of(KIOSK_PACKAGE);
+                });
+
+        mCache.getKioskApps(USER);
+        mCache.getKioskApps(USER);
+
+        verifyRoleHoldersQueries(USER, 2);
+    }
+
+    @Test
+    public void invalidateDropsAllUsers() {
+        mCache.getKioskApps(USER);
+        mCache.getKioskApps(OTHER_USER);
+
+        mCache.invalidate();
+        mCache.getKioskApps(USER);
+        mCache.getKioskApps(OTHER_USER);
+
+        verifyRoleHoldersQueries(USER, 2);
+        verifyRoleHoldersQueries(OTHER_USER, 2);
+    }
+
+    @Test
+    public void nothingIsCachedWithoutListener() {
+        doThrow(new SecurityException()).when(mRoleManager).addOnRoleHoldersChangedListenerAsUser(
+                any(), any(), any());
+
+        mCache.getKioskApps(USER);
+        mCache.getKioskApps(USER);
+
+        verifyRoleHoldersQueries(USER, 2);
+    }
+}
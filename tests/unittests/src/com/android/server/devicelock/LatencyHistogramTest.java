@@ -0,0 +1,60 @@
+/*
+ * Copyright (C) 2023 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.devicelock;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import org.junit.Test;
+
+/**
+ * Tests for {@link com.android.server.devicelock.LatencyHistogram}.
+ */
+public class LatencyHistogramTest {
+    private static final long NANOS_PER_MILLI = 1_000_000;
+
+    @Test
+    public void emptyHistogram_shouldReportZero() {
+        final LatencyHistogram histogram = new LatencyHistogram();
+
+        assertThat(histogram.getCount()).isEqualTo(0);
+        assertThat(histogram.getPercentileMicros(50)).isEqualTo(0);
+    }
+
+    @Test
+    public void percentiles_shouldReportBucketUpperBound() {
+        final LatencyHistogram histogram = new LatencyHistogram();
+
+        for (int i = 0; i < 98; i++) {
+            histogram.record(3 * NANOS_PER_MILLI);
+        }
+        histogram.record(200 * NANOS_PER_MILLI);
+        histogram.record(200 * NANOS_PER_MILLI);
+
+        assertThat(histogram.getCount()).isEqualTo(100);
+        assertThat(histogram.getPercentileMicros(50)).isEqualTo(5_000);
+        assertThat(histogram.getPercentileMicros(99)).isEqualTo(250_000);
+    }
+
+    @Test
+    public void sampleOverLastBound_shouldReportMax() {
+        final LatencyHistogram histogram = new LatencyHistogram();
+
+        histogram.record(30_000 * NANOS_PER_MILLI);
+
+        assertThat(histogram.getPercentileMicros(99)).isEqualTo(30_000_000);
+    }
+}
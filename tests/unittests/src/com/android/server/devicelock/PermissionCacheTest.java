@@ -0,0 +1,181 @@
+/*
+ * Copyright (C) 2023 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.devicelock;
+
+import static android.content.pm.PackageManager.PERMISSION_DENIED;
+import static android.content.pm.PackageManager.PERMISSION_GRANTED;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.pm.PackageManager;
+import android.os.Process;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+
+/**
+ * Tests for {@link com.android.server.devicelock.PermissionCache}.
+ */
+public class PermissionCacheTest {
+    private static final String PERMISSION = "android.permission.MANAGE_DEVICE_LOCK_STATE";
+
+    // Not in a binder call, the calling uid is our own.
+    private static final int UID = Process.myUid();
+
+    private Context mContext;
+    private PackageManager mPackageManager;
+
+    private PermissionCache mCache;
+
+    @Before
+    public void setup() {
+        mContext = mock(Context.class);
+        mPackageManager = mock(PackageManager.class);
+        when(mContext.getPackageManager()).thenReturn(mPackageManager);
+
+        mCache = new PermissionCache(mContext);
+    }
+
+    private void setPermissionResult(int result) {
+        when(mContext.checkPermission(eq(PERMISSION), anyInt(), eq(UID))).thenReturn(result);
+    }
+
+    private void verifyPermissionChecks(int checks) {
+        verify(mContext, times(checks)).checkPermission(eq(PERMISSION), anyInt(), eq(UID));
+    }
+
+    @Test
+    public void denialIsCached() {
+        setPermissionResult(PERMISSION_DENIED);
+
+        assertThat(mCache.checkCallingOrSelfPermission(PERMISSION)).isFalse();
+        assertThat(mCache.checkCallingOrSelfPermission(PERMISSION)).isFalse();
+
+        verifyPermissionChecks(1);
+    }
+
+    @Test
+    public void grantIsCached() {
+        setPermissionResult(PERMISSION_GRANTED);
+
+        assertThat(mCache.checkCallingOrSelfPermission(PERMISSION)).isTrue();
+        assertThat(mCache.checkCallingOrSelfPermission(PERMISSION)).isTrue();
+
+        verifyPermissionChecks(1);
+    }
+
+    @Test
+    public void permissionChangeDropsTheGrantOfThatUid() {
+        setPermissionResult(PERMISSION_GRANTED);
+        mCache.checkCallingOrSelfPermission(PERMISSION);
+
+        mCache.onPermissionsChanged(UID);
+        setPermissionResult(PERMISSION_DENIED);
+
+        assertThat(mCache.checkCallingOrSelfPermission(PERMISSION)).isFalse();
+        verifyPermissionChecks(2);
+    }
+
+    @Test
+    public void packageChangeDropsTheGrants() {
+        setPermissionResult(PERMISSION_GRANTED);
+        mCache.checkCallingOrSelfPermission(PERMISSION);
+
+        final ArgumentCaptor<BroadcastReceiver> receiver =
+                ArgumentCaptor.forClass(BroadcastReceiver.class);
+        verify(mContext, times(2)).registerReceiverForAllUsers(receiver.capture(), any(),
+                any(), any());
+        receiver.getValue().onReceive(mContext, new Intent(Intent.ACTION_PACKAGE_REMOVED));
+        setPermissionResult(PERMISSION_DENIED);
+
+        assertThat(mCache.checkCallingOrSelfPermission(PERMISSION)).isFalse();
+        verifyPermissionChecks(2);
+    }
+
+    @Test
+    public void permissionChangeDropsTheDenialOfThatUid() {
+        setPermissionResult(PERMISSION_DENIED);
+        mCache.checkCallingOrSelfPermission(PERMISSION);
+
+        mCache.onPermissionsChanged(UID);
+        setPermissionResult(PERMISSION_GRANTED);
+
+        assertThat(mCache.checkCallingOrSelfPermission(PERMISSION)).isTrue();
+        verifyPermissionChecks(2);
+    }
+
+    @Test
+    public void permissionChangeOfAnotherUidKeepsTheDenial() {
+        setPermissionResult(PERMISSION_DENIED);
+        mCache.checkCallingOrSelfPermission(PERMISSION);
+
+        mCache.onPermissionsChanged(UID + 1);
+        mCache.checkCallingOrSelfPermission(PERMISSION);
+
+        verifyPermissionChecks(1);
+    }
+
+    @Test
+    public void invalidateDropsAllDenials() {
+        setPermissionResult(PERMISSION_DENIED);
+        mCache.checkCallingOrSelfPermission(PERMISSION);
+
+        mCache.invalidate();
+        mCache.checkCallingOrSelfPermission(PERMISSION);
+
+        verifyPermissionChecks(2);
+    }
+
+    @Test
+    public void denialDuringAChangeIsNotCached() {
+        when(mContext.checkPermission(eq(PERMISSION), anyInt(), eq(UID)))
+                .thenAnswer(invocation -> {
+                    mCache.onPermissionsChanged(UID);
+                    return PERMISSION_DENIED;
+                });
+
+        mCache.checkCallingOrSelfPermission(PERMISSION);
+        mCache.checkCallingOrSelfPermission(PERMISSION);
+
+        verifyPermissionChecks(2);
+    }
+
+    @Test
+    public void nothingIsCachedWithoutListener() {
+        doThrow(new SecurityException()).when(mPackageManager)
+                .addOnPermissionsChangeListener(any());
+        setPermissionResult(PERMISSION_DENIED);
+
+        mCache.checkCallingOrSelfPermission(PERMISSION);
+        mCache.checkCallingOrSelfPermission(PERMISSION);
+
+        verifyPermissionChecks(2);
+    }
+}
@@ -0,0 +1,140 @@
+/*
+ * Copyright (C) 2023 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.devicelock;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.telephony.TelephonyManager;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+
+/**
+ * Tests for {@link com.android.server.devicelock.TelephonyIdentifierCache}.
+ */
+public class TelephonyIdentifierCacheTest {
+    private static final String IMEI_0 = "983402979622353";
+    private static final String IMEI_1 = "354403064522046";
+
+    private Context mContext;
+    private TelephonyManager mTelephonyManager;
+
+    private TelephonyIdentifierCache mCache;
+
+    @Before
+    public void setup() {
+        mContext = mock(Context.class);
+        mTelephonyManager = mock(TelephonyManager.class);
+        when(mContext.getSystemService(TelephonyManager.class)).thenReturn(mTelephonyManager);
+
+        // GSM-only device with two modems, no MEID.
+        when(mTelephonyManager.getActiveModemCount()).thenReturn(2);
+        when(mTelephonyManager.getImei(0)).thenReturn(IMEI_0);
+        when(mTelephonyManager.getImei(1)).thenReturn(IMEI_1);
+
+        mCache = new TelephonyIdentifierCache(mContext);
+    }
+
+    private BroadcastReceiver getReceiver() {
+        final ArgumentCaptor<BroadcastReceiver> receiver =
+                ArgumentCaptor.forClass(BroadcastReceiver.class);
+        verify(mContext).registerReceiver(receiver.capture(), any(IntentFilter.class),
+                eq(Context.RECEIVER_NOT_EXPORTED));
+        return receiver.getValue();
+    }
+
+    @Test
+    public void identifiersAreReadOnce() {
+        assertThat(mCache.getImeis()).containsExactly(IMEI_0, IMEI_1);
+        assertThat(mCache.getImeis()).containsExactly(IMEI_0, IMEI_1);
+
+        verify(mTelephonyManager, times(1)).getImei(0);
+        verify(mTelephonyManager, times(1)).getImei(1);
+        verify(mTelephonyManager, times(1)).getActiveModemCount();
+    }
+
+    @Test
+    public void missingIdentifiersAreCached() {
+        assertThat(mCache.getMeids()).isEmpty();
+        assertThat(mCache.getMeids()).isEmpty();
+
+        verify(mTelephonyManager, times(2)).getMeid(anyInt());
+    }
+
+    @Test
+    public void receiverIsNotExported() {
+        final ArgumentCaptor<IntentFilter> filter = ArgumentCaptor.forClass(IntentFilter.class);
+        verify(mContext).registerReceiver(any(), filter.capture(),
+                eq(Context.RECEIVER_NOT_EXPORTED));
+
+        assertThat(filter.getValue().hasAction(TelephonyManager.ACTION_MULTI_SIM_CONFIG_CHANGED))
+                .isTrue();
+        assertThat(filter.getValue().hasAction(TelephonyManager.ACTION_SIM_CARD_STATE_CHANGED))
+                .isTrue();
+    }
+
+    @Test
+    public void multiSimConfigChangeDropsTheIdentifiers() {
+        mCache.getImeis();
+
+        when(mTelephonyManager.getActiveModemCount()).thenReturn(1);
+        getReceiver().onReceive(mContext,
+                new Intent(TelephonyManager.ACTION_MULTI_SIM_CONFIG_CHANGED));
+
+        assertThat(mCache.getImeis()).containsExactly(IMEI_0);
+    }
+
+    @Test
+    public void simStateChangeDropsTheIdentifiers() {
+        // The modem is not ready yet.
+        when(mTelephonyManager.getImei(anyInt())).thenReturn(null);
+        assertThat(mCache.getImeis()).isEmpty();
+
+        when(mTelephonyManager.getImei(0)).thenReturn(IMEI_0);
+        when(mTelephonyManager.getImei(1)).thenReturn(IMEI_1);
+        getReceiver().onReceive(mContext,
+                new Intent(TelephonyManager.ACTION_SIM_CARD_STATE_CHANGED));
+
+        assertThat(mCache.getImeis()).containsExactly(IMEI_0, IMEI_1);
+    }
+
+    @Test
+    public void identifiersReadDuringAnInvalidationAreNotCached() {
+        when(mTelephonyManager.getImei(1)).thenAnswer(invocation -> {
+            mCache.invalidate();
+            return IMEI_1;
+        });
+
+        mCache.getImeis();
+        mCache.getImeis();
+
+        verify(mTelephonyManager, times(2)).getImei(0);
+    }
+}
@@ -0,0 +1,81 @@
+/*
+ * Copyright (C) 2023 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.devicelock;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import android.os.OutcomeReceiver;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Outcome receiver recording the outcome of a call, and how many times it was delivered.
+ */
+final class TestOutcomeReceiver<Result> implements OutcomeReceiver<Result, Exception> {
+    private static final long OUTCOME_TIMEOUT_MILLIS = 2000;
+
+    private final CompletableFuture<Result> mOutcome = new CompletableFuture<>();
+    private final AtomicInteger mDeliveries = new AtomicInteger();
+
+    @Override
+    public void onResult(Result result) {
+        mDeliveries.incrementAndGet();
+        mOutcome.complete(result);
+    }
+
+    @Override
+    public void onError(Exception error) {
+        mDeliveries.incrementAndGet();
+        mOutcome.completeExceptionally(error);
+    }
+
+    /**
+     * Wait for the outcome, and check that it is a result.
+     */
+    Result getResult() throws Exception {
+        return mOutcome.get(OUTCOME_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Wait for the outcome, and check that it is an error.
+     */
+    Exception getError() throws Exception {
+        try {
+            final Result result = mOutcome.get(OUTCOME_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+            throw new AssertionError("Expected an error, got: " + result);
+        } catch (ExecutionException e) {
+            return (Exception) e.getCause();
+        }
+    }
+
+    /**
+     * Whether the outcome was delivered.
+     */
+    boolean isDone() {
+        return mOutcome.isDone();
+    }
+
+    /**
+     * Check that the outcome was delivered exactly once.
+     */
+    void assertDeliveredOnce() {
+        assertThat(mDeliveries.get()).isEqualTo(1);
+    }
+}